@@ -0,0 +1,157 @@
+package Proxy.Cache;
+
+/**
+ * The part of a page asked for with a Range header, answered with a 206 Partial Content.
+ * Only a single range of bytes is supported, requests for lists of ranges or other units are sent the whole page.
+ */
+public class ByteRange {
+
+    /**
+     * The first byte, -1 for the last bytes of the page.
+     */
+    private final long first;
+    /**
+     * The last byte, -1 for up to the end of the page, or the number of last bytes.
+     */
+    private final long last;
+
+    /**
+     * Constructor.
+     *
+     * @param first the first byte, -1 for the last bytes of the page.
+     * @param last the last byte, -1 for up to the end of the page, or the number of last bytes.
+     */
+    private ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Parse a Range header.
+     *
+     * @param header the header value, may be null.
+     * @return the range, or null if there is none or it isn't a single range of bytes.
+     */
+    public static ByteRange parse(String header) {
+        if (header == null)
+            return null;
+        String value = header.trim();
+        if (!value.regionMatches(true, 0, "bytes=", 0, 6) || value.indexOf(',') >= 0)
+            return null;
+        int dash = value.indexOf('-');
+        if (dash < 0)
+            return null;
+        String start = value.substring(6, dash);
+        long from = number(start);
+        long to = number(value.substring(dash + 1));
+        //Only a missing first byte asks for the last bytes, a malformed one makes the header invalid
+        if (start.trim().isEmpty())
+            return to < 0 ? null : new ByteRange(-1, to);
+        if (from < 0)
+            return null;
+        if (value.substring(dash + 1).trim().isEmpty())
+            return new ByteRange(from, -1);
+        return to < from ? null : new ByteRange(from, to);
+    }
+
+    /**
+     * Parse the Content-Range header of a 206 response.
+     *
+     * @param header the header value, may be null.
+     * @return the first and last byte sent and the size of the whole page, or null if it is malformed or the size isn't known.
+     */
+    public static long[] parseContentRange(String header) {
+        if (header == null)
+            return null;
+        String value = header.trim();
+        int dash = value.indexOf('-');
+        int slash = value.indexOf('/');
+        if (!value.regionMatches(true, 0, "bytes ", 0, 6) || dash < 0 || slash < dash)
+            return null;
+        long first = number(value.substring(6, dash));
+        long last = number(value.substring(dash + 1, slash));
+        long total = number(value.substring(slash + 1));
+        if (first < 0 || last < first || total <= last)
+            return null;
+        return new long[]{first, last, total};
+    }
+
+    /**
+     * Parse a number of bytes.
+     *
+     * @param value the digits.
+     * @return the number, -1 if it is missing or malformed.
+     */
+    private static long number(String value) {
+        value = value.trim();
+        if (value.isEmpty() || value.length() > 18)
+            return -1;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9')
+                return -1;
+        }
+        return Long.parseLong(value);
+    }
+
+    /**
+     * @param length the size of the page.
+     * @return whether any of the range is in the page.
+     */
+    public boolean isSatisfiable(long length) {
+        return first >= 0 ? first < length : last > 0 && length > 0;
+    }
+
+    /**
+     * @param length the size of the page.
+     * @return the first byte of the range in the page.
+     */
+    public long first(long length) {
+        return first >= 0 ? first : Math.max(0, length - last);
+    }
+
+    /**
+     * @param length the size of the page.
+     * @return the last byte of the range in the page.
+     */
+    public long last(long length) {
+        return first >= 0 && last >= 0 ? Math.min(last, length - 1) : length - 1;
+    }
+
+    /**
+     * @param length the size of the page.
+     * @return the number of bytes sent for the range, 0 if it isn't satisfiable.
+     */
+    public long length(long length) {
+        return isSatisfiable(length) ? last(length) - first(length) + 1 : 0;
+    }
+
+    /**
+     * @param length the size of the page.
+     * @return the status sent for the range.
+     */
+    public int status(long length) {
+        return isSatisfiable(length) ? 206 : 416;
+    }
+
+    /**
+     * @param length the size of the page.
+     * @return the Content-Range header value sent for the range.
+     */
+    public String contentRange(long length) {
+        if (!isSatisfiable(length))
+            return "bytes */" + length;
+        return "bytes " + first(length) + "-" + last(length) + "/" + length;
+    }
+
+    /**
+     * Get the range widened to whole chunks, to ask the target machine for when the size of the page isn't known.
+     *
+     * @param chunk the size of a chunk.
+     * @return the Range header value.
+     */
+    public String aligned(int chunk) {
+        if (first < 0)
+            return "bytes=-" + last;
+        return "bytes=" + first / chunk * chunk + "-" + (last < 0 ? "" : Long.toString((last / chunk + 1) * chunk - 1));
+    }
+}
@@ -1,36 +1,147 @@
 package Proxy.Cache;
 
 
-import org.apache.commons.collections4.MapIterator;
-import org.apache.commons.collections4.map.LRUMap;
-
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Represents the cache storage system.
+ * Lookups never lock, eviction is approximate LRU using the clock (second chance) algorithm.
+ * With an off heap store, pages pushed out of the heap are demoted to it rather than removed.
+ * Expired pages are found a few at a time by a timing wheel and checked for again on lookup.
+ * The pages can be saved to a snapshot file and read back lazily when the proxy restarts.
  */
 public class CacheManager {
 
     /**
      * Stores the cached web pages.
      */
-    private final LRUMap CacheMap;
+    private final Map<String, CachedPage> CacheMap = new ConcurrentHashMap<>();
+    /**
+     * Pages on the heap in the order they were added, the clock hand is the head of the queue.
+     */
+    private final Queue<CachedPage> clock = new ConcurrentLinkedQueue<>();
+    /**
+     * Pages in the off heap store in the order they were demoted.
+     */
+    private final Queue<CachedPage> coldClock = new ConcurrentLinkedQueue<>();
+    /**
+     * Pages being downloaded, keyed like the cache.
+     */
+    private final Map<String, PageFill> fills = new ConcurrentHashMap<>();
+    /**
+     * Guards adding, removing and demoting pages, lookups never take it.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * The max number of items allowed in the cache.
+     */
+    private final int maxItems;
+    /**
+     * The max total size in bytes of the pages on the heap.
+     */
+    private final long maxBytes;
+    /**
+     * The max size in bytes of a single page, larger pages are not cached.
+     */
+    private final int maxPageSize;
+    /**
+     * The total size in bytes of the pages on the heap.
+     */
+    private final AtomicLong bytes = new AtomicLong();
+    /**
+     * The total size in bytes of the pages in the off heap store.
+     */
+    private final AtomicLong coldBytes = new AtomicLong();
     /**
-     * The time to live for all the pages.
+     * Number of pages removed to make room, and number removed because they expired.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    /**
+     * Second tier for pages pushed out of the heap, may be null.
+     */
+    private final OffHeapStore store;
+    /**
+     * The time to live for pages that are not used, whatever their freshness.
      */
     private long timeToLive;
-
+    /**
+     * Pages by the time they may expire, null if pages are kept until evicted.
+     */
+    private final ExpiryWheel wheel;
+    /**
+     * Clock entries left behind by pages that have been removed or replaced. Guarded by the lock.
+     */
+    private int deadEntries;
+    /**
+     * The snapshot the cache was started from, its pages are added when first asked for. Null until it has been read.
+     */
+    private volatile CacheSnapshot snapshot;
+    /**
+     * Whether the snapshot has been read or found missing, no snapshot is written before then.
+     */
+    private volatile boolean restored;
 
     /**
      * Constructor.
      * @param timeToLive The time to live for all pages.
-     * @param timerInterval The time between checking for expired items.
+     * @param timerInterval The time in seconds between checking for expired items.
      * @param maxItems The max number of items allowed in the cache.
      */
     public CacheManager(long timeToLive, final long timerInterval, int maxItems) {
+        this(timeToLive, timerInterval, maxItems, Long.MAX_VALUE, Integer.MAX_VALUE, null);
+    }
+
+    /**
+     * Constructor for a cache sized by the bytes it holds rather than the number of pages.
+     * @param timeToLive The time to live for all pages.
+     * @param timerInterval The time in seconds between checking for expired items.
+     * @param maxBytes The max total size in bytes of the pages in the cache.
+     * @param maxPageSize The max size in bytes of a single page.
+     */
+    public CacheManager(long timeToLive, final long timerInterval, long maxBytes, int maxPageSize) {
+        this(timeToLive, timerInterval, Integer.MAX_VALUE, maxBytes, maxPageSize, null);
+    }
+
+    /**
+     * Constructor for a cache with a small heap tier in front of a large off heap tier.
+     * @param timeToLive The time to live for all pages.
+     * @param timerInterval The time in seconds between checking for expired items.
+     * @param maxBytes The max total size in bytes of the pages on the heap.
+     * @param maxPageSize The max size in bytes of a single page.
+     * @param store The store pages are demoted to.
+     */
+    public CacheManager(long timeToLive, final long timerInterval, long maxBytes, int maxPageSize, OffHeapStore store) {
+        this(timeToLive, timerInterval, Integer.MAX_VALUE, maxBytes, maxPageSize, store);
+    }
+
+    /**
+     * Constructor.
+     * @param timeToLive The time to live for all pages.
+     * @param timerInterval The time in seconds between checking for expired items.
+     * @param maxItems The max number of items allowed in the cache.
+     * @param maxBytes The max total size in bytes of the pages on the heap.
+     * @param maxPageSize The max size in bytes of a single page.
+     * @param store The store pages are demoted to, may be null.
+     */
+    private CacheManager(long timeToLive, final long timerInterval, int maxItems, long maxBytes, int maxPageSize, OffHeapStore store) {
         this.timeToLive = timeToLive * 1000;
-        CacheMap = new LRUMap(maxItems);
+        this.maxItems = maxItems;
+        this.maxBytes = maxBytes;
+        this.maxPageSize = maxPageSize;
+        this.store = store;
         if (timeToLive > 0 && timerInterval > 0) {
+            //Pages are scheduled up to the time to live ahead, so most are only looked at once
+            wheel = new ExpiryWheel(timerInterval * 1000, this.timeToLive);
             //Create new thread and call the clean up method in the background.
             Thread t = new Thread(() -> {
                 while (true) {
@@ -45,6 +156,8 @@ public class CacheManager {
             t.setDaemon(true);
             //Start the thread
             t.start();
+        } else {
+            wheel = null;
         }
     }
 
@@ -54,64 +167,360 @@ public class CacheManager {
      * @param page The data for the page.
      */
     public void put(String pageURL, byte[] page) {
-        synchronized (CacheMap) {
-            //Store the page in the cache.
-            CacheMap.put(pageURL, new CachedPage(page));
+        //A bare body has no freshness information, it stays fresh for the time to live
+        put(new CachedPage(pageURL, null, null, CachedPage.split(page, page.length), page.length, System.currentTimeMillis() + timeToLive));
+    }
+
+    /**
+     * Store a web page.
+     * @param c The page.
+     */
+    void put(CachedPage c) {
+        if (!isCacheable(c.length))
+            return;
+        lock.lock();
+        try {
+            //Store the page in the cache
+            CachedPage replaced = CacheMap.put(c.url, c);
+            if (replaced != null)
+                discard(replaced);
+            //An older copy in the snapshot must not come back once this one is gone
+            CacheSnapshot s = snapshot;
+            if (s != null)
+                s.remove(c.url);
+            bytes.addAndGet(c.length);
+            clock.add(c);
+            if (wheel != null)
+                wheel.schedule(c, deadline(c));
+            evict();
+        } finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * Store parts of a page, along with the parts already stored if they are of the same version of the page.
+     * A whole page is never replaced by parts of it.
+     * @param parts The page with the chunks that arrived.
+     */
+    void putParts(CachedPage parts) {
+        lock.lock();
+        try {
+            CachedPage current = CacheMap.get(parts.url);
+            if (current != null && !current.isPartial())
+                return;
+            CachedPage merged = current != null ? current.merge(parts) : null;
+            //Parts of another version, or too many parts to keep, replace what was stored
+            put(merged != null && isCacheable(merged.length) ? merged : parts);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Start downloading a page into the cache.
+     * @param pageURL The url of the page.
+     * @return the fill to append the page to, or null if another request is already downloading it.
+     */
+    public PageFill beginFill(String pageURL) {
+        PageFill fill = new PageFill(this, pageURL);
+        return fills.putIfAbsent(pageURL, fill) == null ? fill : null;
+    }
+
+    /**
+     * Read a page another request is downloading.
+     * The caller must call leave on the fill once done.
+     * @param pageURL The url of the page.
+     * @return the fill, or null if the page isn't being downloaded or is too large to share.
+     */
+    public PageFill joinFill(String pageURL) {
+        PageFill fill = fills.get(pageURL);
+        return fill != null && fill.join() ? fill : null;
+    }
+
+    /**
+     * Stop new requests from joining a fill.
+     * @param pageURL The url of the page.
+     * @param fill The fill.
+     */
+    void endFill(String pageURL, PageFill fill) {
+        fills.remove(pageURL, fill);
+    }
+
+    /**
+     * Check if a page is small enough to be cached.
+     * @param size The size of the page in bytes.
+     * @return whether the page would be stored.
+     */
+    public boolean isCacheable(long size) {
+        return size <= maxPageSize;
+    }
+
+
+    /**
+     * @return the number of pages in the cache.
+     */
+    public int size() {
+        return CacheMap.size();
+    }
+
+    /**
+     * @return the total size in bytes of the pages on the heap.
+     */
+    public long heapBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return the total size in bytes of the pages in the off heap store.
+     */
+    public long offHeapBytes() {
+        return coldBytes.get();
+    }
+
+    /**
+     * @return the number of pages removed to make room since the cache was made.
+     */
+    public long evictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of pages removed because they expired since the cache was made.
+     */
+    public long expirations() {
+        return expirations.get();
+    }
 
     /**
      * Get a page back from the cache.
      * @param pageURL the url of the page to be recived.
-     * @return the data for the page.
+     * @return the data for the page, copied onto the heap if it has been demoted.
      */
     public byte[] get(String pageURL) {
-        synchronized (CacheMap) {
-            //Try and find the page
-            CachedPage c = (CachedPage) CacheMap.get(pageURL);
-            if (c == null)
-                return null;
-            else {
-                //Update the last accessed attribute for the page
-                c.lastAccessed = System.currentTimeMillis();
-                return c.page;
+        CachedPage c = acquire(pageURL);
+        if (c == null)
+            return null;
+        try {
+            return c.isPartial() ? null : c.bytes();
+        } finally {
+            c.release();
+        }
+    }
+
+    /**
+     * Get a page back from the cache to write it out without copying, even if it is stale.
+     * The caller must call release on the page once it has been sent.
+     * @param pageURL the url of the page to be recived.
+     * @return the page, or null.
+     */
+    public CachedPage acquire(String pageURL) {
+        //Try and find the page
+        CachedPage c = CacheMap.get(pageURL);
+        if (c == null && (c = restore(pageURL)) == null)
+            return null;
+        if (wheel != null && deadline(c) <= System.currentTimeMillis()) {
+            //Expired but not yet reached by the wheel, remove it now unless that would mean waiting
+            if (lock.tryLock()) {
+                try {
+                    if (remove(c))
+                        expirations.incrementAndGet();
+                } finally {
+                    lock.unlock();
+                }
             }
+            return null;
         }
+        if (!c.acquire())
+            return null;
+        //Update the last accessed attribute for the page and give it a second chance
+        c.lastAccessed = System.currentTimeMillis();
+        c.referenced = true;
+        return c;
     }
 
+    /**
+     * Move a page from the snapshot into the cache, the first time it is asked for.
+     * @param pageURL the url of the page.
+     * @return the page, or null if it isn't in the snapshot.
+     */
+    private CachedPage restore(String pageURL) {
+        CacheSnapshot s = snapshot;
+        CachedPage c = s == null ? null : s.take(pageURL);
+        if (c == null)
+            return null;
+        put(c);
+        return c;
+    }
 
     /**
-     * Maintains the LRUMap.
+     * Keep the cache in a snapshot file, so a restarted proxy starts warm.
+     * The file is read on a background thread, pages are served from it as soon as its index has been read
+     * and those that have expired are skipped. It is written back every interval and when the JVM exits.
+     * @param file The snapshot file.
+     * @param interval The time in seconds between writing snapshots, 0 to only write one on exit.
      */
-    private void cleanup() {
-        //Get the current time
-        long now = System.currentTimeMillis();
-        ArrayList<String> deleteKey;
-        synchronized (CacheMap) {
-            //Make an iterator to loop over items stored int the LRUMap
-            MapIterator itr = CacheMap.mapIterator();
-            System.out.println("Preforming cleaning");
-            deleteKey = new ArrayList<>();
-            String pageURL;
-            CachedPage c;
-            while (itr.hasNext()) {
-                //Get the current page and check if it should be removed
-                pageURL = (String) itr.next();
-                c = (CachedPage) itr.getValue();
-                if (c != null && (now > (timeToLive + c.lastAccessed))) {
-                    //Add expired items to the delete array list.
-                    System.out.println("Removed: " + pageURL);
-                    deleteKey.add(pageURL);
+    public void persist(File file, long interval) {
+        Thread t = new Thread(() -> {
+            if (file.exists()) {
+                try {
+                    long now = System.currentTimeMillis();
+                    CacheSnapshot s = CacheSnapshot.open(file, c -> deadline(c) > now);
+                    snapshot = s;
+                    System.out.println("Cache snapshot read, " + s.size() + " pages");
+                } catch (IOException e) {
+                    System.out.println("Cache snapshot not read: " + e.getMessage());
+                }
+            }
+            restored = true;
+            while (interval > 0) {
+                try {
+                    Thread.sleep(interval * 1000);
+                } catch (InterruptedException ignored) {
                 }
+                save(file);
             }
+        }, "Cache snapshot");
+        //Does not prevent the JVM from exiting, the shutdown hook writes the last snapshot
+        t.setDaemon(true);
+        t.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> save(file)));
+    }
+
+    /**
+     * Write the pages that have not expired to a snapshot file.
+     * Pages of the snapshot the cache was started from that have not been asked for yet are kept.
+     * @param file The snapshot file.
+     */
+    public synchronized void save(File file) {
+        //Writing before the old snapshot is read would lose the pages in it
+        if (!restored)
+            return;
+        long now = System.currentTimeMillis();
+        List<CachedPage> pages = new ArrayList<>();
+        for (CachedPage c : CacheMap.values()) {
+            //The reference keeps off heap segments from being reused while they are written
+            //Parts of pages are only kept while the proxy runs
+            if (deadline(c) > now && !c.isPartial() && c.acquire())
+                pages.add(c);
         }
-        //Remove the items that are expired from the LRUMap
-        for (String pageURL : deleteKey) {
-            synchronized (CacheMap) {
-                CacheMap.remove(pageURL);
+        try {
+            CacheSnapshot.write(file, pages, snapshot, c -> !CacheMap.containsKey(c.url) && deadline(c) > now);
+        } catch (IOException e) {
+            System.out.println("Cache snapshot not written: " + e.getMessage());
+        } finally {
+            for (CachedPage c : pages)
+                c.release();
+        }
+    }
+
+    /**
+     * Remove a page, unless it has been replaced in the meantime. Call with the lock held.
+     * @param c The page.
+     * @return whether it was removed.
+     */
+    private boolean remove(CachedPage c) {
+        if (!CacheMap.remove(c.url, c))
+            return false;
+        discard(c);
+        return true;
+    }
+
+    /**
+     * Account for a page that is no longer in the map. Call with the lock held.
+     * @param c The page.
+     */
+    private void discard(CachedPage c) {
+        if (c.isHot())
+            bytes.addAndGet(-c.length);
+        else
+            coldBytes.addAndGet(-c.length);
+        //Its clock entry is skipped, and cleared out once there are enough of them
+        deadEntries++;
+        //Off heap segments are freed once the last reader is done
+        c.release();
+    }
+
+    /**
+     * Push pages off the heap until it is back under its max size. Call with the lock held.
+     * Pages used since the clock last passed them are moved to the back instead.
+     */
+    private void evict() {
+        CachedPage c;
+        while ((CacheMap.size() > maxItems || bytes.get() > maxBytes) && (c = clock.poll()) != null) {
+            if (CacheMap.get(c.url) != c || !c.isHot())
+                //The page was replaced, has expired or was demoted
+                continue;
+            if (c.referenced) {
+                c.referenced = false;
+                clock.add(c);
+            } else if (store != null && CacheMap.size() <= maxItems && !c.isPartial() && makeRoom(c.length) && c.demote(store)) {
+                bytes.addAndGet(-c.length);
+                coldBytes.addAndGet(c.length);
+                coldClock.add(c);
+            } else if (remove(c)) {
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Remove pages from the off heap store until a page of some size would fit. Call with the lock held.
+     * @param length The size of the page.
+     * @return whether there is room.
+     */
+    private boolean makeRoom(int length) {
+        CachedPage c;
+        while (!store.fits(length)) {
+            if ((c = coldClock.poll()) == null)
+                return false;
+            if (CacheMap.get(c.url) != c)
+                continue;
+            if (c.referenced) {
+                c.referenced = false;
+                coldClock.add(c);
+            } else if (remove(c)) {
+                evictions.incrementAndGet();
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * The time a page expires: once it has been unused for the time to live,
+     * or once it is stale if it can't be revalidated.
+     * @param c The page.
+     * @return the time.
+     */
+    private long deadline(CachedPage c) {
+        long unused = c.lastAccessed + timeToLive;
+        return c.hasValidators() ? unused : Math.min(unused, c.expires);
+    }
+
+    /**
+     * Removes the pages the timing wheel has found expired, taking the lock once for all of them.
+     * Lookups never wait for this, and the work done is in proportion to the pages that were due.
+     */
+    private void cleanup() {
+        List<CachedPage> expired = wheel.advance(System.currentTimeMillis(), this::deadline);
+        if (expired.isEmpty())
+            return;
+        lock.lock();
+        try {
+            //Pages that have been replaced are skipped by remove
+            for (CachedPage c : expired) {
+                if (remove(c))
+                    expirations.incrementAndGet();
+            }
+            //Clear out the clock entries of removed pages once they outnumber the pages
+            if (deadEntries > CacheMap.size()) {
+                clock.removeIf(c -> CacheMap.get(c.url) != c);
+                coldClock.removeIf(c -> CacheMap.get(c.url) != c);
+                deadEntries = 0;
             }
-            Thread.yield();
+        } finally {
+            lock.unlock();
         }
     }
 }
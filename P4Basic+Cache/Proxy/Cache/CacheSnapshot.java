@@ -0,0 +1,337 @@
+package Proxy.Cache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * A copy of the cache on disk, so a restarted proxy starts with the pages it had.
+ * The file holds the page bodies one after another, then an index of the pages, then the position of the index.
+ * Only the index is read back, the bodies stay in a read only mapping of the file until a page is first asked for.
+ */
+class CacheSnapshot {
+
+    /**
+     * Ends every snapshot file, "PXC2".
+     */
+    private static final int MAGIC = 0x50584332;
+    /**
+     * Size of the position of the index and the magic number at the end of the file.
+     */
+    private static final int FOOTER_SIZE = 12;
+    /**
+     * Size of one mapped region, a body never crosses from one region to the next.
+     */
+    private static final long REGION_SIZE = 1L << 30;
+
+    /**
+     * The mapped regions of the file up to the index.
+     */
+    private final MappedByteBuffer[] regions;
+    /**
+     * The pages not yet asked for, by url.
+     */
+    private final Map<String, Entry> entries;
+
+    /**
+     * Constructor.
+     *
+     * @param regions the mapped regions of the file.
+     * @param entries the pages in the file.
+     */
+    private CacheSnapshot(MappedByteBuffer[] regions, Map<String, Entry> entries) {
+        this.regions = regions;
+        this.entries = entries;
+    }
+
+    /**
+     * Map a snapshot file and read its index.
+     *
+     * @param file the file.
+     * @param live whether a page is still worth having, the others are skipped.
+     * @return the snapshot.
+     * @throws IOException if the file can't be read or isn't a snapshot.
+     */
+    static CacheSnapshot open(File file, Predicate<CachedPage> live) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < FOOTER_SIZE + 4)
+                throw new IOException("Not a cache snapshot: " + file);
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            while (footer.hasRemaining()) {
+                if (channel.read(footer, size - footer.remaining()) < 0)
+                    throw new IOException("Not a cache snapshot: " + file);
+            }
+            footer.flip();
+            long index = footer.getLong();
+            if (footer.getInt() != MAGIC || index < 0 || index > size - FOOTER_SIZE)
+                throw new IOException("Not a cache snapshot: " + file);
+            MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((index + REGION_SIZE - 1) / REGION_SIZE)];
+            for (int i = 0; i < regions.length; i++) {
+                long start = i * REGION_SIZE;
+                //Mappings stay valid after the channel is closed, and after the file is replaced
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, index - start));
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(index))));
+            int count = in.readInt();
+            Map<String, Entry> entries = new ConcurrentHashMap<>();
+            for (int i = 0; i < count; i++) {
+                Entry entry = Entry.read(in);
+                long end = entry.offset % REGION_SIZE + entry.page.length;
+                if (entry.offset < 0 || entry.offset + entry.page.length > index || end > REGION_SIZE)
+                    throw new IOException("Broken cache snapshot: " + file);
+                if (live.test(entry.page))
+                    entries.put(entry.page.url, entry);
+            }
+            return new CacheSnapshot(regions, entries);
+        }
+    }
+
+    /**
+     * @return the number of pages not yet asked for.
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Take a page out of the snapshot, copying its body onto the heap in chunks.
+     *
+     * @param url the url of the page.
+     * @return the page, or null if it isn't in the snapshot or has already been taken.
+     */
+    CachedPage take(String url) {
+        Entry entry = entries.remove(url);
+        if (entry == null)
+            return null;
+        ByteBuffer body = body(entry);
+        byte[][] chunks = new byte[(entry.page.length + CachedPage.CHUNK_SIZE - 1) / CachedPage.CHUNK_SIZE][];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = new byte[Math.min(CachedPage.CHUNK_SIZE, body.remaining())];
+            body.get(chunks[i]);
+        }
+        entry.page.chunks = chunks;
+        return entry.page;
+    }
+
+    /**
+     * Forget a page, once a newer copy has been stored.
+     *
+     * @param url the url of the page.
+     */
+    void remove(String url) {
+        entries.remove(url);
+    }
+
+    /**
+     * Get the body of a page from the mapping.
+     *
+     * @param entry the page.
+     * @return a buffer with its own position and limit.
+     */
+    private ByteBuffer body(Entry entry) {
+        int offset = (int) (entry.offset % REGION_SIZE);
+        ByteBuffer buffer = regions[(int) (entry.offset / REGION_SIZE)].duplicate();
+        buffer.position(offset).limit(offset + entry.page.length);
+        return buffer.slice();
+    }
+
+    /**
+     * Write a snapshot, to a file next to it first so a crash never leaves half a snapshot behind.
+     *
+     * @param file the file.
+     * @param pages the pages in the cache, which the caller holds a reference to.
+     * @param previous the snapshot the cache was started from, its pages not yet asked for are kept, may be null.
+     * @param keep whether a page of the previous snapshot is still worth having.
+     * @return the number of pages written.
+     * @throws IOException if the snapshot can't be written.
+     */
+    static int write(File file, List<CachedPage> pages, CacheSnapshot previous, Predicate<CachedPage> keep) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        DataOutputStream index = new DataOutputStream(indexBytes);
+        int count = 0;
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            for (CachedPage page : pages) {
+                if (page.length <= REGION_SIZE) {
+                    position = write(channel, position, page.body(), page, index);
+                    count++;
+                }
+            }
+            if (previous != null) {
+                for (Entry entry : previous.entries.values()) {
+                    if (keep.test(entry.page)) {
+                        position = write(channel, position, new ByteBuffer[]{previous.body(entry)}, entry.page, index);
+                        count++;
+                    }
+                }
+            }
+            ByteBuffer end = ByteBuffer.allocate(4 + index.size() + FOOTER_SIZE);
+            end.putInt(count).put(indexBytes.toByteArray()).putLong(position).putInt(MAGIC).flip();
+            while (end.hasRemaining())
+                position += channel.write(end, position);
+            channel.force(true);
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return count;
+    }
+
+    /**
+     * Write the body of a page and add it to the index.
+     *
+     * @param channel the file being written.
+     * @param position where the last body ended.
+     * @param body the body.
+     * @param page the page.
+     * @param index the index being built.
+     * @return where the body ended.
+     * @throws IOException if the body can't be written.
+     */
+    private static long write(FileChannel channel, long position, ByteBuffer[] body, CachedPage page, DataOutput index) throws IOException {
+        //Start the body in the next region rather than let it cross into it
+        if (position % REGION_SIZE + page.length > REGION_SIZE)
+            position += REGION_SIZE - position % REGION_SIZE;
+        new Entry(page, position).write(index);
+        for (ByteBuffer buffer : body) {
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+        }
+        return position;
+    }
+
+    /**
+     * Read a string written with writeString.
+     *
+     * @param in where to read it from.
+     * @return the string, may be null.
+     * @throws IOException if it can't be read.
+     */
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a string of any length as its size and UTF-8 bytes.
+     *
+     * @param out where to write it.
+     * @param value the string, may be null.
+     * @throws IOException if it can't be written.
+     */
+    static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * A page in the index, its body is filled in when it is taken.
+     */
+    private static class Entry {
+
+        /**
+         * The page.
+         */
+        final CachedPage page;
+        /**
+         * Where the body starts in the file.
+         */
+        final long offset;
+
+        /**
+         * Constructor.
+         *
+         * @param page the page.
+         * @param offset where the body starts in the file.
+         */
+        Entry(CachedPage page, long offset) {
+            this.page = page;
+            this.offset = offset;
+        }
+
+        /**
+         * Read an entry of the index.
+         *
+         * @param in the index.
+         * @return the entry.
+         * @throws IOException if the index is broken.
+         */
+        static Entry read(DataInput in) throws IOException {
+            String url = readString(in);
+            long offset = in.readLong();
+            int length = in.readInt();
+            long expires = in.readLong();
+            long lastAccessed = in.readLong();
+            boolean gzipped = in.readBoolean();
+            int plainLength = in.readInt();
+            ResponseHead head = in.readBoolean() ? ResponseHead.load(in) : null;
+            String[] varied = null;
+            int count = in.readInt();
+            if (count >= 0) {
+                varied = new String[count];
+                for (int i = 0; i < count; i++)
+                    varied[i] = readString(in);
+            }
+            if (url == null || length < 0 || plainLength < 0 || gzipped && head == null)
+                throw new IOException("Broken cache snapshot index");
+            CachedPage page = new CachedPage(url, head, varied, null, length, expires, gzipped, plainLength);
+            page.lastAccessed = lastAccessed;
+            return new Entry(page, offset);
+        }
+
+        /**
+         * Write the entry to the index.
+         *
+         * @param out the index.
+         * @throws IOException if it can't be written.
+         */
+        void write(DataOutput out) throws IOException {
+            writeString(out, page.url);
+            out.writeLong(offset);
+            out.writeInt(page.length);
+            out.writeLong(page.expires);
+            out.writeLong(page.lastAccessed);
+            out.writeBoolean(page.gzipped);
+            out.writeInt(page.plainLength);
+            out.writeBoolean(page.head != null);
+            if (page.head != null)
+                page.head.save(out);
+            out.writeInt(page.varied == null ? -1 : page.varied.length);
+            if (page.varied != null) {
+                for (String value : page.varied)
+                    writeString(out, value);
+            }
+        }
+    }
+}
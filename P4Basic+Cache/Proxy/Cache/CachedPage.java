@@ -1,24 +1,617 @@
 package Proxy.Cache;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
 /**
  * Represents website stored in cache.
+ * The body is kept in fixed size chunks, either on the heap or, once demoted, in segments of the off heap store,
+ * so any part of it can be sent without copying. Large pages asked for in parts may have only some chunks stored.
+ * Text pages are stored gzip compressed, sent as they are to clients that accept gzip and decompressed for the rest.
  */
-class CachedPage {
+public class CachedPage {
+
+    /**
+     * Size of one chunk of the body, the last one may be shorter.
+     */
+    public static final int CHUNK_SIZE = OffHeapStore.SEGMENT_SIZE;
+    /**
+     * Pages smaller than this are not worth compressing.
+     */
+    private static final int MIN_COMPRESS = 256;
+
+    /**
+     * The url the page is stored under.
+     */
+    final String url;
+    /**
+     * The size of the page in bytes as stored.
+     */
+    final int length;
+    /**
+     * Whether the body is stored gzip compressed, and its size before it was.
+     */
+    final boolean gzipped;
+    final int plainLength;
+    /**
+     * The size of the whole page as the target machine sent it, larger than what is stored if only parts of it are.
+     */
+    final long total;
+    /**
+     * The status line and headers sent before the body, null for a bare body.
+     */
+    final ResponseHead head;
+    /**
+     * The head framed for connections kept alive and for connections closed after the page, built when first needed.
+     */
+    private volatile byte[] keepAliveHead;
+    private volatile byte[] closeHead;
+    /**
+     * The head sent with the compressed body and with the decompressed body, built when first needed.
+     */
+    private volatile ResponseHead gzipHead;
+    private volatile ResponseHead plainHead;
+    /**
+     * The values of the request headers named by the Vary header when the page was fetched.
+     */
+    final String[] varied;
+    /**
+     * The time the page stops being fresh and has to be revalidated.
+     */
+    final long expires;
+    /**
+     * The time the page was last accessed and the chunks of the page, null once demoted. Chunks not stored are null.
+     */
+    volatile long lastAccessed = System.currentTimeMillis();
+    volatile byte[][] chunks;
+    /**
+     * The store and segments holding the page once demoted.
+     */
+    private volatile OffHeapStore store;
+    private volatile int[] segments;
+    /**
+     * Whether the page has been used since the eviction clock last passed it.
+     */
+    volatile boolean referenced;
+    /**
+     * Readers of the page plus one for the cache, the body is let go when it reaches zero.
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
 
     /**
-     * The time the page was last accessed and the data for the page.
+     * Constructor.
+     *
+     * @param url the url the page is stored under.
+     * @param head the status line and headers, may be null.
+     * @param varied the request header values named by the Vary header, may be null.
+     * @param chunks the web page to be saved.
+     * @param length the total size of the chunks.
+     * @param expires the time the page stops being fresh.
      */
-    long lastAccessed = System.currentTimeMillis();
-    byte[] page;
+    CachedPage(String url, ResponseHead head, String[] varied, byte[][] chunks, int length, long expires) {
+        this(url, head, varied, chunks, length, expires, false, length);
+    }
 
     /**
      * Constructor.
      *
-     * @param page the web page to be saved.
+     * @param url the url the page is stored under.
+     * @param head the status line and headers, may be null.
+     * @param varied the request header values named by the Vary header, may be null.
+     * @param chunks the web page to be saved.
+     * @param length the total size of the chunks.
+     * @param expires the time the page stops being fresh.
+     * @param gzipped whether the chunks are gzip compressed.
+     * @param plainLength the size of the page before it was compressed.
+     */
+    CachedPage(String url, ResponseHead head, String[] varied, byte[][] chunks, int length, long expires, boolean gzipped, int plainLength) {
+        this.url = url;
+        this.head = head;
+        this.varied = varied;
+        this.chunks = chunks;
+        this.length = length;
+        this.expires = expires;
+        this.gzipped = gzipped;
+        this.plainLength = plainLength;
+        total = plainLength;
+    }
+
+    /**
+     * Constructor for a page only some chunks of which may be stored.
+     *
+     * @param url the url the page is stored under.
+     * @param head the status line and headers of the whole page.
+     * @param varied the request header values named by the Vary header, may be null.
+     * @param chunks a chunk for every chunk of the whole page, null for those not stored.
+     * @param length the total size of the chunks stored.
+     * @param expires the time the page stops being fresh.
+     * @param total the size of the whole page.
+     */
+    CachedPage(String url, ResponseHead head, String[] varied, byte[][] chunks, int length, long expires, long total) {
+        this.url = url;
+        this.head = head;
+        this.varied = varied;
+        this.chunks = chunks;
+        this.length = length;
+        this.expires = expires;
+        gzipped = false;
+        plainLength = length;
+        this.total = total;
+    }
+
+    /**
+     * Split a body into chunks.
+     *
+     * @param body the body.
+     * @param length the size of the body.
+     * @return the chunks, the body itself if it fits in one.
+     */
+    static byte[][] split(byte[] body, int length) {
+        if (length <= CHUNK_SIZE && body.length == length)
+            return new byte[][]{body};
+        byte[][] chunks = new byte[(length + CHUNK_SIZE - 1) / CHUNK_SIZE][];
+        for (int i = 0; i < chunks.length; i++)
+            chunks[i] = Arrays.copyOfRange(body, i * CHUNK_SIZE, Math.min(length, (i + 1) * CHUNK_SIZE));
+        return chunks;
+    }
+
+    /**
+     * Make a page, compressing it if it is text and that makes it smaller.
+     *
+     * @param url the url the page is stored under.
+     * @param head the status line and headers.
+     * @param varied the request header values named by the Vary header, may be null.
+     * @param chunks the web page as the target machine sent it.
+     * @param length the total size of the chunks.
+     * @param expires the time the page stops being fresh.
+     * @return the page.
+     */
+    static CachedPage compress(String url, ResponseHead head, String[] varied, byte[][] chunks, int length, long expires) {
+        if (length < MIN_COMPRESS || !head.isCompressible())
+            return new CachedPage(url, head, varied, chunks, length, expires);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 4);
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed, 8192)) {
+            for (byte[] chunk : chunks)
+                out.write(chunk);
+        } catch (IOException e) {
+            //Can't happen writing to memory
+            throw new UncheckedIOException(e);
+        }
+        if (compressed.size() >= length)
+            return new CachedPage(url, head, varied, chunks, length, expires);
+        return new CachedPage(url, head, varied, split(compressed.toByteArray(), compressed.size()), compressed.size(), expires, true, length);
+    }
+
+    /**
+     * Check if a client takes gzip compressed responses.
+     *
+     * @param acceptEncoding the client's Accept-Encoding header, may be null.
+     * @return whether gzip is listed, or any coding is, without q=0.
+     */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return false;
+        boolean any = false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase(Locale.ROOT);
+            boolean accepted = true;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim().toLowerCase(Locale.ROOT);
+                if (param.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(param.substring(2).trim()) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            //An explicit gzip entry wins over a wildcard
+            if (coding.equals("gzip") || coding.equals("x-gzip"))
+                return accepted;
+            if (coding.equals("*"))
+                any = accepted;
+        }
+        return any;
+    }
+
+    /**
+     * @return the size of the page in bytes as stored.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Get the size of the body sent to a client.
+     *
+     * @param gzip whether the client takes gzip compressed responses.
+     * @return the size in bytes.
+     */
+    public int length(boolean gzip) {
+        return gzipped && !gzip ? plainLength : length;
+    }
+
+    /**
+     * @return the size of the whole page as the target machine sent it.
+     */
+    public long total() {
+        return total;
+    }
+
+    /**
+     * @return the status line and headers, null for a bare body.
+     */
+    public ResponseHead head() {
+        return head;
+    }
+
+    /**
+     * @return whether only some chunks of the page are stored.
+     */
+    public boolean isPartial() {
+        return !gzipped && length < total;
+    }
+
+    /**
+     * Check if the page can answer a request without asking the target machine for the rest of it.
+     *
+     * @param range the part of the page asked for, null for the whole page.
+     * @return whether every chunk the request needs is stored.
+     */
+    public boolean canAnswer(ByteRange range) {
+        if (!isPartial())
+            return true;
+        return range != null && (!range.isSatisfiable(total) || has(range.first(total), range.last(total)));
+    }
+
+    /**
+     * Check if part of the page is stored.
+     *
+     * @param first the first byte.
+     * @param last the last byte.
+     * @return whether every chunk holding the bytes is stored.
+     */
+    public boolean has(long first, long last) {
+        byte[][] c = chunks;
+        if (c == null)
+            return true;
+        for (int i = (int) (first / CHUNK_SIZE); i <= last / CHUNK_SIZE; i++) {
+            if (c[i] == null)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Find the chunks missing from part of the page.
+     *
+     * @param first the first byte.
+     * @param last the last byte.
+     * @return the first byte of the first chunk missing and the last byte of the last, or null if none are.
+     */
+    public long[] missing(long first, long last) {
+        byte[][] c = chunks;
+        if (c == null)
+            return null;
+        int from = -1;
+        int to = -1;
+        for (int i = (int) (first / CHUNK_SIZE); i <= last / CHUNK_SIZE; i++) {
+            if (c[i] == null) {
+                if (from < 0)
+                    from = i;
+                to = i;
+            }
+        }
+        if (from < 0)
+            return null;
+        return new long[]{(long) from * CHUNK_SIZE, Math.min((long) (to + 1) * CHUNK_SIZE, total) - 1};
+    }
+
+    /**
+     * @return the strong validator naming this version of the page, for If-Range, or null if there is none.
+     */
+    public String validator() {
+        return head == null ? null : validator(head);
+    }
+
+    /**
+     * Get the strong validator of a response.
+     *
+     * @param head the status line and headers.
+     * @return the ETag unless it is weak, otherwise the Last-Modified date if there is no ETag, or null.
+     */
+    public static String validator(ResponseHead head) {
+        String etag = head.header("ETag");
+        if (etag != null)
+            return etag.trim().startsWith("W/") ? null : etag.trim();
+        String lastModified = head.header("Last-Modified");
+        return lastModified == null ? null : lastModified.trim();
+    }
+
+    /**
+     * Check an If-Range header, a client whose copy is of another version is sent the whole page.
+     *
+     * @param ifRange the If-Range header, may be null.
+     * @return whether the range may be sent.
+     */
+    public boolean matchesIfRange(String ifRange) {
+        return ifRange == null || ifRange.trim().equals(validator());
+    }
+
+    /**
+     * Add the chunks of another copy of the page to the chunks stored.
+     *
+     * @param parts the other copy, newer than this one.
+     * @return the page with the chunks of both, or null if the copies aren't of the same version.
+     */
+    CachedPage merge(CachedPage parts) {
+        String validator = validator();
+        if (!isPartial() || parts.total != total || validator == null || !validator.equals(parts.validator())
+                || !Arrays.equals(varied, parts.varied))
+            return null;
+        byte[][] merged = chunks.clone();
+        int stored = length;
+        for (int i = 0; i < merged.length; i++) {
+            if (merged[i] == null && parts.chunks[i] != null) {
+                merged[i] = parts.chunks[i];
+                stored += merged[i].length;
+            }
+        }
+        return new CachedPage(url, parts.head, parts.varied, merged, stored, parts.expires, total);
+    }
+
+    /**
+     * Get the response as buffers that can be written straight to a socket.
+     *
+     * @param keepAlive whether the connection stays open after the page.
+     * @param gzip whether the client takes gzip compressed responses, a compressed page is decompressed if not.
+     * @return the head followed by the body, one buffer per segment if it has been demoted.
+     */
+    public ByteBuffer[] buffers(boolean keepAlive, boolean gzip) {
+        if (gzipped && !gzip)
+            return new ByteBuffer[]{ByteBuffer.wrap(plainHead().bytes(keepAlive, plainLength, false)), ByteBuffer.wrap(bytes())};
+        ByteBuffer[] body = body();
+        if (head == null)
+            return body;
+        ByteBuffer[] buffers = new ByteBuffer[body.length + 1];
+        buffers[0] = ByteBuffer.wrap(head(keepAlive));
+        System.arraycopy(body, 0, buffers, 1, body.length);
+        return buffers;
+    }
+
+    /**
+     * Get part of the response as buffers that can be written straight to a socket, a 206 or a 416 if none of it is in the page.
+     * A compressed page is sent decompressed, ranges are of the page as the target machine sent it.
+     *
+     * @param keepAlive whether the connection stays open after the page.
+     * @param range the part of the page asked for.
+     * @return the head followed by the part of the body, one buffer per chunk.
      */
-    CachedPage(byte[] page) {
-        this.page = page;
+    public ByteBuffer[] buffers(boolean keepAlive, ByteRange range) {
+        ResponseHead h = gzipped ? plainHead() : head;
+        long length = range.length(total);
+        ByteBuffer partHead = ByteBuffer.wrap(h.ranged(range.status(total), range.contentRange(total)).bytes(keepAlive, length, false));
+        if (length == 0)
+            return new ByteBuffer[]{partHead};
+        long first = range.first(total);
+        ByteBuffer[] body = gzipped ? new ByteBuffer[]{ByteBuffer.wrap(bytes(), (int) first, (int) length)}
+                : slice(first, first + length - 1);
+        ByteBuffer[] buffers = new ByteBuffer[body.length + 1];
+        buffers[0] = partHead;
+        System.arraycopy(body, 0, buffers, 1, body.length);
+        return buffers;
     }
 
+    /**
+     * Get part of the body as stored, which must be in stored chunks.
+     *
+     * @param first the first byte.
+     * @param last the last byte.
+     * @return one buffer per chunk, with their own positions and limits.
+     */
+    public ByteBuffer[] slice(long first, long last) {
+        int from = (int) (first / CHUNK_SIZE);
+        int to = (int) (last / CHUNK_SIZE);
+        byte[][] c = chunks;
+        ByteBuffer[] stored = c == null ? store.read(segments, length) : null;
+        ByteBuffer[] buffers = new ByteBuffer[to - from + 1];
+        for (int i = from; i <= to; i++)
+            buffers[i - from] = c != null ? ByteBuffer.wrap(c[i]) : stored[i];
+        //The limit first, so the position is never past it when both are in one chunk
+        buffers[buffers.length - 1].limit((int) (last - (long) to * CHUNK_SIZE) + 1);
+        buffers[0].position((int) (first - (long) from * CHUNK_SIZE));
+        return buffers;
+    }
 
+    /**
+     * @return the head sent with the decompressed body of a compressed page.
+     */
+    private ResponseHead plainHead() {
+        if (plainHead == null)
+            plainHead = head.encoded(null);
+        return plainHead;
+    }
+
+    /**
+     * Get the head framed with the length of the page.
+     *
+     * @param keepAlive whether the connection stays open after the page.
+     * @return the head bytes.
+     */
+    private byte[] head(boolean keepAlive) {
+        byte[] b = keepAlive ? keepAliveHead : closeHead;
+        if (b == null) {
+            ResponseHead h = head;
+            if (gzipped) {
+                if (gzipHead == null)
+                    gzipHead = head.encoded("gzip");
+                h = gzipHead;
+            }
+            b = h.bytes(keepAlive, length, false);
+            if (keepAlive)
+                keepAliveHead = b;
+            else
+                closeHead = b;
+        }
+        return b;
+    }
+
+    /**
+     * @return the body, one buffer per segment if it has been demoted.
+     */
+    ByteBuffer[] body() {
+        byte[][] c = chunks;
+        if (c == null)
+            return store.read(segments, length);
+        ByteBuffer[] buffers = new ByteBuffer[c.length];
+        for (int i = 0; i < c.length; i++)
+            buffers[i] = ByteBuffer.wrap(c[i]);
+        return buffers;
+    }
+
+    /**
+     * Copy the body into a new array, decompressing it if it was compressed for the cache.
+     *
+     * @return the body as the target machine sent it.
+     */
+    public byte[] bytes() {
+        if (gzipped)
+            return decompress();
+        byte[][] c = chunks;
+        if (c != null && c.length == 1)
+            return c[0];
+        return copy(body());
+    }
+
+    /**
+     * @return the body of a compressed page as the target machine sent it.
+     */
+    private byte[] decompress() {
+        byte[][] c = chunks;
+        byte[] stored = c != null && c.length == 1 ? c[0] : copy(body());
+        byte[] plain = new byte[plainLength];
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(stored), 8192)) {
+            int offset = 0;
+            int n;
+            while (offset < plainLength && (n = in.read(plain, offset, plainLength - offset)) > 0)
+                offset += n;
+        } catch (IOException e) {
+            //The cache compressed it itself, so it can only be broken by a bug
+            throw new UncheckedIOException(e);
+        }
+        return plain;
+    }
+
+    /**
+     * Copy the body as stored into one array.
+     *
+     * @param buffers the body.
+     * @return the bytes.
+     */
+    private byte[] copy(ByteBuffer[] buffers) {
+        byte[] copy = new byte[length];
+        int offset = 0;
+        for (ByteBuffer buffer : buffers) {
+            int n = buffer.remaining();
+            buffer.get(copy, offset, n);
+            offset += n;
+        }
+        return copy;
+    }
+
+    /**
+     * @return whether the page can be sent without asking the target machine.
+     */
+    public boolean isFresh() {
+        return System.currentTimeMillis() < expires;
+    }
+
+    /**
+     * @return whether a stale copy can be revalidated rather than fetched again.
+     */
+    public boolean hasValidators() {
+        return head != null && head.hasValidators();
+    }
+
+    /**
+     * Check if the page was fetched for a request like this one, going by the Vary header.
+     *
+     * @param request looks up a request header by name.
+     * @return whether the page can answer the request.
+     */
+    public boolean matches(Function<String, String> request) {
+        if (varied == null)
+            return true;
+        String[] vary = head.varyNames();
+        for (int i = 0; i < vary.length; i++) {
+            if (!Objects.equals(varied[i], request.apply(vary[i])))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the page is on the heap.
+     */
+    boolean isHot() {
+        return chunks != null;
+    }
+
+    /**
+     * Move the body to the off heap store.
+     *
+     * @param store the store.
+     * @return false if the store has no room.
+     */
+    boolean demote(OffHeapStore store) {
+        //The segments are packed, so chunks missing from a page can't be left out
+        if (isPartial())
+            return false;
+        int[] stored = store.store(chunks, length);
+        if (stored == null)
+            return false;
+        this.store = store;
+        segments = stored;
+        //Readers that see no heap page will find the segments
+        chunks = null;
+        return true;
+    }
+
+    /**
+     * Take a reference so the body can't be freed while it is being sent.
+     *
+     * @return false if the page has already been freed.
+     */
+    boolean acquire() {
+        int count;
+        do {
+            count = references.get();
+            if (count == 0)
+                return false;
+        } while (!references.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    /**
+     * Drop a reference taken with acquire, or the cache's own reference when the page is removed.
+     * Once the last one is dropped the body is let go, the timing wheel and clock may still hold the page until they pass it.
+     */
+    public void release() {
+        if (references.decrementAndGet() != 0)
+            return;
+        if (segments != null)
+            store.free(segments);
+        chunks = null;
+    }
 }
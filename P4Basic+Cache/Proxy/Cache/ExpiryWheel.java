@@ -0,0 +1,106 @@
+package Proxy.Cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+
+/**
+ * Hashed timing wheel holding each cached page in the slot for the time it may expire.
+ * Every tick only the pages in the slots that have come round are looked at, so expiring
+ * pages costs O(1) a page rather than a scan of the whole cache.
+ * A page used since it was scheduled is moved on to its new time when its slot comes round.
+ */
+class ExpiryWheel {
+
+    /**
+     * Pages waiting in each slot, one slot a tick.
+     */
+    private final List<Queue<CachedPage>> slots = new ArrayList<>();
+    /**
+     * Number of slots less one, the slots are a power of two.
+     */
+    private final int mask;
+    /**
+     * Milliseconds in a tick.
+     */
+    private final long tick;
+    /**
+     * Guards the current tick, so a page is never added to a slot that has just been emptied.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * The last tick whose slot has been looked at.
+     */
+    private long current;
+
+    /**
+     * Constructor.
+     *
+     * @param tick milliseconds in a tick.
+     * @param horizon milliseconds ahead most pages are scheduled, the wheel is sized so they are looked at once.
+     */
+    ExpiryWheel(long tick, long horizon) {
+        this.tick = tick;
+        //At most 4096 slots, pages further ahead stay in their slot for more than one turn
+        int size = Integer.highestOneBit((int) Math.min(4096, Math.max(64, horizon / tick + 1)) * 2 - 1);
+        for (int i = 0; i < size; i++)
+            slots.add(new ConcurrentLinkedQueue<>());
+        mask = size - 1;
+        current = System.currentTimeMillis() / tick;
+    }
+
+    /**
+     * Add a page, safe to call from any thread.
+     *
+     * @param page the page.
+     * @param deadline the time the page may expire.
+     */
+    void schedule(CachedPage page, long deadline) {
+        lock.lock();
+        try {
+            //Round up so a page is never looked at before it is due
+            long due = Math.max((deadline + tick - 1) / tick, current + 1);
+            slots.get((int) (due & mask)).add(page);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Turn the wheel up to the present, only called by the expiring thread.
+     *
+     * @param now the current time.
+     * @param deadline works out the time a page may now expire.
+     * @return the pages whose time has come.
+     */
+    List<CachedPage> advance(long now, ToLongFunction<CachedPage> deadline) {
+        List<CachedPage> expired = new ArrayList<>();
+        List<CachedPage> later = new ArrayList<>();
+        long last = now / tick;
+        lock.lock();
+        try {
+            //Once round the wheel covers every slot after a long pause
+            long from = Math.max(current + 1, last - mask);
+            for (long t = from; t <= last; t++) {
+                Queue<CachedPage> slot = slots.get((int) (t & mask));
+                CachedPage page;
+                while ((page = slot.poll()) != null) {
+                    if (deadline.applyAsLong(page) <= now)
+                        expired.add(page);
+                    else
+                        later.add(page);
+                }
+                current = t;
+            }
+        } finally {
+            lock.unlock();
+        }
+        //Moved on after the slots are emptied so a page isn't looked at twice in one go
+        for (CachedPage page : later)
+            schedule(page, deadline.applyAsLong(page));
+        return expired;
+    }
+}
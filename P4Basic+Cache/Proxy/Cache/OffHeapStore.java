@@ -0,0 +1,186 @@
+package Proxy.Cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Second cache tier, page bodies kept outside the heap in a memory mapped file.
+ * The file is split into fixed size segments, a page uses as many as it needs.
+ */
+public class OffHeapStore {
+
+    /**
+     * Size of one segment in bytes.
+     */
+    static final int SEGMENT_SIZE = 64 * 1024;
+    /**
+     * Segments in one mapped region, a single mapping can't be larger than 2 GB.
+     */
+    private static final int SEGMENTS_PER_REGION = 16 * 1024;
+
+    /**
+     * The mapped regions of the file.
+     */
+    private final MappedByteBuffer[] regions;
+    /**
+     * Stack of the free segment numbers.
+     */
+    private final int[] free;
+    /**
+     * Number of free segments.
+     */
+    private int freeCount;
+    /**
+     * Guards the free stack.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Constructor.
+     *
+     * @param regions the mapped regions of the file.
+     * @param segments the number of segments.
+     */
+    private OffHeapStore(MappedByteBuffer[] regions, int segments) {
+        this.regions = regions;
+        free = new int[segments];
+        //Hand out the low segments first
+        for (int i = 0; i < segments; i++)
+            free[i] = segments - 1 - i;
+        freeCount = segments;
+    }
+
+    /**
+     * Map a file to store pages in.
+     *
+     * @param file the file, created or resized as needed.
+     * @param capacity the size of the store in bytes.
+     * @return the store.
+     * @throws IOException if the file can't be mapped.
+     */
+    public static OffHeapStore map(File file, long capacity) throws IOException {
+        int segments = (int) Math.min(capacity / SEGMENT_SIZE, Integer.MAX_VALUE);
+        MappedByteBuffer[] regions = new MappedByteBuffer[(segments + SEGMENTS_PER_REGION - 1) / SEGMENTS_PER_REGION];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength((long) segments * SEGMENT_SIZE);
+            FileChannel channel = raf.getChannel();
+            for (int i = 0; i < regions.length; i++) {
+                long start = (long) i * SEGMENTS_PER_REGION * SEGMENT_SIZE;
+                long size = Math.min((long) SEGMENTS_PER_REGION * SEGMENT_SIZE, (long) segments * SEGMENT_SIZE - start);
+                //Mappings stay valid after the channel is closed
+                regions[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+            }
+        }
+        return new OffHeapStore(regions, segments);
+    }
+
+    /**
+     * Store a page body.
+     *
+     * @param chunks the body, in pieces of any size.
+     * @param length the total size of the pieces.
+     * @return the segments holding it, or null if there aren't enough free.
+     */
+    int[] store(byte[][] chunks, int length) {
+        int[] segments = allocate((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        if (segments == null)
+            return null;
+        //Pack the pieces into the segments one after another
+        int segment = 0;
+        ByteBuffer buffer = null;
+        for (byte[] chunk : chunks) {
+            int offset = 0;
+            while (offset < chunk.length) {
+                if (buffer == null || !buffer.hasRemaining())
+                    buffer = segment(segments[segment++], SEGMENT_SIZE);
+                int count = Math.min(buffer.remaining(), chunk.length - offset);
+                buffer.put(chunk, offset, count);
+                offset += count;
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Get views of a stored page that can be written straight to a socket.
+     *
+     * @param segments the segments holding the page.
+     * @param length the size of the page.
+     * @return one buffer per segment.
+     */
+    ByteBuffer[] read(int[] segments, int length) {
+        ByteBuffer[] buffers = new ByteBuffer[segments.length];
+        for (int i = 0; i < segments.length; i++)
+            buffers[i] = segment(segments[i], Math.min(SEGMENT_SIZE, length - i * SEGMENT_SIZE));
+        return buffers;
+    }
+
+    /**
+     * Get a view of the start of a segment.
+     *
+     * @param segment the segment number.
+     * @param length the number of bytes wanted.
+     * @return a buffer with its own position and limit.
+     */
+    private ByteBuffer segment(int segment, int length) {
+        int offset = (segment % SEGMENTS_PER_REGION) * SEGMENT_SIZE;
+        ByteBuffer buffer = regions[segment / SEGMENTS_PER_REGION].duplicate();
+        buffer.position(offset).limit(offset + length);
+        return buffer.slice();
+    }
+
+    /**
+     * Check if a page would fit with the segments that are free now.
+     *
+     * @param length the size of the page.
+     * @return whether there are enough free segments.
+     */
+    boolean fits(int length) {
+        lock.lock();
+        try {
+            return freeCount >= (length + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take some free segments.
+     *
+     * @param count the number wanted.
+     * @return the segment numbers, or null if there aren't enough free.
+     */
+    private int[] allocate(int count) {
+        lock.lock();
+        try {
+            if (count > freeCount)
+                return null;
+            int[] segments = new int[count];
+            for (int i = 0; i < count; i++)
+                segments[i] = free[--freeCount];
+            return segments;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Give segments back once nothing is reading them.
+     *
+     * @param segments the segment numbers.
+     */
+    void free(int[] segments) {
+        lock.lock();
+        try {
+            for (int segment : segments)
+                free[freeCount++] = segment;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package Proxy.Cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * A page being downloaded into the cache, filling fixed size chunks as it arrives.
+ * Other requests for the page read the bytes that have arrived and then wait for the rest.
+ */
+public class PageFill {
+
+    /**
+     * Max seconds a reader waits for the next chunk before giving up.
+     */
+    private static final long WAIT = 30;
+    /**
+     * Max chunks of a page too large to cache kept for the requests following it,
+     * a reader further behind the download than that fails rather than holding the whole page in memory.
+     */
+    private static final int MAX_LAG = 64;
+
+    /**
+     * The cache the page goes into once complete.
+     */
+    private final CacheManager cache;
+    /**
+     * The url the page is stored under.
+     */
+    private final String url;
+    /**
+     * Guards the state below, a lock rather than synchronized so waiting virtual threads don't pin their carrier.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signalled when a chunk arrives or the fill ends.
+     */
+    private final Condition changed = lock.newCondition();
+    /**
+     * The status line and headers, null until the target machine answers.
+     */
+    private ResponseHead head;
+    /**
+     * The request header values named by the Vary header and the time the page stops being fresh.
+     */
+    private String[] varied;
+    private long expires;
+    /**
+     * Whether the response may be sent to the requests following the fill.
+     */
+    private boolean shared = true;
+    /**
+     * The chunks received so far, the last one grown as it fills, null once nobody needs them.
+     */
+    private List<byte[]> chunks = new ArrayList<>();
+    /**
+     * The index in the page of the first chunk kept, chunks before it have been dropped.
+     */
+    private int base;
+    /**
+     * The number of bytes received so far, and expected in all if the target machine said.
+     */
+    private long length;
+    private long expected = -1;
+    /**
+     * The number of requests reading the fill.
+     */
+    private int readers;
+    /**
+     * Whether the page is still small enough to be cached.
+     */
+    private boolean cacheable = true;
+    /**
+     * Whether the whole page has arrived, or the download failed.
+     */
+    private boolean done;
+    private boolean failed;
+
+    /**
+     * Constructor.
+     *
+     * @param cache the cache the page goes into.
+     * @param url the url the page is stored under.
+     */
+    PageFill(CacheManager cache, String url) {
+        this.cache = cache;
+        this.url = url;
+    }
+
+    /**
+     * Set the head of the response, before any of the body is added.
+     * Responses that can't be stored or are known to be too large for the cache are not shared,
+     * requests following the fill fetch them again.
+     *
+     * @param head the status line and headers.
+     * @param request looks up a header of the request the page was fetched for.
+     */
+    public void start(ResponseHead head, Function<String, String> request) {
+        boolean detach = false;
+        lock.lock();
+        try {
+            this.head = head;
+            expected = head.contentLength();
+            varied = head.varied(request);
+            expires = head.freshUntil(System.currentTimeMillis());
+            if (!head.isStorable(request) || expected > 0 && !cache.isCacheable(expected)) {
+                cacheable = false;
+                shared = false;
+                detach = true;
+                if (readers == 0)
+                    chunks = null;
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (detach)
+            cache.endFill(url, this);
+    }
+
+    /**
+     * Add the next part of the page.
+     *
+     * @param data buffer holding the data.
+     * @param offset start of the data.
+     * @param count number of bytes.
+     */
+    public void append(byte[] data, int offset, int count) {
+        boolean detach = false;
+        lock.lock();
+        try {
+            if (chunks != null)
+                fill(data, offset, count);
+            else
+                length += count;
+            if (cacheable && !cache.isCacheable(length)) {
+                //Too large for the cache, readers already following it carry on but no new ones join
+                cacheable = false;
+                detach = true;
+                if (readers == 0)
+                    chunks = null;
+            }
+            if (!cacheable && chunks != null)
+                dropBehind();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (detach)
+            cache.endFill(url, this);
+    }
+
+    /**
+     * Drop the chunks more than MAX_LAG behind the newest, once the page will not be cached. Call with the lock held.
+     */
+    private void dropBehind() {
+        int drop = chunks.size() - MAX_LAG;
+        if (drop > 0) {
+            chunks.subList(0, drop).clear();
+            base += drop;
+        }
+    }
+
+    /**
+     * Copy data into the chunks. Call with the lock held.
+     *
+     * @param data buffer holding the data.
+     * @param offset start of the data.
+     * @param count number of bytes.
+     */
+    private void fill(byte[] data, int offset, int count) {
+        while (count > 0) {
+            int index = (int) (length / CachedPage.CHUNK_SIZE) - base;
+            int at = (int) (length % CachedPage.CHUNK_SIZE);
+            int n = Math.min(count, CachedPage.CHUNK_SIZE - at);
+            byte[] chunk = index < chunks.size() ? chunks.get(index) : null;
+            if (chunk == null || chunk.length < at + n) {
+                //Sized for the rest of the page if known, otherwise doubled, so small pages don't take a whole chunk
+                long rest = expected > length ? expected - length + at : 0;
+                int size = (int) Math.min(CachedPage.CHUNK_SIZE, Math.max(at + n, Math.max(rest, chunk == null ? 0 : chunk.length * 2L)));
+                byte[] grown = new byte[size];
+                //Readers may still be reading the old array, what they read doesn't change
+                if (chunk != null)
+                    System.arraycopy(chunk, 0, grown, 0, at);
+                chunk = grown;
+                if (index < chunks.size())
+                    chunks.set(index, chunk);
+                else
+                    chunks.add(chunk);
+            }
+            System.arraycopy(data, offset, chunk, at, n);
+            length += n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Mark the page as complete and store it in the cache.
+     */
+    public void complete() {
+        byte[][] body = null;
+        lock.lock();
+        try {
+            done = true;
+            if (cacheable && head != null) {
+                body = chunks.toArray(new byte[0][]);
+                //The last chunk may have been given more room than it needed
+                int last = (int) (length % CachedPage.CHUNK_SIZE);
+                if (body.length > 0 && last > 0 && body[body.length - 1].length > last)
+                    body[body.length - 1] = Arrays.copyOf(body[body.length - 1], last);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        //Compressed outside the lock, the chunks no longer change and readers keep reading them
+        //Only a page small enough for the cache is kept, so its length fits an int
+        CachedPage page = body == null ? null : CachedPage.compress(url, head, varied, body, (int) length, expires);
+        //Stored before the fill is removed, so new requests either join the fill or find the page
+        if (page != null)
+            cache.put(page);
+        cache.endFill(url, this);
+    }
+
+    /**
+     * Throw away the partly downloaded page.
+     */
+    public void abort() {
+        lock.lock();
+        try {
+            failed = true;
+            chunks = null;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        cache.endFill(url, this);
+    }
+
+    /**
+     * @return whether the page is still worth downloading for the cache or the requests following it.
+     */
+    public boolean isWanted() {
+        lock.lock();
+        try {
+            return cacheable || readers > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Start reading the fill.
+     *
+     * @return false if the fill has failed or grown too large for new readers.
+     */
+    boolean join() {
+        lock.lock();
+        try {
+            if (failed || !cacheable)
+                return false;
+            readers++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the head of the response, waiting for it to arrive if needed.
+     *
+     * @return the head, or null if the response can't be shared and has to be fetched again.
+     * @throws IOException if the download fails or stalls.
+     */
+    public ResponseHead head() throws IOException {
+        lock.lock();
+        try {
+            while (!failed && head == null) {
+                if (!changed.await(WAIT, TimeUnit.SECONDS))
+                    throw new IOException("Timed out waiting for " + url);
+            }
+            if (failed)
+                throw new IOException("Download failed for " + url);
+            return shared ? head : null;
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted waiting for " + url);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Check if the page is being fetched for a request like this one, going by the Vary header.
+     * Call once the head has arrived.
+     *
+     * @param request looks up a request header by name.
+     * @return whether the page can answer the request.
+     */
+    public boolean matches(Function<String, String> request) {
+        lock.lock();
+        try {
+            if (varied == null)
+                return true;
+            String[] vary = head.varyNames();
+            for (int i = 0; i < vary.length; i++) {
+                if (!Objects.equals(varied[i], request.apply(vary[i])))
+                    return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the next part of the page, waiting for it to arrive if needed.
+     *
+     * @param offset the number of bytes already read.
+     * @return the bytes from the offset that have arrived, up to the end of their chunk, or null once the whole page has been read.
+     * @throws IOException if the download fails or stalls, or the page was too large to keep
+     * and the reader has fallen too far behind.
+     */
+    public ByteBuffer read(long offset) throws IOException {
+        lock.lock();
+        try {
+            while (!failed && !done && offset >= length) {
+                if (!changed.await(WAIT, TimeUnit.SECONDS))
+                    throw new IOException("Timed out waiting for " + url);
+            }
+            if (failed)
+                throw new IOException("Download failed for " + url);
+            if (offset >= length)
+                return null;
+            //Nobody was reading a page too large for the cache, so it wasn't kept
+            if (chunks == null)
+                throw new IOException("Not kept " + url);
+            int index = (int) (offset / CachedPage.CHUNK_SIZE) - base;
+            if (index < 0)
+                throw new IOException("Fell behind the download of " + url);
+            int at = (int) (offset % CachedPage.CHUNK_SIZE);
+            return ByteBuffer.wrap(chunks.get(index), at, (int) Math.min(length - offset, CachedPage.CHUNK_SIZE - at));
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted waiting for " + url);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop reading the fill, called once for each successful join.
+     */
+    public void leave() {
+        lock.lock();
+        try {
+            readers--;
+            //Nobody can use the chunks of a page too large to cache once its readers are gone
+            if (readers == 0 && !cacheable && chunks != null)
+                chunks = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package Proxy.Cache;
+
+import java.util.function.Function;
+
+/**
+ * Part of a page arriving in a 206 Partial Content response, kept as the whole chunks it covers.
+ * Once complete the chunks are added to the parts of the page the cache already has.
+ */
+public class RangeFill {
+
+    /**
+     * Largest page parts of which are stored, so the chunk table of a page stays small.
+     */
+    private static final long MAX_TOTAL = 1L << 32;
+
+    /**
+     * The cache the parts go into.
+     */
+    private final CacheManager cache;
+    /**
+     * The url the page is stored under.
+     */
+    private final String url;
+    /**
+     * The head of the whole page, the request header values named by its Vary header and the time it stops being fresh.
+     */
+    private final ResponseHead head;
+    private final String[] varied;
+    private final long expires;
+    /**
+     * The size of the whole page.
+     */
+    private final long total;
+    /**
+     * A chunk for every chunk of the page, null for those that haven't arrived.
+     */
+    private final byte[][] chunks;
+    /**
+     * Where the next byte goes in the page.
+     */
+    private long position;
+    /**
+     * The chunk being filled, null if the part started after its beginning or there is no room for it.
+     */
+    private byte[] chunk;
+    /**
+     * The size of the chunks kept.
+     */
+    private int stored;
+
+    /**
+     * Constructor.
+     *
+     * @param cache the cache the parts go into.
+     * @param url the url the page is stored under.
+     * @param head the head of the whole page.
+     * @param varied the request header values named by the Vary header.
+     * @param first where the part starts in the page.
+     * @param total the size of the whole page.
+     */
+    private RangeFill(CacheManager cache, String url, ResponseHead head, String[] varied, long first, long total) {
+        this.cache = cache;
+        this.url = url;
+        this.head = head;
+        this.varied = varied;
+        this.total = total;
+        position = first;
+        expires = head.freshUntil(System.currentTimeMillis());
+        chunks = new byte[(int) ((total + CachedPage.CHUNK_SIZE - 1) / CachedPage.CHUNK_SIZE)][];
+    }
+
+    /**
+     * Start keeping the part of a page in a 206 response.
+     *
+     * @param cache the cache the parts go into.
+     * @param url the url the page is stored under.
+     * @param head the head of the 206 response.
+     * @param first where the part starts in the page.
+     * @param total the size of the whole page.
+     * @param request looks up a header of the request the part was fetched for.
+     * @return the fill, or null if parts of the page can't be stored.
+     */
+    public static RangeFill start(CacheManager cache, String url, ResponseHead head, long first, long total, Function<String, String> request) {
+        ResponseHead whole = head.ranged(200, null);
+        //Parts are only put together if a validator shows they are of the same version
+        if (total > MAX_TOTAL || !whole.isStorable(request) || CachedPage.validator(whole) == null || whole.header("Content-Encoding") != null)
+            return null;
+        return new RangeFill(cache, url, whole, whole.varied(request), first, total);
+    }
+
+    /**
+     * Add the next bytes of the part.
+     *
+     * @param data buffer holding the data.
+     * @param offset start of the data.
+     * @param count number of bytes.
+     */
+    public void append(byte[] data, int offset, int count) {
+        while (count > 0 && position < total) {
+            int index = (int) (position / CachedPage.CHUNK_SIZE);
+            int at = (int) (position % CachedPage.CHUNK_SIZE);
+            int size = (int) Math.min(CachedPage.CHUNK_SIZE, total - (long) index * CachedPage.CHUNK_SIZE);
+            int n = Math.min(count, size - at);
+            //Only chunks that arrive from their beginning are kept, while there is room for them
+            if (at == 0 && cache.isCacheable(stored + size))
+                chunk = new byte[size];
+            if (chunk != null) {
+                System.arraycopy(data, offset, chunk, at, n);
+                if (at + n == size) {
+                    chunks[index] = chunk;
+                    stored += size;
+                    chunk = null;
+                }
+            }
+            position += n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Store the chunks that arrived whole, once the part has been read to the end.
+     */
+    public void complete() {
+        if (stored > 0)
+            cache.putParts(new CachedPage(url, head, varied, chunks, stored, expires, total));
+    }
+}
@@ -0,0 +1,530 @@
+package Proxy.Cache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+
+/**
+ * The status line and headers of a response from the target machine.
+ * Works out whether and for how long the response may be cached, following the origin's headers.
+ */
+public class ResponseHead {
+
+    /**
+     * Statuses that may be cached without explicit freshness information.
+     */
+    private static final int[] CACHEABLE = {200, 203, 204, 300, 301, 404, 405, 410, 414, 501};
+    /**
+     * Headers that only apply to one connection, never passed on.
+     */
+    private static final String[] HOP_BY_HOP = {"Connection", "Keep-Alive", "Proxy-Connection", "Transfer-Encoding", "TE", "Trailer", "Upgrade"};
+    /**
+     * Upper bound of the heuristic freshness given to pages that only have a Last-Modified date.
+     */
+    private static final long MAX_HEURISTIC = 24 * 60 * 60 * 1000;
+    /**
+     * Media types worth compressing besides text, matched on the start of the Content-Type.
+     */
+    private static final String[] COMPRESSIBLE = {"application/javascript", "application/json", "application/xml", "application/xhtml+xml", "image/svg+xml"};
+    /**
+     * Max length of one line of a response head.
+     */
+    private static final int MAX_LINE = 65536;
+
+    /**
+     * The status line and status code.
+     */
+    private final String statusLine;
+    private final int status;
+    /**
+     * The header names and values in the order they arrived.
+     */
+    private final String[] names;
+    private final String[] values;
+    /**
+     * The status line and end to end headers as sent to clients, built when first needed.
+     */
+    private volatile String headers;
+
+    /**
+     * Constructor.
+     *
+     * @param statusLine the status line.
+     * @param status the status code.
+     * @param names the header names.
+     * @param values the header values.
+     */
+    private ResponseHead(String statusLine, int status, String[] names, String[] values) {
+        this.statusLine = statusLine;
+        this.status = status;
+        this.names = names;
+        this.values = values;
+    }
+
+    /**
+     * Read the head of a response, skipping any 1xx interim responses.
+     *
+     * @param in the stream from the target machine.
+     * @return the head.
+     * @throws IOException if the target is broken or the head is malformed.
+     */
+    public static ResponseHead read(InputStream in) throws IOException {
+        while (true) {
+            String statusLine = line(in);
+            int status = status(statusLine);
+            List<String> names = new ArrayList<>();
+            List<String> values = new ArrayList<>();
+            String line;
+            while (!(line = line(in)).isEmpty()) {
+                if ((line.charAt(0) == ' ' || line.charAt(0) == '\t') && !values.isEmpty()) {
+                    //Folded header, continues the previous value
+                    values.set(values.size() - 1, values.get(values.size() - 1) + " " + line.trim());
+                    continue;
+                }
+                int colon = line.indexOf(':');
+                if (colon <= 0)
+                    throw new IOException("Malformed response header: " + line);
+                names.add(line.substring(0, colon).trim());
+                values.add(line.substring(colon + 1).trim());
+            }
+            if (status >= 200 || status == 101)
+                return new ResponseHead(statusLine, status, names.toArray(new String[0]), values.toArray(new String[0]));
+        }
+    }
+
+    /**
+     * Read a head saved with save.
+     *
+     * @param in the saved head.
+     * @return the head.
+     * @throws IOException if the saved head is broken.
+     */
+    static ResponseHead load(DataInput in) throws IOException {
+        String statusLine = CacheSnapshot.readString(in);
+        int count = in.readInt();
+        if (statusLine == null || count < 0)
+            throw new IOException("Malformed saved response head");
+        String[] names = new String[count];
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = CacheSnapshot.readString(in);
+            values[i] = CacheSnapshot.readString(in);
+        }
+        return new ResponseHead(statusLine, status(statusLine), names, values);
+    }
+
+    /**
+     * Save the head so it can be read back with load.
+     *
+     * @param out where to save it.
+     * @throws IOException if it can't be written.
+     */
+    void save(DataOutput out) throws IOException {
+        CacheSnapshot.writeString(out, statusLine);
+        out.writeInt(names.length);
+        for (int i = 0; i < names.length; i++) {
+            CacheSnapshot.writeString(out, names[i]);
+            CacheSnapshot.writeString(out, values[i]);
+        }
+    }
+
+    /**
+     * Get the status code from a status line.
+     *
+     * @param statusLine the status line.
+     * @return the status code.
+     * @throws IOException if the line is malformed.
+     */
+    private static int status(String statusLine) throws IOException {
+        int space = statusLine.indexOf(' ');
+        if (!statusLine.startsWith("HTTP/") || space < 0 || statusLine.length() < space + 4)
+            throw new IOException("Malformed status line: " + statusLine);
+        try {
+            return Integer.parseInt(statusLine.substring(space + 1, space + 4));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed status line: " + statusLine);
+        }
+    }
+
+    /**
+     * Read one line of the head.
+     *
+     * @param in the stream from the target machine.
+     * @return the line without its line ending.
+     * @throws IOException if the stream ends or the line is too long.
+     */
+    private static String line(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1)
+                throw new EOFException("Response ended in the header");
+            if (line.length() == MAX_LINE)
+                throw new IOException("Response header line longer than " + MAX_LINE + " bytes");
+            line.append((char) b);
+        }
+        int end = line.length();
+        if (end > 0 && line.charAt(end - 1) == '\r')
+            line.setLength(end - 1);
+        return line.toString();
+    }
+
+    /**
+     * @return the status code.
+     */
+    public int status() {
+        return status;
+    }
+
+    /**
+     * @return the http version from the status line.
+     */
+    public String version() {
+        return statusLine.substring(0, statusLine.indexOf(' '));
+    }
+
+    /**
+     * Get the first value of a header.
+     *
+     * @param name the header name, any case.
+     * @return the value, or null if the header is missing.
+     */
+    public String header(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equalsIgnoreCase(name))
+                return values[i];
+        }
+        return null;
+    }
+
+    /**
+     * Get the head to send to a client, framed for the connection it is sent on.
+     *
+     * @param keepAlive whether the connection stays open after the response.
+     * @param length the size of the body, -1 to send no Content-Length.
+     * @param chunked whether the body is sent with chunked encoding.
+     * @return the status line and headers ending with a blank line.
+     */
+    public byte[] bytes(boolean keepAlive, long length, boolean chunked) {
+        String headers = this.headers;
+        if (headers == null) {
+            StringBuilder head = new StringBuilder(statusLine).append("\r\n");
+            for (int i = 0; i < names.length; i++) {
+                //The framing headers are replaced with ones for this connection
+                if (!isHopByHop(names[i]) && !names[i].equalsIgnoreCase("Content-Length"))
+                    head.append(names[i]).append(": ").append(values[i]).append("\r\n");
+            }
+            this.headers = headers = head.toString();
+        }
+        StringBuilder head = new StringBuilder(headers.length() + 64).append(headers);
+        if (length >= 0)
+            head.append("Content-Length: ").append(length).append("\r\n");
+        if (chunked)
+            head.append("Transfer-Encoding: chunked\r\n");
+        head.append(keepAlive ? "Connection: keep-alive\r\n\r\n" : "Connection: close\r\n\r\n");
+        return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the size of the body given by Content-Length, or -1 if it isn't known up front.
+     */
+    public long contentLength() {
+        String length = header("Content-Length");
+        if (length == null || header("Transfer-Encoding") != null)
+            return -1;
+        try {
+            return Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Check if the response may be stored and reused for other requests.
+     *
+     * @param request looks up a header of the request the response was fetched for.
+     * @return whether the response may be stored.
+     */
+    public boolean isStorable(Function<String, String> request) {
+        if (!isCacheableStatus())
+            return false;
+        String cacheControl = header("Cache-Control");
+        if (directive(cacheControl, "no-store") != null || directive(cacheControl, "private") != null)
+            return false;
+        //This is a shared cache, a response to a signed in user is only for them unless the origin says otherwise
+        if (request.apply("Authorization") != null && directive(cacheControl, "public") == null
+                && directive(cacheControl, "s-maxage") == null && directive(cacheControl, "must-revalidate") == null)
+            return false;
+        if ("*".equals(header("Vary")))
+            return false;
+        //A page that is stale straight away is only worth keeping if it can be revalidated
+        return freshnessLifetime() > 0 || hasValidators();
+    }
+
+    /**
+     * @return whether the body is text the cache may store compressed, it isn't already encoded and the origin allows it.
+     */
+    public boolean isCompressible() {
+        String encoding = header("Content-Encoding");
+        if (encoding != null && !encoding.trim().equalsIgnoreCase("identity"))
+            return false;
+        if (directive(header("Cache-Control"), "no-transform") != null)
+            return false;
+        String type = header("Content-Type");
+        if (type == null)
+            return false;
+        type = type.trim().toLowerCase(Locale.ROOT);
+        if (type.startsWith("text/") || type.contains("+json") || type.contains("+xml"))
+            return true;
+        for (String t : COMPRESSIBLE) {
+            if (type.startsWith(t))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the head for a page the cache stores compressed, which differs by the client's Accept-Encoding.
+     *
+     * @param encoding the content coding the body is sent with, null if it is sent as the origin sent it.
+     * @return the head with Vary naming Accept-Encoding, and the coding and a weak ETag if the body is encoded.
+     */
+    ResponseHead encoded(String encoding) {
+        List<String> names = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        boolean varied = false;
+        for (int i = 0; i < this.names.length; i++) {
+            String value = this.values[i];
+            if (this.names[i].equalsIgnoreCase("Content-Encoding"))
+                continue;
+            if (this.names[i].equalsIgnoreCase("Vary") && !varied) {
+                varied = true;
+                if (!value.toLowerCase(Locale.ROOT).contains("accept-encoding"))
+                    value = value.trim().isEmpty() ? "Accept-Encoding" : value + ", Accept-Encoding";
+            }
+            //The encoded bytes are no longer the ones a strong ETag names
+            if (encoding != null && this.names[i].equalsIgnoreCase("ETag") && !value.startsWith("W/"))
+                value = "W/" + value;
+            names.add(this.names[i]);
+            values.add(value);
+        }
+        if (!varied) {
+            names.add("Vary");
+            values.add("Accept-Encoding");
+        }
+        if (encoding != null) {
+            names.add("Content-Encoding");
+            values.add(encoding);
+        }
+        return new ResponseHead(statusLine, status, names.toArray(new String[0]), values.toArray(new String[0]));
+    }
+
+    /**
+     * Get the head for part of the page, or the head of the whole page from the head of a part.
+     *
+     * @param status 206 or 416 for a part, 200 for the whole page.
+     * @param contentRange the Content-Range of the part, null for the whole page.
+     * @return the head with the new status line and Content-Range.
+     */
+    public ResponseHead ranged(int status, String contentRange) {
+        List<String> names = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < this.names.length; i++) {
+            //The length is that of the part, which is framed when it is sent
+            if (!this.names[i].equalsIgnoreCase("Content-Range") && !this.names[i].equalsIgnoreCase("Content-Length")) {
+                names.add(this.names[i]);
+                values.add(this.values[i]);
+            }
+        }
+        if (contentRange != null) {
+            names.add("Content-Range");
+            values.add(contentRange);
+        }
+        String reason = status == 206 ? "Partial Content" : status == 416 ? "Range Not Satisfiable" : "OK";
+        return new ResponseHead(version() + " " + status + " " + reason, status, names.toArray(new String[0]), values.toArray(new String[0]));
+    }
+
+    /**
+     * @return whether the response carries an ETag or Last-Modified date to revalidate it with.
+     */
+    public boolean hasValidators() {
+        return header("ETag") != null || header("Last-Modified") != null;
+    }
+
+    /**
+     * Work out when the response stops being fresh.
+     *
+     * @param responseTime the time the response arrived.
+     * @return the time in milliseconds.
+     */
+    public long freshUntil(long responseTime) {
+        long date = date("Date");
+        //Time the response had already spent in other caches
+        long age = date < 0 ? 0 : Math.max(0, responseTime - date);
+        age += seconds(header("Age")) * 1000;
+        return responseTime + freshnessLifetime() - age;
+    }
+
+    /**
+     * @return how long in milliseconds the response stays fresh after it was generated.
+     */
+    private long freshnessLifetime() {
+        String cacheControl = header("Cache-Control");
+        if (directive(cacheControl, "no-cache") != null)
+            return 0;
+        //This is a shared cache, so s-maxage takes precedence
+        String maxAge = directive(cacheControl, "s-maxage");
+        if (maxAge == null)
+            maxAge = directive(cacheControl, "max-age");
+        if (maxAge != null)
+            return seconds(maxAge) * 1000;
+        long date = date("Date");
+        if (header("Expires") != null) {
+            long expires = date("Expires");
+            return expires < 0 || date < 0 ? 0 : Math.max(0, expires - date);
+        }
+        long lastModified = date("Last-Modified");
+        if (lastModified >= 0 && date >= 0 && isCacheableStatus())
+            return Math.min(MAX_HEURISTIC, Math.max(0, date - lastModified) / 10);
+        return 0;
+    }
+
+    /**
+     * @return whether the status may be cached.
+     */
+    private boolean isCacheableStatus() {
+        for (int s : CACHEABLE) {
+            if (s == status)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the request header values the response depends on, as named by its Vary header.
+     *
+     * @param request looks up a request header by name.
+     * @return the values, null where the request lacks the header.
+     */
+    public String[] varied(Function<String, String> request) {
+        String[] vary = varyNames();
+        String[] varied = new String[vary.length];
+        for (int i = 0; i < vary.length; i++)
+            varied[i] = request.apply(vary[i]);
+        return varied;
+    }
+
+    /**
+     * @return the request header names in the Vary header.
+     */
+    String[] varyNames() {
+        String vary = header("Vary");
+        if (vary == null || vary.trim().isEmpty())
+            return new String[0];
+        String[] names = vary.split(",");
+        for (int i = 0; i < names.length; i++)
+            names[i] = names[i].trim();
+        return names;
+    }
+
+    /**
+     * Combine the head of a stored response with the head of the 304 that revalidated it.
+     *
+     * @param notModified the 304 response.
+     * @return the stored status line with its headers updated by the 304.
+     */
+    public ResponseHead update(ResponseHead notModified) {
+        List<String> names = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < this.names.length; i++) {
+            if (notModified.header(this.names[i]) == null || this.names[i].equalsIgnoreCase("Content-Length")) {
+                names.add(this.names[i]);
+                values.add(this.values[i]);
+            }
+        }
+        for (int i = 0; i < notModified.names.length; i++) {
+            if (!notModified.names[i].equalsIgnoreCase("Content-Length")) {
+                names.add(notModified.names[i]);
+                values.add(notModified.values[i]);
+            }
+        }
+        return new ResponseHead(statusLine, status, names.toArray(new String[0]), values.toArray(new String[0]));
+    }
+
+    /**
+     * Check if a header only applies to one connection.
+     *
+     * @param name the header name.
+     * @return whether it is hop by hop.
+     */
+    private static boolean isHopByHop(String name) {
+        for (String h : HOP_BY_HOP) {
+            if (h.equalsIgnoreCase(name))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Find a Cache-Control directive.
+     *
+     * @param cacheControl the header value, may be null.
+     * @param name the directive.
+     * @return the directive's argument, empty if it has none, or null if it is missing.
+     */
+    private static String directive(String cacheControl, String name) {
+        if (cacheControl == null)
+            return null;
+        for (String part : cacheControl.split(",")) {
+            String d = part.trim();
+            int equals = d.indexOf('=');
+            String key = equals < 0 ? d : d.substring(0, equals).trim();
+            if (key.equalsIgnoreCase(name))
+                return equals < 0 ? "" : d.substring(equals + 1).trim().replace("\"", "");
+        }
+        return null;
+    }
+
+    /**
+     * Parse a number of seconds.
+     *
+     * @param value the value, may be null.
+     * @return the seconds, 0 if missing or invalid.
+     */
+    private static long seconds(String value) {
+        if (value == null)
+            return 0;
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Parse a date header.
+     *
+     * @param name the header name.
+     * @return the time in milliseconds, or -1 if missing or invalid.
+     */
+    private long date(String name) {
+        String value = header(name);
+        if (value == null)
+            return -1;
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
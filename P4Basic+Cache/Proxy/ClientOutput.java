@@ -0,0 +1,244 @@
+package Proxy;
+
+import Proxy.Cache.ResponseHead;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One response on its way to the client, framed with Content-Length or chunked encoding
+ * so the connection can carry the next request. A client that has gone away is remembered
+ * rather than reported, so the page can still be downloaded for the cache.
+ */
+class ClientOutput {
+
+    /**
+     * End of a chunked body.
+     */
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    /**
+     * End of a chunk.
+     */
+    private static final byte[] CRLF = {'\r', '\n'};
+    /**
+     * Interim response telling a client to send its request body.
+     */
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * The output stream to the client.
+     */
+    private final OutputStream out;
+    /**
+     * The request being answered.
+     */
+    private final RequestParser request;
+    /**
+     * Whether the connection stays open after the response.
+     */
+    private boolean keepAlive;
+    /**
+     * Whether the body is sent with chunked encoding.
+     */
+    private boolean chunked;
+    /**
+     * Whether a write to the client has failed.
+     */
+    private boolean broken;
+    /**
+     * For the access log: the status sent, the body bytes sent and how the request was answered.
+     */
+    private int status;
+    private long bytes;
+    private String result;
+
+    /**
+     * Constructor.
+     *
+     * @param out the output stream to the client.
+     * @param request the request being answered.
+     */
+    ClientOutput(OutputStream out, RequestParser request) {
+        this.out = out;
+        this.request = request;
+        keepAlive = request.keepAlive();
+    }
+
+    /**
+     * Send the head of the response, choosing how the body is framed.
+     *
+     * @param head the status line and headers.
+     * @param length the size of the body, -1 if it isn't known up front.
+     * @param body whether a body follows.
+     */
+    void head(ResponseHead head, long length, boolean body) {
+        if (body && length < 0) {
+            //Only HTTP/1.1 clients understand chunks, others read until the connection closes
+            if (keepAlive && request.version().equals("1.1"))
+                chunked = true;
+            else
+                keepAlive = false;
+        }
+        //A HEAD response describes the body it would have had
+        if (!body && request.method().equals("HEAD"))
+            length = head.contentLength();
+        status = head.status();
+        write(head.bytes(keepAlive, length, chunked));
+    }
+
+    /**
+     * Send part of the body.
+     *
+     * @param b the data.
+     * @param off start of the data.
+     * @param len number of bytes.
+     */
+    void write(byte[] b, int off, int len) {
+        if (broken || len == 0)
+            return;
+        try {
+            if (chunked)
+                out.write((Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(b, off, len);
+            if (chunked)
+                out.write(CRLF);
+            bytes += len;
+        } catch (IOException e) {
+            broken = true;
+        }
+    }
+
+    /**
+     * Send part of the body held in buffers, such as chunks of a cached page.
+     *
+     * @param buffers the data, the buffers are left as they are.
+     */
+    void write(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasArray()) {
+                write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                //Off heap chunks are copied out
+                byte[] copy = new byte[buffer.remaining()];
+                buffer.duplicate().get(copy);
+                write(copy, 0, copy.length);
+            }
+        }
+    }
+
+    /**
+     * Send bytes as they are, without chunk framing.
+     *
+     * @param b the data.
+     */
+    private void write(byte[] b) {
+        if (broken)
+            return;
+        try {
+            out.write(b);
+        } catch (IOException e) {
+            broken = true;
+        }
+    }
+
+    /**
+     * End the response.
+     *
+     * @param complete whether the whole body was sent, the connection is closed after a cut short body.
+     */
+    void finish(boolean complete) {
+        if (!complete)
+            keepAlive = false;
+        else if (chunked)
+            write(LAST_CHUNK);
+        if (broken)
+            return;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            broken = true;
+        }
+    }
+
+    /**
+     * Tell a client waiting to send its request body to go ahead, if it asked to be told.
+     */
+    void proceed() {
+        String expect = request.header("Expect");
+        if (expect == null || !expect.equalsIgnoreCase("100-continue") || !request.version().equals("1.1"))
+            return;
+        write(CONTINUE);
+        if (broken)
+            return;
+        try {
+            out.flush();
+        } catch (IOException e) {
+            broken = true;
+        }
+    }
+
+    /**
+     * Send a 503 for a request turned away because the proxy is too busy.
+     */
+    void unavailable() {
+        status = 503;
+        result = "REJECTED";
+        write(Admission.unavailable(keepAlive).getBytes(StandardCharsets.ISO_8859_1));
+        finish(true);
+    }
+
+    /**
+     * Note a response that was written straight to the socket rather than through this output.
+     *
+     * @param status the status sent.
+     * @param bytes the body bytes sent.
+     */
+    void sent(int status, long bytes) {
+        this.status = status;
+        this.bytes = bytes;
+    }
+
+    /**
+     * @param result how the request was answered, for the access log.
+     */
+    void result(String result) {
+        this.result = result;
+    }
+
+    /**
+     * @return the status sent, 0 if no response was sent.
+     */
+    int status() {
+        return status;
+    }
+
+    /**
+     * @return the body bytes sent.
+     */
+    long bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return how the request was answered, null if it wasn't.
+     */
+    String result() {
+        return result;
+    }
+
+    /**
+     * @return whether the client has gone away.
+     */
+    boolean isBroken() {
+        return broken;
+    }
+
+    /**
+     * @return whether the connection can carry another request.
+     */
+    boolean keepAlive() {
+        return keepAlive && !broken;
+    }
+}
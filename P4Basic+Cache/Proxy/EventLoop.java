@@ -0,0 +1,410 @@
+package Proxy;
+
+import Proxy.Cache.ByteRange;
+import Proxy.Cache.CachedPage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Non-blocking alternative to ProxyThread, one selector serves many connections.
+ * Cached pages are sent from the loop, misses are passed to a worker that fetches them.
+ * Kept alive connections come back to the loop to wait for their next request.
+ */
+class EventLoop extends Thread {
+
+    /**
+     * Selector watching every connection owned by this loop.
+     */
+    private final Selector selector;
+    /**
+     * Runs the blocking fetches for pages not in the cache.
+     */
+    private final Executor fetchers;
+    /**
+     * Milliseconds between checks for idle connections.
+     */
+    private static final long IDLE_CHECK = 1000;
+
+    /**
+     * Accepted and resumed connections waiting to be registered with the selector.
+     */
+    private final Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+    /**
+     * Connections to be passed to a fetcher once their key has been cancelled.
+     */
+    private final List<Connection> misses = new ArrayList<>();
+    /**
+     * Loops accepted connections are handed out to, only set on the accepting loop.
+     */
+    private EventLoop[] workers;
+    /**
+     * Index of the next worker to hand a connection to.
+     */
+    private int nextWorker;
+    /**
+     * The time idle connections were last checked for.
+     */
+    private long lastIdleCheck;
+
+    /**
+     * Constructor.
+     *
+     * @param id number used to name the thread.
+     * @param fetchers runs the fetches for pages not in the cache.
+     * @throws IOException if the selector can't be opened.
+     */
+    EventLoop(int id, Executor fetchers) throws IOException {
+        super("EventLoop-" + id);
+        this.fetchers = fetchers;
+        selector = Selector.open();
+    }
+
+    /**
+     * Make this loop accept new connections and share them between the workers.
+     *
+     * @param serverChannel the bound server channel.
+     * @param workers the loops connections are handed to.
+     * @throws IOException if the channel can't be registered.
+     */
+    void accept(ServerSocketChannel serverChannel, EventLoop[] workers) throws IOException {
+        this.workers = workers;
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Hand a newly accepted connection to this loop, safe to call from any thread.
+     *
+     * @param channel the client channel.
+     */
+    private void register(SocketChannel channel) {
+        pending.add(new Connection(channel, new RequestParser()));
+        selector.wakeup();
+    }
+
+    /**
+     * Give a kept alive connection back to this loop once a fetcher has answered it, safe to call from any thread.
+     *
+     * @param channel the client channel.
+     * @param request the parser, holding any pipelined bytes already read.
+     */
+    void resume(SocketChannel channel, RequestParser request) {
+        pending.add(new Connection(channel, request));
+        selector.wakeup();
+    }
+
+    /**
+     * Run method called when new thread started.
+     */
+    @Override
+    public void run() {
+        while (selector.isOpen()) {
+            try {
+                selector.select(IDLE_CHECK);
+                //Register connections accepted by the accepting loop or given back by a fetcher
+                Connection pendingConnection;
+                while ((pendingConnection = pending.poll()) != null)
+                    pendingConnection.register();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        acceptConnection((ServerSocketChannel) key.channel());
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            connection.handle(key);
+                        } catch (IOException | RuntimeException e) {
+                            connection.close();
+                        }
+                    }
+                }
+                handOffMisses();
+                closeIdle();
+            } catch (IOException ignored) {
+                //The connections that failed have been closed, the loop carries on with the next select
+            }
+        }
+    }
+
+    /**
+     * Accept every waiting connection and share them between the workers.
+     *
+     * @param serverChannel the server channel.
+     * @throws IOException if accepting fails.
+     */
+    private void acceptConnection(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            if (!ProxyThread.admission.admit(channel.socket()))
+                continue;
+            workers[nextWorker].register(channel);
+            nextWorker = (nextWorker + 1) % workers.length;
+        }
+    }
+
+    /**
+     * Close connections that have waited longer than the keep alive timeout for a request.
+     */
+    private void closeIdle() {
+        long now = System.currentTimeMillis();
+        if (now - lastIdleCheck < IDLE_CHECK)
+            return;
+        lastIdleCheck = now;
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                Connection connection = (Connection) key.attachment();
+                if (connection.response == null && now - connection.lastActive > ProxyThread.KEEP_ALIVE_TIMEOUT)
+                    connection.close();
+            }
+        }
+    }
+
+    /**
+     * Pass cache misses to the fetchers as blocking sockets.
+     *
+     * @throws IOException if the selector is broken.
+     */
+    private void handOffMisses() throws IOException {
+        if (misses.isEmpty())
+            return;
+        //Cancelled keys are only removed on the next select, a channel can't block until then
+        selector.selectNow();
+        for (Connection connection : misses) {
+            try {
+                connection.client.configureBlocking(true);
+                fetchers.execute(new ProxyThread(connection.client.socket(), connection.request, this));
+            } catch (RejectedExecutionException e) {
+                connection.unavailable();
+            } catch (IOException e) {
+                connection.close();
+            }
+        }
+        misses.clear();
+    }
+
+    /**
+     * State of one client connection.
+     */
+    private class Connection {
+
+        /**
+         * The client channel.
+         */
+        private final SocketChannel client;
+        /**
+         * Parses the request header as it arrives.
+         */
+        private final RequestParser request;
+        /**
+         * Cached page being written.
+         */
+        private CachedPage page;
+        /**
+         * The parts of the page still to be written.
+         */
+        private ByteBuffer[] response;
+        /**
+         * The time the request being answered was read, in nanoseconds.
+         */
+        private long started;
+        /**
+         * Whether the connection stays open after the page has been written.
+         */
+        private boolean keepAlive;
+        /**
+         * Whether the client takes the page gzip compressed.
+         */
+        private boolean gzip;
+        /**
+         * The part of the page asked for, null for the whole page.
+         */
+        private ByteRange range;
+        /**
+         * The time the connection last read or finished writing.
+         */
+        private long lastActive = System.currentTimeMillis();
+
+        /**
+         * Constructor.
+         *
+         * @param client the client channel.
+         * @param request the parser, may already hold part of a request.
+         */
+        Connection(SocketChannel client, RequestParser request) {
+            this.client = client;
+            this.request = request;
+        }
+
+        /**
+         * Start watching the connection, answering a pipelined request that has already arrived.
+         */
+        void register() {
+            try {
+                client.configureBlocking(false);
+                nextRequests(client.register(selector, SelectionKey.OP_READ, this));
+            } catch (IOException | RuntimeException e) {
+                close();
+            }
+        }
+
+        /**
+         * Deal with a ready key belonging to this connection.
+         *
+         * @param key the ready key.
+         * @throws IOException if the client is broken.
+         */
+        void handle(SelectionKey key) throws IOException {
+            if (response != null) {
+                if (writeResponse(key))
+                    nextRequests(key);
+            } else if (key.isReadable()) {
+                readHeader(key);
+            }
+        }
+
+        /**
+         * Read more of the request header, then answer what has arrived.
+         *
+         * @param key the client key.
+         * @throws IOException if the client is broken.
+         */
+        private void readHeader(SelectionKey key) throws IOException {
+            int read = client.read(request.buffer());
+            lastActive = System.currentTimeMillis();
+            if (!nextRequests(key) && read == -1)
+                close();
+        }
+
+        /**
+         * Answer the complete requests in the buffer in turn, while they can be sent from the cache.
+         *
+         * @param key the client key.
+         * @return whether a complete request was found.
+         * @throws IOException if the client is broken or a header is malformed.
+         */
+        private boolean nextRequests(SelectionKey key) throws IOException {
+            boolean found = false;
+            while (request.parse()) {
+                found = true;
+                if (!answer(key))
+                    break;
+            }
+            return found;
+        }
+
+        /**
+         * Answer a request from the cache or hand it to a fetcher.
+         *
+         * @param key the client key.
+         * @return whether the response has been sent and the connection is waiting for the next request.
+         * @throws IOException if the client is broken.
+         */
+        private boolean answer(SelectionKey key) throws IOException {
+            //First line contains target url, replace http:// with https://
+            started = System.nanoTime();
+            String urlToCall = request.target().replace("http://", "https://");
+            //Only fresh GET responses are sent from the loop
+            if (request.method().equals("GET"))
+                page = ProxyThread.fromCache(urlToCall, request);
+            if (page == null) {
+                //Fetching and revalidating block, so the socket is given to a fetcher
+                key.cancel();
+                misses.add(this);
+                return false;
+            }
+            //Write data from cache to client.
+            keepAlive = request.keepAlive();
+            range = ProxyThread.range(request, page);
+            gzip = range == null && CachedPage.acceptsGzip(request.header("Accept-Encoding"));
+            response = range != null ? page.buffers(keepAlive, range) : page.buffers(keepAlive, gzip);
+            key.interestOps(SelectionKey.OP_WRITE);
+            return writeResponse(key);
+        }
+
+        /**
+         * Write the cached page, then wait for the next request or close the connection once it has all been sent.
+         *
+         * @param key the client key.
+         * @return whether the page has been sent and the connection is waiting for the next request.
+         * @throws IOException if the client is broken.
+         */
+        private boolean writeResponse(SelectionKey key) throws IOException {
+            client.write(response);
+            if (!written())
+                return false;
+            ProxyThread.metrics.cacheHits.increment();
+            ProxyThread.accessLog.log(client.socket().getRemoteSocketAddress(), request.method(), request.target(),
+                    range != null ? range.status(page.total()) : page.head().status(),
+                    range != null ? range.length(page.total()) : page.length(gzip), "HIT", System.nanoTime() - started);
+            page.release();
+            page = null;
+            response = null;
+            if (!keepAlive) {
+                close();
+                return false;
+            }
+            //Keep any pipelined bytes read after the header
+            request.reset();
+            key.interestOps(SelectionKey.OP_READ);
+            lastActive = System.currentTimeMillis();
+            return true;
+        }
+
+        /**
+         * @return whether every part of the page has been written.
+         */
+        private boolean written() {
+            for (ByteBuffer buffer : response) {
+                if (buffer.hasRemaining())
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Send a 503 for a miss turned away because every fetcher is busy, then close the connection.
+         */
+        void unavailable() {
+            ProxyThread.admission.rejectedFetches.increment();
+            try {
+                //The channel is blocking by now and the response is far smaller than the socket buffer
+                client.write(ByteBuffer.wrap(Admission.unavailable(false).getBytes(StandardCharsets.ISO_8859_1)));
+            } catch (IOException ignored) {
+            }
+            ProxyThread.accessLog.log(client.socket().getRemoteSocketAddress(), request.method(), request.target(), 503, 0,
+                    "REJECTED", System.nanoTime() - started);
+            close();
+        }
+
+        /**
+         * Close the client connection.
+         */
+        void close() {
+            if (page != null) {
+                page.release();
+                page = null;
+            }
+            //Only counted once, whichever path closes it
+            if (client.isOpen())
+                ProxyThread.admission.release(client.socket());
+            try {
+                client.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package Proxy;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Remembers which hosts answer over https, so a miss only probes a host the first time it is seen.
+ * Results are kept for a while, like HSTS, and refreshed in the background once they are out of date.
+ */
+class HttpsHosts {
+
+    /**
+     * Milliseconds a host that answered over https is remembered, set with -Dproxy.https.ttl in seconds.
+     */
+    private static final long HTTPS_TTL = Long.getLong("proxy.https.ttl", 3600) * 1000;
+    /**
+     * Milliseconds a host that didn't answer over https is remembered, set with -Dproxy.https.negativeTtl in seconds.
+     */
+    private static final long HTTP_TTL = Long.getLong("proxy.https.negativeTtl", 300) * 1000;
+    /**
+     * Max number of hosts remembered.
+     */
+    private static final int MAX_HOSTS = 10000;
+
+    /**
+     * The connections the probes are sent on, left open for the fetch that follows.
+     */
+    private final OriginPool origins;
+    /**
+     * The probe results, keyed by host and port.
+     */
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+    /**
+     * The probes of hosts seen for the first time, which the other requests for the host wait for.
+     */
+    private final Map<String, CompletableFuture<Host>> probing = new ConcurrentHashMap<>();
+    /**
+     * Daemon threads refreshing out of date results.
+     */
+    private final ExecutorService refresher = Executors.newCachedThreadPool(task -> {
+        Thread t = new Thread(task, "Https probe");
+        //Does not prevent the JVM from exiting when the program finishes
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Constructor.
+     *
+     * @param origins the connections the probes are sent on.
+     */
+    HttpsHosts(OriginPool origins) {
+        this.origins = origins;
+    }
+
+    /**
+     * Check if a target machine is reachable with https.
+     * Only blocks the first time a host is seen, later calls answer from what was learnt.
+     * Requests for a host while it is first probed wait for that probe rather than send their own.
+     *
+     * @param url the https url of the page.
+     * @return whether to fetch the page with https.
+     */
+    boolean supportsHttps(String url) {
+        String authority;
+        try {
+            authority = new URL(url).getAuthority();
+        } catch (MalformedURLException e) {
+            return false;
+        }
+        Host host = hosts.get(authority);
+        if (host == null)
+            return probe(authority, url).https;
+        if (System.currentTimeMillis() > host.expires && host.refreshing.compareAndSet(false, true)) {
+            //Answer with the old result and probe again for the next request
+            refresher.execute(() -> remember(authority, new Host(pingURL(url))));
+        }
+        return host.https;
+    }
+
+    /**
+     * Probe a host seen for the first time, or wait for the probe already sent to it.
+     *
+     * @param authority the host and port.
+     * @param url the https url of the page.
+     * @return the probe result.
+     */
+    private Host probe(String authority, String url) {
+        CompletableFuture<Host> probe = new CompletableFuture<>();
+        CompletableFuture<Host> running = probing.putIfAbsent(authority, probe);
+        if (running != null)
+            return running.join();
+        try {
+            //A probe may have finished between the lookup and this one starting
+            Host host = hosts.get(authority);
+            if (host == null) {
+                host = new Host(pingURL(url));
+                remember(authority, host);
+            }
+            probe.complete(host);
+            return host;
+        } catch (RuntimeException e) {
+            probe.completeExceptionally(e);
+            throw e;
+        } finally {
+            probing.remove(authority, probe);
+        }
+    }
+
+    /**
+     * Keep a probe result, making room for it first.
+     *
+     * @param authority the host and port.
+     * @param host the probe result.
+     */
+    private void remember(String authority, Host host) {
+        makeRoom();
+        hosts.put(authority, host);
+    }
+
+    /**
+     * Forget out of date hosts, or any host if none are, to stay under the max.
+     */
+    private void makeRoom() {
+        if (hosts.size() < MAX_HOSTS)
+            return;
+        long now = System.currentTimeMillis();
+        hosts.values().removeIf(host -> now > host.expires);
+        Iterator<Host> itr = hosts.values().iterator();
+        while (hosts.size() >= MAX_HOSTS && itr.hasNext()) {
+            itr.next();
+            itr.remove();
+        }
+    }
+
+    /**
+     * Check if url is available.
+     *
+     * @param url url to be checked.
+     * @return whether target is reachable with https.
+     */
+    private boolean pingURL(String url) {
+        try {
+            //Send a HEAD request, the connection goes back to the pool warm
+            OriginResponse response = origins.send("HEAD", new URL(url), null, ProxyThread.TIMEOUT);
+            response.close();
+            //Check response code
+            int responseCode = response.status();
+            return (200 <= responseCode && responseCode <= 399);
+        } catch (IOException exception) {
+            return false;
+        }
+    }
+
+    /**
+     * The probe result for one host.
+     */
+    private static class Host {
+
+        /**
+         * Whether the host answered over https.
+         */
+        final boolean https;
+        /**
+         * The time the result is out of date.
+         */
+        final long expires;
+        /**
+         * Whether a probe is already refreshing the result.
+         */
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        /**
+         * Constructor.
+         *
+         * @param https whether the host answered over https.
+         */
+        Host(boolean https) {
+            this.https = https;
+            expires = System.currentTimeMillis() + (https ? HTTPS_TTL : HTTP_TTL);
+        }
+    }
+}
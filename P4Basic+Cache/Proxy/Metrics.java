@@ -0,0 +1,386 @@
+package Proxy;
+
+import Proxy.Cache.CacheManager;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of what the proxy and its cache are doing, kept with adders so request threads never wait on each other.
+ * They are published over JMX and as plain text on http://localhost:7539/metrics,
+ * the port is set with -Dproxy.metricsPort (0 for none).
+ */
+class Metrics implements MetricsMBean {
+
+    /**
+     * Port of the metrics endpoint, only listening on loopback.
+     */
+    private static final int PORT = Integer.getInteger("proxy.metricsPort", 7539);
+
+    /**
+     * Requests by how they were answered.
+     */
+    final LongAdder cacheHits = new LongAdder();
+    final LongAdder revalidations = new LongAdder();
+    final LongAdder sharedFetches = new LongAdder();
+    final LongAdder peerFetches = new LongAdder();
+    final LongAdder cacheMisses = new LongAdder();
+    final LongAdder otherRequests = new LongAdder();
+    /**
+     * Fetches that failed before the target machine answered.
+     */
+    final LongAdder originErrors = new LongAdder();
+    /**
+     * Requests a peer couldn't be reached for or answered with a server error, fetched from the target machine instead.
+     */
+    final LongAdder peerFailures = new LongAdder();
+    /**
+     * Time until the target machine's response head arrived.
+     */
+    final LatencyHistogram originLatency = new LatencyHistogram();
+    /**
+     * The cache the page counts and sizes come from.
+     */
+    private final CacheManager cache;
+    /**
+     * The access log, which counts the lines it drops.
+     */
+    private final AccessLog accessLog;
+    /**
+     * The limits, which count what is open and what they turned away.
+     */
+    private final Admission admission;
+    /**
+     * The resolver, which counts its lookups.
+     */
+    private final Resolver resolver;
+    /**
+     * The prefetcher, which counts what it fetched and skipped.
+     */
+    private final Prefetcher prefetcher;
+
+    /**
+     * Constructor.
+     *
+     * @param cache the cache the page counts and sizes come from.
+     * @param accessLog the access log.
+     * @param admission the limits on connections and fetches.
+     * @param resolver the resolver of target machines.
+     * @param prefetcher the prefetcher of linked files.
+     */
+    Metrics(CacheManager cache, AccessLog accessLog, Admission admission, Resolver resolver, Prefetcher prefetcher) {
+        this.cache = cache;
+        this.accessLog = accessLog;
+        this.admission = admission;
+        this.resolver = resolver;
+        this.prefetcher = prefetcher;
+    }
+
+    /**
+     * Register with JMX and start the metrics endpoint.
+     * The proxy runs without them if either fails.
+     */
+    void publish() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("Proxy:type=Metrics"));
+        } catch (JMException e) {
+            System.out.println("Metrics not registered with JMX: " + e.getMessage());
+        }
+        if (PORT <= 0)
+            return;
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT), 0);
+            server.createContext("/metrics", this::handle);
+            server.start();
+        } catch (IOException e) {
+            System.out.println("Metrics endpoint not available: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Answer a request to the metrics endpoint.
+     *
+     * @param exchange the request and response.
+     * @throws IOException if the client is broken.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            byte[] body = text().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * @return every counter in the Prometheus text format.
+     */
+    String text() {
+        StringBuilder text = new StringBuilder();
+        type(text, "proxy_requests_total", "counter");
+        text.append("proxy_requests_total{type=\"cache\"} ").append(getCacheHits()).append('\n');
+        text.append("proxy_requests_total{type=\"revalidated\"} ").append(getRevalidations()).append('\n');
+        text.append("proxy_requests_total{type=\"shared\"} ").append(getSharedFetches()).append('\n');
+        text.append("proxy_requests_total{type=\"peer\"} ").append(getPeerFetches()).append('\n');
+        text.append("proxy_requests_total{type=\"fetched\"} ").append(getCacheMisses()).append('\n');
+        text.append("proxy_requests_total{type=\"other\"} ").append(getOtherRequests()).append('\n');
+        gauge(text, "proxy_cache_hit_ratio", getHitRatio());
+        counter(text, "proxy_origin_errors_total", getOriginErrors());
+        counter(text, "proxy_peer_failures_total", getPeerFailures());
+        type(text, "proxy_origin_latency_seconds", "histogram");
+        long cumulative = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            cumulative += originLatency.count(i);
+            double bound = LatencyHistogram.upperBound(i);
+            text.append("proxy_origin_latency_seconds_bucket{le=\"")
+                    .append(Double.isInfinite(bound) ? "+Inf" : Double.toString(bound / 1000))
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+        text.append("proxy_origin_latency_seconds_sum ").append(originLatency.sumMillis() / 1000).append('\n');
+        text.append("proxy_origin_latency_seconds_count ").append(cumulative).append('\n');
+        gauge(text, "proxy_active_connections", getActiveConnections());
+        gauge(text, "proxy_active_fetches", getActiveFetches());
+        type(text, "proxy_rejected_total", "counter");
+        text.append("proxy_rejected_total{limit=\"connections\"} ").append(getRejectedConnections()).append('\n');
+        text.append("proxy_rejected_total{limit=\"client\"} ").append(getRejectedClientConnections()).append('\n');
+        text.append("proxy_rejected_total{limit=\"fetches\"} ").append(getRejectedFetches()).append('\n');
+        counter(text, "proxy_dns_cache_hits_total", getDnsCacheHits());
+        counter(text, "proxy_dns_lookups_total", getDnsLookups());
+        counter(text, "proxy_dns_failures_total", getDnsFailures());
+        counter(text, "proxy_dns_prefetches_total", getDnsPrefetches());
+        gauge(text, "proxy_dns_names", getDnsNames());
+        counter(text, "proxy_prefetch_pages_total", getPrefetchPages());
+        counter(text, "proxy_prefetch_fetched_total", getPrefetchFetched());
+        counter(text, "proxy_prefetch_bytes_total", getPrefetchBytes());
+        counter(text, "proxy_prefetch_skipped_total", getPrefetchSkipped());
+        gauge(text, "proxy_cache_pages", getCachedPages());
+        type(text, "proxy_cache_bytes", "gauge");
+        text.append("proxy_cache_bytes{tier=\"heap\"} ").append(getCacheHeapBytes()).append('\n');
+        text.append("proxy_cache_bytes{tier=\"offheap\"} ").append(getCacheOffHeapBytes()).append('\n');
+        counter(text, "proxy_cache_evictions_total", getEvictions());
+        counter(text, "proxy_cache_expirations_total", getExpirations());
+        type(text, "proxy_access_log_dropped_total", "counter");
+        text.append("proxy_access_log_dropped_total ").append(getAccessLogDropped()).append('\n');
+        return text.toString();
+    }
+
+    /**
+     * Write the type line of a metric.
+     *
+     * @param text the text being built.
+     * @param name the metric.
+     * @param type its type.
+     */
+    private static void type(StringBuilder text, String name, String type) {
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Write a counter with no labels.
+     *
+     * @param text the text being built.
+     * @param name the metric.
+     * @param value its value.
+     */
+    private static void counter(StringBuilder text, String name, long value) {
+        type(text, name, "counter");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Write a gauge with no labels.
+     *
+     * @param text the text being built.
+     * @param name the metric.
+     * @param value its value.
+     */
+    private static void gauge(StringBuilder text, String name, double value) {
+        type(text, name, "gauge");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Write a whole number gauge with no labels.
+     *
+     * @param text the text being built.
+     * @param name the metric.
+     * @param value its value.
+     */
+    private static void gauge(StringBuilder text, String name, long value) {
+        type(text, name, "gauge");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getRevalidations() {
+        return revalidations.sum();
+    }
+
+    @Override
+    public long getSharedFetches() {
+        return sharedFetches.sum();
+    }
+
+    @Override
+    public long getPeerFetches() {
+        return peerFetches.sum();
+    }
+
+    @Override
+    public long getPeerFailures() {
+        return peerFailures.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public long getOtherRequests() {
+        return otherRequests.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = getCacheHits() + getRevalidations() + getSharedFetches();
+        long total = hits + getCacheMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getOriginFetches() {
+        return originLatency.count();
+    }
+
+    @Override
+    public long getOriginErrors() {
+        return originErrors.sum();
+    }
+
+    @Override
+    public double getOriginLatencyMeanMillis() {
+        return originLatency.mean();
+    }
+
+    @Override
+    public double getOriginLatency99thMillis() {
+        return originLatency.valueAt(99);
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return admission.connections();
+    }
+
+    @Override
+    public int getActiveFetches() {
+        return admission.fetches();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return admission.rejectedConnections.sum();
+    }
+
+    @Override
+    public long getRejectedClientConnections() {
+        return admission.rejectedClientConnections.sum();
+    }
+
+    @Override
+    public long getRejectedFetches() {
+        return admission.rejectedFetches.sum();
+    }
+
+    @Override
+    public long getDnsCacheHits() {
+        return resolver.hits.sum();
+    }
+
+    @Override
+    public long getDnsLookups() {
+        return resolver.lookups.sum();
+    }
+
+    @Override
+    public long getDnsFailures() {
+        return resolver.failures.sum();
+    }
+
+    @Override
+    public long getDnsPrefetches() {
+        return resolver.prefetches.sum();
+    }
+
+    @Override
+    public int getDnsNames() {
+        return resolver.size();
+    }
+
+    @Override
+    public long getPrefetchPages() {
+        return prefetcher.pages.sum();
+    }
+
+    @Override
+    public long getPrefetchFetched() {
+        return prefetcher.fetched.sum();
+    }
+
+    @Override
+    public long getPrefetchBytes() {
+        return prefetcher.bytes.sum();
+    }
+
+    @Override
+    public long getPrefetchSkipped() {
+        return prefetcher.skipped.sum();
+    }
+
+    @Override
+    public long getAccessLogDropped() {
+        return accessLog.dropped();
+    }
+
+    @Override
+    public int getCachedPages() {
+        return cache.size();
+    }
+
+    @Override
+    public long getCacheHeapBytes() {
+        return cache.heapBytes();
+    }
+
+    @Override
+    public long getCacheOffHeapBytes() {
+        return cache.offHeapBytes();
+    }
+
+    @Override
+    public long getEvictions() {
+        return cache.evictions();
+    }
+
+    @Override
+    public long getExpirations() {
+        return cache.expirations();
+    }
+}
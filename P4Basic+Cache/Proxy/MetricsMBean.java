@@ -0,0 +1,167 @@
+package Proxy;
+
+/**
+ * Counters of the caching proxy as seen over JMX, under Proxy:type=Metrics.
+ */
+public interface MetricsMBean {
+
+    /**
+     * @return GET requests answered from a fresh cached page.
+     */
+    long getCacheHits();
+
+    /**
+     * @return GET requests answered from a stale cached page the target machine said was still good.
+     */
+    long getRevalidations();
+
+    /**
+     * @return GET requests answered from a page another request was fetching.
+     */
+    long getSharedFetches();
+
+    /**
+     * @return GET requests answered by the peer owning the page.
+     */
+    long getPeerFetches();
+
+    /**
+     * @return GET requests the owning peer couldn't be reached for or answered with a server error, fetched from the target machine instead.
+     */
+    long getPeerFailures();
+
+    /**
+     * @return GET requests the page had to be fetched for.
+     */
+    long getCacheMisses();
+
+    /**
+     * @return requests with other methods, which are never cached.
+     */
+    long getOtherRequests();
+
+    /**
+     * @return the share of GET requests answered without fetching the whole page, from 0 to 1.
+     */
+    double getHitRatio();
+
+    /**
+     * @return fetches the target machine answered, one per request whatever the redirects followed.
+     */
+    long getOriginFetches();
+
+    /**
+     * @return fetches that failed before the target machine answered.
+     */
+    long getOriginErrors();
+
+    /**
+     * @return mean milliseconds until the target machine's response head arrived.
+     */
+    double getOriginLatencyMeanMillis();
+
+    /**
+     * @return 99th percentile milliseconds until the target machine's response head arrived, rounded up to a power of two.
+     */
+    double getOriginLatency99thMillis();
+
+    /**
+     * @return open client connections.
+     */
+    int getActiveConnections();
+
+    /**
+     * @return fetches from target machines in progress.
+     */
+    int getActiveFetches();
+
+    /**
+     * @return connections reset because too many were open.
+     */
+    long getRejectedConnections();
+
+    /**
+     * @return connections reset because their client had too many open.
+     */
+    long getRejectedClientConnections();
+
+    /**
+     * @return requests sent a 503 because too many fetches were in progress or waiting.
+     */
+    long getRejectedFetches();
+
+    /**
+     * @return host names answered from the resolver's cache.
+     */
+    long getDnsCacheHits();
+
+    /**
+     * @return host names looked up, in the background included.
+     */
+    long getDnsLookups();
+
+    /**
+     * @return lookups that found no address.
+     */
+    long getDnsFailures();
+
+    /**
+     * @return popular names looked up again before they ran out.
+     */
+    long getDnsPrefetches();
+
+    /**
+     * @return host names cached.
+     */
+    int getDnsNames();
+
+    /**
+     * @return HTML pages scanned for the files they link to.
+     */
+    long getPrefetchPages();
+
+    /**
+     * @return linked files fetched into the cache ahead of a request.
+     */
+    long getPrefetchFetched();
+
+    /**
+     * @return bytes of linked files fetched ahead.
+     */
+    long getPrefetchBytes();
+
+    /**
+     * @return pages and linked files skipped because of the prefetch limits.
+     */
+    long getPrefetchSkipped();
+
+    /**
+     * @return access log lines dropped because the log was behind.
+     */
+    long getAccessLogDropped();
+
+    /**
+     * @return pages in the cache.
+     */
+    int getCachedPages();
+
+    /**
+     * @return bytes of pages on the heap.
+     */
+    long getCacheHeapBytes();
+
+    /**
+     * @return bytes of pages in the off heap store.
+     */
+    long getCacheOffHeapBytes();
+
+    /**
+     * @return pages removed to make room.
+     */
+    long getEvictions();
+
+    /**
+     * @return pages removed because they expired.
+     */
+    long getExpirations();
+}
@@ -0,0 +1,433 @@
+package Proxy;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keep-alive connections to target machines, kept open between requests so repeated fetches
+ * from a site skip the TCP and TLS handshakes. Connections are pooled by scheme, host and port.
+ */
+class OriginPool {
+
+    /**
+     * Max connections open to one host, set with -Dproxy.upstream.maxPerHost.
+     */
+    private static final int MAX_PER_HOST = Integer.getInteger("proxy.upstream.maxPerHost", 8);
+    /**
+     * Milliseconds an unused connection is kept open, set with -Dproxy.upstream.idleTimeout in seconds.
+     */
+    private static final long IDLE_TIMEOUT = Long.getLong("proxy.upstream.idleTimeout", 30) * 1000;
+    /**
+     * Milliseconds a connection may sit unused before it is checked before being reused.
+     */
+    private static final long CHECK_AFTER = 1000;
+    /**
+     * End of a chunked body.
+     */
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    /**
+     * End of a chunk.
+     */
+    private static final byte[] CRLF = {'\r', '\n'};
+    /**
+     * Methods a request may be sent twice with, as doing so has the same effect as once.
+     */
+    private static final Set<String> IDEMPOTENT = new HashSet<>(Arrays.asList("GET", "HEAD", "OPTIONS", "PUT", "DELETE", "TRACE"));
+
+    /**
+     * The connections for each scheme, host and port, dropped once a host has none open and no request waiting.
+     */
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+    /**
+     * Single daemon thread closing idle connections.
+     */
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread t = new Thread(task, "Origin pool evictor");
+        //Does not prevent the JVM from exiting when the program finishes
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Looks up the target machines, so a new connection to a known host skips resolution.
+     */
+    private final Resolver resolver;
+
+    /**
+     * Constructor.
+     *
+     * @param resolver looks up the target machines.
+     */
+    OriginPool(Resolver resolver) {
+        this.resolver = resolver;
+        evictor.scheduleWithFixedDelay(this::evictIdle, IDLE_TIMEOUT, IDLE_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send a request to a target machine and read the head of the response.
+     * A request that fails on a reused connection before any response arrives is sent again on a new one.
+     *
+     * @param method the request method.
+     * @param url the url of the page.
+     * @param headers extra request header lines, may be null.
+     * @param timeout max milliseconds to connect or wait for data.
+     * @return the response, its body has to be read or closed to give the connection back.
+     * @throws IOException if the target can't be reached or answers badly.
+     */
+    OriginResponse send(String method, URL url, String[] headers, int timeout) throws IOException {
+        return send(null, method, url, headers, null, timeout);
+    }
+
+    /**
+     * Send a request with a body to a target machine and read the head of the response.
+     *
+     * @param method the request method.
+     * @param url the url of the page.
+     * @param headers extra request header lines, may be null.
+     * @param body the client's request body, may be null.
+     * @param timeout max milliseconds to connect or wait for data.
+     * @return the response, its body has to be read or closed to give the connection back.
+     * @throws IOException if the target or client can't be reached or the target answers badly.
+     */
+    OriginResponse send(String method, URL url, String[] headers, RequestBody body, int timeout) throws IOException {
+        return send(null, method, url, headers, body, timeout);
+    }
+
+    /**
+     * Send a request through another proxy and read the head of the response.
+     * A request that fails on a reused connection before any response arrives is sent again on a new one,
+     * as long as it has no body and its method allows it to be sent twice.
+     *
+     * @param proxy the url of the proxy, null to send the request straight to the target machine.
+     * @param method the request method.
+     * @param url the url of the page.
+     * @param headers extra request header lines, may be null.
+     * @param body the client's request body, may be null.
+     * @param timeout max milliseconds to connect or wait for data.
+     * @return the response, its body has to be read or closed to give the connection back.
+     * @throws IOException if the proxy, target or client can't be reached or the target answers badly.
+     */
+    OriginResponse send(URL proxy, String method, URL url, String[] headers, RequestBody body, int timeout) throws IOException {
+        //Connections to a proxy are pooled like those to a target machine
+        URL target = proxy != null ? proxy : url;
+        //Counted as waiting in the same step it is found, so the evictor can't drop it before a connection is open
+        Host host = hosts.compute(key(target), (k, h) -> {
+            h = h != null ? h : new Host();
+            h.waiting.incrementAndGet();
+            return h;
+        });
+        byte[] request = request(method, url, headers, body, proxy != null);
+        try {
+            while (true) {
+                Connection connection = host.borrow(target, timeout);
+                try {
+                    connection.socket.setSoTimeout(timeout);
+                    connection.out.write(request);
+                    if (body != null)
+                        writeBody(body, connection.out);
+                    connection.out.flush();
+                    return new OriginResponse(this, connection, method);
+                } catch (IOException e) {
+                    release(connection, false);
+                    //A kept alive connection may have been closed by the target while idle,
+                    //but the target may also have acted on the request, and a body can't be read twice
+                    if (!connection.reused || body != null || !IDEMPOTENT.contains(method))
+                        throw e;
+                }
+            }
+        } finally {
+            //The connection returned holds a permit, which keeps the host until it is closed
+            host.waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Copy a request body to the target machine, chunked again if the client sent it chunked.
+     *
+     * @param body the client's request body.
+     * @param out the stream to the target machine.
+     * @throws IOException if the client or target is broken.
+     */
+    private static void writeBody(RequestBody body, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = body.read(buffer, 0, buffer.length)) != -1) {
+            if (body.length() < 0)
+                out.write((Integer.toHexString(n) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(buffer, 0, n);
+            if (body.length() < 0)
+                out.write(CRLF);
+        }
+        if (body.length() < 0)
+            out.write(LAST_CHUNK);
+    }
+
+    /**
+     * Give a connection back once its response has been read.
+     *
+     * @param connection the connection.
+     * @param reusable whether another request can be sent on it.
+     */
+    void release(Connection connection, boolean reusable) {
+        if (reusable) {
+            connection.lastUsed = System.currentTimeMillis();
+            connection.reused = true;
+            connection.host.idle.push(connection);
+        } else {
+            connection.close();
+        }
+    }
+
+    /**
+     * Close the connections that have been unused for the idle timeout, and drop the hosts left with none.
+     */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Host> entry : hosts.entrySet()) {
+            Host host = entry.getValue();
+            Iterator<Connection> itr = host.idle.descendingIterator();
+            while (itr.hasNext()) {
+                Connection connection = itr.next();
+                if (now - connection.lastUsed > IDLE_TIMEOUT && host.idle.removeFirstOccurrence(connection))
+                    connection.close();
+            }
+            //A forward proxy sees endless hosts, checked and removed in one step so a request can't pick it up meanwhile
+            hosts.computeIfPresent(entry.getKey(), (k, h) -> h.isUnused() ? null : h);
+        }
+    }
+
+    /**
+     * Build a request.
+     *
+     * @param method the request method.
+     * @param url the url of the page.
+     * @param headers extra request header lines, may be null.
+     * @param body the client's request body, may be null.
+     * @param absolute whether the whole url goes in the request line, as a proxy expects.
+     * @return the request bytes.
+     */
+    private static byte[] request(String method, URL url, String[] headers, RequestBody body, boolean absolute) {
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        if (absolute)
+            path = url.getProtocol() + "://" + url.getAuthority() + path;
+        StringBuilder request = new StringBuilder(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(url.getAuthority()).append("\r\n");
+        request.append("User-Agent: Java/").append(System.getProperty("java.version")).append("\r\n");
+        request.append("Accept: */*\r\n");
+        if (body != null && body.length() >= 0)
+            request.append("Content-Length: ").append(body.length()).append("\r\n");
+        else if (body != null)
+            request.append("Transfer-Encoding: chunked\r\n");
+        else if (method.equals("POST") || method.equals("PUT"))
+            request.append("Content-Length: 0\r\n");
+        if (headers != null) {
+            for (String header : headers)
+                request.append(header).append("\r\n");
+        }
+        return request.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Key connections are pooled under.
+     *
+     * @param url the url of the page.
+     * @return the scheme, host and port.
+     */
+    private static String key(URL url) {
+        return url.getProtocol() + "://" + url.getHost() + ":" + port(url);
+    }
+
+    /**
+     * @param url the url of the page.
+     * @return the port, or the scheme's default one.
+     */
+    private static int port(URL url) {
+        return url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+    }
+
+    /**
+     * The connections to one scheme, host and port.
+     */
+    private class Host {
+
+        /**
+         * Connections waiting for a request, most recently used first.
+         */
+        final Deque<Connection> idle = new ConcurrentLinkedDeque<>();
+        /**
+         * One permit for each connection that may still be opened.
+         */
+        final Semaphore permits = new Semaphore(MAX_PER_HOST);
+        /**
+         * Requests being sent to the host, counted until send returns them a connection or fails.
+         */
+        final AtomicInteger waiting = new AtomicInteger();
+
+        /**
+         * @return whether no connection to the host is open, idle or busy, and no request is waiting for one.
+         */
+        boolean isUnused() {
+            return waiting.get() == 0 && permits.availablePermits() == MAX_PER_HOST;
+        }
+
+        /**
+         * Take an idle connection that is still healthy, or open a new one.
+         *
+         * @param url the url of the page.
+         * @param timeout max milliseconds to connect, and to wait for a connection when the host has the max open.
+         * @return the connection.
+         * @throws IOException if the target can't be reached or all connections stay busy.
+         */
+        Connection borrow(URL url, int timeout) throws IOException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (true) {
+                Connection connection;
+                while ((connection = idle.poll()) != null) {
+                    if (connection.isHealthy())
+                        return connection;
+                    connection.close();
+                }
+                try {
+                    //Wake up now and then in case a busy connection has been given back
+                    if (permits.tryAcquire(Math.max(1, Math.min(100, deadline - System.currentTimeMillis())), TimeUnit.MILLISECONDS))
+                        return open(url, timeout);
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted waiting for a connection to " + url.getHost());
+                }
+                if (System.currentTimeMillis() >= deadline)
+                    throw new IOException("No free connection to " + url.getHost());
+            }
+        }
+
+        /**
+         * Open a new connection, holding a permit.
+         *
+         * @param url the url of the page.
+         * @param timeout max milliseconds to connect.
+         * @return the connection.
+         * @throws IOException if the target can't be reached.
+         */
+        private Connection open(URL url, int timeout) throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(resolver.resolve(url.getHost()), port(url)), timeout);
+                socket.setTcpNoDelay(true);
+                if (url.getProtocol().equals("https")) {
+                    SSLSocket ssl = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                            .createSocket(socket, url.getHost(), port(url), true);
+                    //Check the certificate is for the host
+                    SSLParameters parameters = ssl.getSSLParameters();
+                    parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                    ssl.setSSLParameters(parameters);
+                    ssl.setSoTimeout(timeout);
+                    ssl.startHandshake();
+                    socket = ssl;
+                }
+                return new Connection(this, socket);
+            } catch (IOException | RuntimeException e) {
+                socket.close();
+                permits.release();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * One connection to a target machine.
+     */
+    class Connection {
+
+        /**
+         * The host the connection belongs to.
+         */
+        final Host host;
+        /**
+         * The socket and its buffered streams.
+         */
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        /**
+         * The time the connection was last given back.
+         */
+        volatile long lastUsed;
+        /**
+         * Whether the connection has already carried a request.
+         */
+        boolean reused;
+
+        /**
+         * Constructor.
+         *
+         * @param host the host the connection belongs to.
+         * @param socket the connected socket.
+         * @throws IOException if the socket is broken.
+         */
+        Connection(Host host, Socket socket) throws IOException {
+            this.host = host;
+            this.socket = socket;
+            in = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        /**
+         * Check that an idle connection hasn't been closed by the target machine.
+         *
+         * @return whether it can be reused.
+         */
+        boolean isHealthy() {
+            if (socket.isClosed())
+                return false;
+            if (System.currentTimeMillis() - lastUsed < CHECK_AFTER)
+                return true;
+            try {
+                //Nothing should arrive between responses, a closed connection reads end of stream
+                if (in.available() > 0)
+                    return false;
+                socket.setSoTimeout(1);
+                in.read();
+                //Either end of stream or data nobody asked for
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Close the connection and free its permit.
+         */
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            host.permits.release();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package Proxy;
+
+import Proxy.Cache.ResponseHead;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * A response from a target machine on a pooled connection.
+ * The connection is given back to the pool once the body has been read to the end,
+ * or closed if the body is abandoned part way.
+ */
+class OriginResponse {
+
+    /**
+     * The pool the connection came from.
+     */
+    private final OriginPool pool;
+    /**
+     * The connection the response arrives on, null once given back.
+     */
+    private OriginPool.Connection connection;
+    /**
+     * The status line and headers.
+     */
+    private final ResponseHead head;
+    /**
+     * The body, null if the response has none.
+     */
+    private final Body body;
+
+    /**
+     * Constructor, reads the head of the response.
+     *
+     * @param pool the pool the connection came from.
+     * @param connection the connection the request was sent on.
+     * @param method the request method.
+     * @throws IOException if the target is broken or the head is malformed.
+     */
+    OriginResponse(OriginPool pool, OriginPool.Connection connection, String method) throws IOException {
+        this.pool = pool;
+        this.connection = connection;
+        head = ResponseHead.read(connection.in);
+        int status = head.status();
+        //HTTP/1.1 connections stay open unless closed, older ones only if asked
+        String connectionHeader = head.header("Connection");
+        boolean keepAlive = head.version().equals("HTTP/1.1")
+                ? connectionHeader == null || !connectionHeader.equalsIgnoreCase("close")
+                : connectionHeader != null && connectionHeader.equalsIgnoreCase("keep-alive");
+        String transferEncoding = head.header("Transfer-Encoding");
+        String contentLength = head.header("Content-Length");
+        if (method.equals("HEAD") || status == 204 || status == 304) {
+            body = null;
+        } else if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ROOT).contains("chunked")) {
+            body = new Body(-1, true, keepAlive);
+        } else if (contentLength != null) {
+            try {
+                body = new Body(Long.parseLong(contentLength.trim()), false, keepAlive);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed Content-Length: " + contentLength);
+            }
+        } else {
+            //Only the end of the connection marks the end of the body
+            body = new Body(-1, false, false);
+        }
+        if (body == null)
+            finish(keepAlive);
+    }
+
+    /**
+     * @return the status line and headers.
+     */
+    ResponseHead head() {
+        return head;
+    }
+
+    /**
+     * @return the status code.
+     */
+    int status() {
+        return head.status();
+    }
+
+    /**
+     * @return the body, null if the response has none.
+     */
+    InputStream body() {
+        return body;
+    }
+
+    /**
+     * Abandon the response, the connection is closed unless the body was already read to the end.
+     */
+    void close() {
+        finish(false);
+    }
+
+    /**
+     * Read the rest of the body so the connection can be reused, for small responses such as redirects.
+     */
+    void discard() {
+        try {
+            if (body != null) {
+                byte[] skip = new byte[4096];
+                while (body.read(skip, 0, skip.length) != -1) ;
+            }
+        } catch (IOException ignored) {
+        }
+        close();
+    }
+
+    /**
+     * Give the connection back, unless already done.
+     *
+     * @param reusable whether another request can be sent on it.
+     */
+    private void finish(boolean reusable) {
+        if (connection != null) {
+            pool.release(connection, reusable);
+            connection = null;
+        }
+    }
+
+    /**
+     * The body, framed by Content-Length, chunked encoding or the end of the connection.
+     */
+    private class Body extends InputStream {
+
+        /**
+         * Bytes left in the body or in the current chunk.
+         */
+        private long remaining;
+        /**
+         * Whether the body is chunked.
+         */
+        private final boolean chunked;
+        /**
+         * Whether the connection can be reused once the body ends.
+         */
+        private final boolean keepAlive;
+        /**
+         * Whether a chunk has been started and whether the end of the body has been reached.
+         */
+        private boolean started;
+        private boolean done;
+
+        /**
+         * Constructor.
+         *
+         * @param length the size of the body, -1 if unknown.
+         * @param chunked whether the body is chunked.
+         * @param keepAlive whether the connection can be reused once the body ends.
+         */
+        Body(long length, boolean chunked, boolean keepAlive) {
+            this.chunked = chunked;
+            this.keepAlive = keepAlive;
+            remaining = chunked ? 0 : length;
+            if (length == 0)
+                end();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done)
+                return -1;
+            if (connection == null)
+                throw new IOException("Response closed");
+            if (chunked && remaining == 0 && !nextChunk())
+                return -1;
+            InputStream in = connection.in;
+            int count = remaining < 0 ? in.read(b, off, len) : in.read(b, off, (int) Math.min(len, remaining));
+            if (count == -1) {
+                if (remaining >= 0)
+                    throw new EOFException("Response body ended early");
+                end();
+                return -1;
+            }
+            if (remaining > 0) {
+                remaining -= count;
+                if (remaining == 0 && !chunked)
+                    end();
+            }
+            return count;
+        }
+
+        /**
+         * Start the next chunk of a chunked body.
+         *
+         * @return false if the body has ended.
+         * @throws IOException if the chunk size is malformed.
+         */
+        private boolean nextChunk() throws IOException {
+            InputStream in = connection.in;
+            //The previous chunk is followed by a line ending
+            if (remaining == 0 && started)
+                line(in);
+            started = true;
+            String size = line(in);
+            int semicolon = size.indexOf(';');
+            try {
+                remaining = Long.parseLong((semicolon < 0 ? size : size.substring(0, semicolon)).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed chunk size: " + size);
+            }
+            if (remaining > 0)
+                return true;
+            //Skip the trailers
+            while (!line(in).isEmpty()) ;
+            end();
+            return false;
+        }
+
+        /**
+         * Mark the body as read and give the connection back.
+         */
+        private void end() {
+            done = true;
+            finish(keepAlive);
+        }
+
+        @Override
+        public void close() {
+            OriginResponse.this.close();
+        }
+
+        /**
+         * Read one line of chunk framing.
+         *
+         * @param in the stream from the target machine.
+         * @return the line without its line ending.
+         * @throws IOException if the stream ends.
+         */
+        private String line(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c == -1)
+                    throw new EOFException("Response body ended early");
+                if (line.length() == 1024)
+                    throw new IOException("Chunk line too long");
+                if (c != '\r')
+                    line.append((char) c);
+            }
+            return line.toString();
+        }
+    }
+}
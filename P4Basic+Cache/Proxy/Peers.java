@@ -0,0 +1,207 @@
+package Proxy;
+
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The other proxies sharing the work of caching, each owning a slice of the pages picked by consistent hashing,
+ * so a page is cached by one of them and adding a proxy only moves the pages of its slice.
+ * The proxies are listed as host:port with -Dproxy.peers, in the same order on every one of them,
+ * and this proxy is the one set with -Dproxy.peer.self, by default the one on the port it listens on.
+ * A peer that can't be reached is skipped for -Dproxy.peer.retry seconds (default 10).
+ * Only requests from the addresses of the proxies are taken as coming from a peer.
+ */
+class Peers {
+
+    /**
+     * Header marking a request from a peer, which is never passed on to another peer.
+     */
+    static final String HEADER = "X-Proxy-Peer";
+    /**
+     * Max milliseconds to connect to a peer or wait for its data, set with -Dproxy.peer.timeout.
+     */
+    static final int TIMEOUT = Integer.getInteger("proxy.peer.timeout", 3000);
+    /**
+     * Points on the ring for each proxy, so the slices stay even.
+     */
+    private static final int POINTS = 160;
+
+    /**
+     * The proxies, as host:port.
+     */
+    private final String[] members;
+    /**
+     * The url each proxy is reached on.
+     */
+    private final URL[] urls;
+    /**
+     * The index of this proxy in the members.
+     */
+    private final int self;
+    /**
+     * The points on the ring in order, and the proxy each belongs to.
+     */
+    private final long[] points;
+    private final int[] owners;
+    /**
+     * Milliseconds a peer is skipped for after it failed.
+     */
+    private final long retry;
+    /**
+     * The time each peer may be tried again.
+     */
+    private final AtomicLongArray downUntil;
+    /**
+     * The addresses of the proxies, found when they are set up.
+     */
+    private final Set<InetAddress> addresses = new HashSet<>();
+
+    /**
+     * Constructor for the peers given by the system properties.
+     *
+     * @param port the port this proxy listens on.
+     */
+    Peers(int port) {
+        this(members(System.getProperty("proxy.peers", "")), System.getProperty("proxy.peer.self", ":" + port),
+                Long.getLong("proxy.peer.retry", 10) * 1000);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param members the proxies, as host:port, may be empty for none.
+     * @param self this proxy, as host:port or :port to pick it by port alone.
+     * @param retry milliseconds a peer is skipped for after it failed.
+     */
+    Peers(String[] members, String self, long retry) {
+        this.members = members;
+        this.retry = retry;
+        urls = new URL[members.length];
+        int found = -1;
+        for (int i = 0; i < members.length; i++) {
+            try {
+                urls[i] = new URL("http://" + members[i]);
+            } catch (MalformedURLException e) {
+                throw new IllegalArgumentException("Malformed peer " + members[i]);
+            }
+            if (found < 0 && (members[i].equals(self) || self.startsWith(":") && members[i].endsWith(self)))
+                found = i;
+            try {
+                addresses.addAll(Arrays.asList(InetAddress.getAllByName(urls[i].getHost())));
+            } catch (UnknownHostException ignored) {
+                //Requests from a proxy that can't be looked up are taken as from any client
+            }
+        }
+        if (members.length > 0 && found < 0)
+            throw new IllegalArgumentException("This proxy " + self + " isn't one of the peers");
+        this.self = found;
+        downUntil = new AtomicLongArray(members.length);
+        //Every proxy builds the same ring from the same list
+        long[] keyed = new long[members.length * POINTS];
+        for (int i = 0; i < members.length; i++) {
+            for (int j = 0; j < POINTS; j++)
+                keyed[i * POINTS + j] = hash(members[i] + "#" + j);
+        }
+        points = keyed.clone();
+        Arrays.sort(points);
+        owners = new int[points.length];
+        for (int i = 0; i < keyed.length; i++)
+            owners[Arrays.binarySearch(points, keyed[i])] = i / POINTS;
+    }
+
+    /**
+     * Split the list of peers.
+     *
+     * @param list host:port pairs separated by commas.
+     * @return the peers.
+     */
+    private static String[] members(String list) {
+        return Arrays.stream(list.split(",")).map(String::trim).filter(s -> !s.isEmpty()).toArray(String[]::new);
+    }
+
+    /**
+     * @return whether there are other proxies to share the pages with.
+     */
+    boolean isEnabled() {
+        return members.length > 1;
+    }
+
+    /**
+     * Find the peer owning a page.
+     *
+     * @param key the key the page is cached under.
+     * @return the index of the peer, or -1 if this proxy owns the page or its owner is being skipped.
+     */
+    int owner(String key) {
+        if (!isEnabled())
+            return -1;
+        long hash = hash(key);
+        //The first point at or after the hash, going round to the start
+        int i = Arrays.binarySearch(points, hash);
+        if (i < 0)
+            i = -i - 1;
+        int owner = owners[i == points.length ? 0 : i];
+        if (owner == self || System.currentTimeMillis() < downUntil.get(owner))
+            return -1;
+        return owner;
+    }
+
+    /**
+     * @param peer the index of the peer.
+     * @return the url it is reached on.
+     */
+    URL url(int peer) {
+        return urls[peer];
+    }
+
+    /**
+     * @return this proxy, as host:port.
+     */
+    String self() {
+        return members[self];
+    }
+
+    /**
+     * Check if a request comes from one of the proxies, so any client can't claim to be a peer.
+     *
+     * @param address the address the request came from.
+     * @return whether it is the address of one of the proxies.
+     */
+    boolean isMember(InetAddress address) {
+        return addresses.contains(address);
+    }
+
+    /**
+     * Skip a peer for a while, after it couldn't be reached.
+     *
+     * @param peer the index of the peer.
+     */
+    void failed(int peer) {
+        downUntil.set(peer, System.currentTimeMillis() + retry);
+    }
+
+    /**
+     * Hash a string onto the ring, FNV-1a finished by a mix so nearby strings land far apart.
+     *
+     * @param s the string.
+     * @return the hash.
+     */
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe1a85ec3L;
+        return h ^ h >>> 33;
+    }
+}
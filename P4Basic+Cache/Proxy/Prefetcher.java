@@ -0,0 +1,307 @@
+package Proxy;
+
+import Proxy.Cache.PageFill;
+import Proxy.Cache.ResponseHead;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fetches the stylesheets, scripts and images an HTML page links to on its own site into the cache,
+ * so the requests the browser makes for them once it has the page are hits.
+ * Off unless -Dproxy.prefetch=true. Pages are scanned and their links fetched by -Dproxy.prefetch.threads
+ * background threads (default 2), at most -Dproxy.prefetch.rate fetches (default 10)
+ * and -Dproxy.prefetch.bytesPerSecond bytes (default 2 MB) a second. Links beyond the limits are skipped.
+ */
+class Prefetcher {
+
+    /**
+     * Max bytes of a page scanned for links.
+     */
+    private static final int MAX_SCAN = 256 * 1024;
+    /**
+     * Max links fetched for one page.
+     */
+    private static final int MAX_LINKS = Integer.getInteger("proxy.prefetch.maxLinks", 32);
+    /**
+     * Max size of a file fetched ahead, set with -Dproxy.prefetch.maxBytes.
+     */
+    private static final long MAX_BYTES = Long.getLong("proxy.prefetch.maxBytes", 1024 * 1024);
+    /**
+     * Max pages waiting to be scanned, later pages are skipped.
+     */
+    private static final int QUEUE = 256;
+    /**
+     * Tags that load a file, and the attributes naming it.
+     */
+    private static final Pattern TAG = Pattern.compile("<(script|img|link|source)\\b([^>]*)>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ATTRIBUTE = Pattern.compile("\\b(src|href|rel)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s>]+))",
+            Pattern.CASE_INSENSITIVE);
+    /**
+     * Link relations the browser loads straight away.
+     */
+    private static final Pattern LOADED = Pattern.compile("\\b(stylesheet|icon|preload|modulepreload)\\b", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Fetches a file into the cache.
+     */
+    interface Fetcher {
+
+        /**
+         * Fetch a file into the cache, unless it is already cached or being fetched.
+         *
+         * @param url the url of the file.
+         * @param request looks up a header of the request the page was fetched for.
+         * @param maxBytes max size of the file, larger ones aren't kept.
+         * @return the bytes fetched.
+         * @throws IOException if the target machine can't be reached.
+         */
+        long fetch(String url, Function<String, String> request, long maxBytes) throws IOException;
+    }
+
+    /**
+     * Fetches the files, null if prefetching is off.
+     */
+    private final Fetcher fetcher;
+    /**
+     * Max fetches and bytes a second.
+     */
+    private final double rate;
+    private final double bytesPerSecond;
+    /**
+     * Daemon threads scanning pages and fetching what they link to.
+     */
+    private final ThreadPoolExecutor workers;
+    /**
+     * Fetches and bytes that may still be spent, topped up as time passes.
+     */
+    private double fetchAllowance;
+    private double byteAllowance;
+    /**
+     * The time the allowances were last topped up.
+     */
+    private long topped = System.nanoTime();
+    /**
+     * Pages scanned, files fetched ahead, bytes fetched and links skipped because of the limits.
+     */
+    final LongAdder pages = new LongAdder();
+    final LongAdder fetched = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+    final LongAdder skipped = new LongAdder();
+
+    /**
+     * Constructor for the settings given by the system properties.
+     *
+     * @param fetcher fetches a file into the cache.
+     */
+    Prefetcher(Fetcher fetcher) {
+        this(Boolean.getBoolean("proxy.prefetch") ? fetcher : null, Integer.getInteger("proxy.prefetch.threads", 2),
+                Integer.getInteger("proxy.prefetch.rate", 10), Long.getLong("proxy.prefetch.bytesPerSecond", 2L * 1024 * 1024));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param fetcher fetches a file into the cache, null for no prefetching.
+     * @param threads number of background threads.
+     * @param rate max fetches a second.
+     * @param bytesPerSecond max bytes fetched a second.
+     */
+    Prefetcher(Fetcher fetcher, int threads, double rate, double bytesPerSecond) {
+        this.fetcher = fetcher;
+        this.rate = rate;
+        this.bytesPerSecond = bytesPerSecond;
+        fetchAllowance = rate;
+        byteAllowance = bytesPerSecond;
+        if (fetcher == null) {
+            workers = null;
+            return;
+        }
+        //Pages that don't fit in the queue are skipped rather than held up for
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE), task -> {
+            Thread t = new Thread(task, "Prefetcher");
+            //Does not prevent the JVM from exiting when the program finishes
+            t.setDaemon(true);
+            return t;
+        }, (task, executor) -> skipped.increment());
+    }
+
+    /**
+     * Check if a response is a page worth scanning for links.
+     *
+     * @param head the response head.
+     * @return whether prefetching is on and the response is an uncompressed HTML page.
+     */
+    boolean wants(ResponseHead head) {
+        if (fetcher == null || head == null || head.status() != 200 || head.header("Content-Encoding") != null)
+            return false;
+        String type = head.header("Content-Type");
+        return type != null && type.trim().toLowerCase(Locale.ROOT).startsWith("text/html");
+    }
+
+    /**
+     * Scan a page that has been fetched in the background, and fetch the files it links to.
+     *
+     * @param url the url of the page.
+     * @param fill the complete fill holding the page.
+     * @param request the request the page was fetched for, its headers are kept for the files.
+     */
+    void offer(String url, PageFill fill, RequestParser request) {
+        //Copied now, the fill and the request are reused once this returns
+        byte[] html;
+        try {
+            html = prefix(fill);
+        } catch (IOException e) {
+            return;
+        }
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 0; i < request.headerCount(); i++) {
+            String line = request.headerLine(i);
+            int colon = line.indexOf(':');
+            if (colon > 0)
+                headers.putIfAbsent(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+        }
+        workers.execute(() -> prefetch(url, new String(html, StandardCharsets.ISO_8859_1),
+                name -> headers.get(name.toLowerCase(Locale.ROOT))));
+    }
+
+    /**
+     * Copy the start of a page.
+     *
+     * @param fill the complete fill holding the page.
+     * @return up to the first MAX_SCAN bytes.
+     * @throws IOException if the fill failed.
+     */
+    private static byte[] prefix(PageFill fill) throws IOException {
+        byte[] html = new byte[MAX_SCAN];
+        int length = 0;
+        ByteBuffer part;
+        while (length < MAX_SCAN && (part = fill.read(length)) != null) {
+            int n = Math.min(part.remaining(), MAX_SCAN - length);
+            part.get(html, length, n);
+            length += n;
+        }
+        return length == MAX_SCAN ? html : Arrays.copyOf(html, length);
+    }
+
+    /**
+     * Fetch the files a page links to, within the limits.
+     *
+     * @param url the url of the page.
+     * @param html the start of the page.
+     * @param request looks up a header of the request the page was fetched for.
+     */
+    private void prefetch(String url, String html, Function<String, String> request) {
+        pages.increment();
+        Set<String> links;
+        try {
+            links = links(new URL(url), html, MAX_LINKS);
+        } catch (MalformedURLException e) {
+            return;
+        }
+        for (String link : links) {
+            if (!admit()) {
+                skipped.increment();
+                continue;
+            }
+            try {
+                long n = fetcher.fetch(link, request, MAX_BYTES);
+                if (n > 0) {
+                    fetched.increment();
+                    bytes.add(n);
+                    spent(n);
+                }
+            } catch (IOException | RuntimeException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Take a fetch from the allowance, topping it up for the time passed.
+     *
+     * @return whether a fetch may start.
+     */
+    private synchronized boolean admit() {
+        long now = System.nanoTime();
+        double seconds = (now - topped) / 1e9;
+        topped = now;
+        fetchAllowance = Math.min(rate, fetchAllowance + seconds * rate);
+        byteAllowance = Math.min(bytesPerSecond, byteAllowance + seconds * bytesPerSecond);
+        //The bytes are only known once fetched, so a large file can take the allowance below zero for a while
+        if (fetchAllowance < 1 || byteAllowance <= 0)
+            return false;
+        fetchAllowance--;
+        return true;
+    }
+
+    /**
+     * Take the bytes fetched from the allowance.
+     *
+     * @param n the bytes.
+     */
+    private synchronized void spent(long n) {
+        byteAllowance -= n;
+    }
+
+    /**
+     * Find the files a page loads from its own site.
+     *
+     * @param page the url of the page.
+     * @param html the page.
+     * @param max max links returned.
+     * @return the urls of the files, without fragments, in the order they appear.
+     */
+    static Set<String> links(URL page, String html, int max) {
+        Set<String> links = new LinkedHashSet<>();
+        Matcher tag = TAG.matcher(html);
+        while (tag.find() && links.size() < max) {
+            String src = null;
+            String href = null;
+            String rel = null;
+            Matcher attribute = ATTRIBUTE.matcher(tag.group(2));
+            while (attribute.find()) {
+                String value = attribute.group(2) != null ? attribute.group(2)
+                        : attribute.group(3) != null ? attribute.group(3) : attribute.group(4);
+                switch (attribute.group(1).toLowerCase(Locale.ROOT)) {
+                    case "src":
+                        src = value;
+                        break;
+                    case "href":
+                        href = value;
+                        break;
+                    default:
+                        rel = value;
+                }
+            }
+            //Links only name a file the page loads if they are stylesheets, icons or preloads
+            String link = tag.group(1).equalsIgnoreCase("link") ? rel != null && LOADED.matcher(rel).find() ? href : null : src;
+            if (link == null || link.isEmpty())
+                continue;
+            try {
+                URL url = new URL(page, link.trim().replace("&amp;", "&"));
+                //Only files on the same site, so a page can't send the proxy to fetch from anywhere
+                if ((url.getProtocol().equals("http") || url.getProtocol().equals("https"))
+                        && url.getHost().equalsIgnoreCase(page.getHost()))
+                    links.add(new URL(url.getProtocol(), url.getHost(), url.getPort(), url.getFile()).toString());
+            } catch (MalformedURLException ignored) {
+            }
+        }
+        return links;
+    }
+}
@@ -2,26 +2,103 @@ package Proxy;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * ProxyServer, spans off requests.
  */
 public class ProxyServer {
 
+    /**
+     * Port the proxy listens on, set with -Dproxy.port.
+     */
+    static final int PORT = Integer.getInteger("proxy.port", 7538);
+    /**
+     * Number of threads fetching pages that missed the cache in non-blocking mode.
+     */
+    private static final int FETCH_THREADS = 64;
+    /**
+     * Max cache misses waiting for a fetch thread in non-blocking mode.
+     */
+    private static final int FETCH_QUEUE = 1024;
 
+
+    /**
+     * Start the proxy, pass "nio" to serve connections with event loops
+     * or "virtual" to run each connection on a virtual thread.
+     *
+     * @param args the command line arguments.
+     * @throws IOException if the socket can't be bound.
+     */
     public static void main(String[] args) throws IOException {
+        String mode = args.length > 0 ? args[0] : "";
+        ProxyThread.metrics.publish();
+        //The snapshot is read in the background, the socket is bound straight away
+        ProxyThread.persistCache();
+        if (mode.equalsIgnoreCase("nio")) {
+            runEventLoops();
+            return;
+        }
+        //Create new threads per request, unless virtual threads are asked for.
+        Executor executor = mode.equalsIgnoreCase("virtual") ? virtualThreads() : task -> new Thread(task, "ProxyThread").start();
         boolean listening = true;
-        //Create new socket.
-        try (ServerSocket serverSocket = new ServerSocket()) {
+        //Create new socket, as a channel so cached pages can be written without copying.
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
             //Bind socket to an address
-            serverSocket.bind(new InetSocketAddress(7538));
+            serverChannel.bind(new InetSocketAddress(PORT), Admission.ACCEPT_BACKLOG);
             while (listening) {
-                //Create new threads per request.
-                new ProxyThread(serverSocket.accept()).start();
+                Socket socket = serverChannel.accept().socket();
+                //Connections over the limits are reset before a thread is started for them
+                if (!ProxyThread.admission.admit(socket))
+                    continue;
+                //Run each request on the executor.
+                executor.execute(new ProxyThread(socket));
             }
         }
 
     }
 
+    /**
+     * Create an executor starting a virtual thread per task.
+     * Falls back to a cached thread pool when the JVM has no virtual threads.
+     *
+     * @return the executor.
+     */
+    private static Executor virtualThreads() {
+        try {
+            //Looked up by name so the proxy still builds and runs on older JVMs
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads not available, using a cached thread pool");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Serve every connection from one event loop per processor.
+     *
+     * @throws IOException if the socket can't be bound.
+     */
+    private static void runEventLoops() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(PORT), Admission.ACCEPT_BACKLOG);
+        //Misses beyond what the queue holds are turned away rather than left waiting
+        ExecutorService fetchers = new ThreadPoolExecutor(FETCH_THREADS, FETCH_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(FETCH_QUEUE));
+        EventLoop[] loops = new EventLoop[Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < loops.length; i++)
+            loops[i] = new EventLoop(i, fetchers);
+        //The first loop also accepts new connections
+        loops[0].accept(serverChannel, loops);
+        for (EventLoop loop : loops)
+            loop.start();
+    }
+
 }
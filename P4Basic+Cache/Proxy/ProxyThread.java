@@ -1,32 +1,105 @@
 package Proxy;
 
+import Proxy.Cache.ByteRange;
 import Proxy.Cache.CacheManager;
+import Proxy.Cache.CachedPage;
+import Proxy.Cache.OffHeapStore;
+import Proxy.Cache.PageFill;
+import Proxy.Cache.RangeFill;
+import Proxy.Cache.ResponseHead;
 
-import javax.net.ssl.HttpsURLConnection;
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.Socket;
 import java.net.URL;
-import java.util.StringTokenizer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
 
 /**
- * Class that handles individual requests.
+ * Class that handles individual requests, run on whichever thread the server picks.
  */
-class ProxyThread extends Thread {
+class ProxyThread implements Runnable {
 
     public static final int TIMEOUT = 1000;
     /**
-     * src.Proxy.Cache manager with following properties: time to live 300 second, cleaning every 100 seconds, max number of pages 10000.
+     * src.Proxy.Cache manager with following properties: time to live 300 second, expired pages checked for every second,
+     * max 64 MB of pages on the heap, max size of a single page 4 MB, older pages demoted to an off heap store.
      */
-    private static final CacheManager cache = new CacheManager(300, 100, 10000);
+    private static final CacheManager cache = new CacheManager(300, 1, 64L * 1024 * 1024, 4 * 1024 * 1024, openStore());
+    /**
+     * One line per request, written by a background thread.
+     */
+    static final AccessLog accessLog = AccessLog.open();
+    /**
+     * Limits on connections and fetches.
+     */
+    static final Admission admission = new Admission();
+    /**
+     * Cached lookups of the target machines.
+     */
+    private static final Resolver resolver = new Resolver();
+    /**
+     * Fetches what cached HTML pages link to ahead of the browser asking for it, off unless set with -Dproxy.prefetch.
+     */
+    private static final Prefetcher prefetcher = new Prefetcher(ProxyThread::prefetch);
+    /**
+     * Counters of requests, fetches and the cache, published by the server.
+     */
+    static final Metrics metrics = new Metrics(cache, accessLog, admission, resolver, prefetcher);
+    /**
+     * Max milliseconds to wait for the target machine during a fetch.
+     */
+    private static final int FETCH_TIMEOUT = 30000;
+    /**
+     * Max redirects followed for one request.
+     */
+    private static final int MAX_REDIRECTS = 5;
+    /**
+     * Kept alive connections to the target machines.
+     */
+    private static final OriginPool origins = new OriginPool(resolver);
+    /**
+     * Which target machines answer over https.
+     */
+    private static final HttpsHosts httpsHosts = new HttpsHosts(origins);
+    /**
+     * The other proxies owning slices of the pages, none unless set with -Dproxy.peers.
+     */
+    private static final Peers peers = new Peers(ProxyServer.PORT);
+    /**
+     * Request headers not passed on to a peer or target machine, they belong to the connection or are written by the pool.
+     */
+    private static final Set<String> NOT_FORWARDED = new HashSet<>(Arrays.asList("host", "connection", "keep-alive",
+            "proxy-connection", "proxy-authorization", "te", "trailer", "transfer-encoding", "upgrade", "content-length",
+            "expect", "user-agent", "accept", Peers.HEADER.toLowerCase(Locale.ROOT)));
     /**
      * Max buffer size.
      */
     private static final int BUFFER_SIZE = 32768;
+    /**
+     * Max milliseconds a kept alive client connection may wait for its next request,
+     * set with -Dproxy.keepAliveTimeout in seconds.
+     */
+    static final int KEEP_ALIVE_TIMEOUT = Integer.getInteger("proxy.keepAliveTimeout", 15) * 1000;
     /**
      * Client socket.
      */
     private Socket socket = null;
+    /**
+     * The request when the header has already been read by an event loop.
+     */
+    private RequestParser request;
+    /**
+     * The event loop a kept alive connection goes back to between requests, null if it stays on this thread.
+     */
+    private EventLoop loop;
 
     /**
      * Constructor.
@@ -34,196 +107,845 @@ class ProxyThread extends Thread {
      * @param socket client socket to proxy.
      */
     ProxyThread(Socket socket) {
-        super("ProxyThread");
         this.socket = socket;
     }
 
     /**
-     * Check if url is available.
+     * Constructor for a request whose header has already been read.
+     *
+     * @param socket client socket to proxy.
+     * @param request the parsed request.
+     */
+    ProxyThread(Socket socket, RequestParser request) {
+        this(socket);
+        this.request = request;
+    }
+
+    /**
+     * Constructor for a request handed over by an event loop, the connection is given back to it afterwards.
+     *
+     * @param socket client socket to proxy.
+     * @param request the parsed request.
+     * @param loop the event loop to give a kept alive connection back to.
+     */
+    ProxyThread(Socket socket, RequestParser request, EventLoop loop) {
+        this(socket, request);
+        this.loop = loop;
+    }
+
+    /**
+     * Map the file backing the off heap cache tier.
+     * Its size in MB is set with -Dproxy.cache.offHeapMB (default 1024, 0 for none)
+     * and its path with -Dproxy.cache.file (default a temporary file).
      *
-     * @param url url to be checked.
-     * @return whether target is reachable with https.
+     * @return the store, or null if there isn't one.
      */
-    private static boolean pingURL(String url) {
+    private static OffHeapStore openStore() {
+        long size = Long.getLong("proxy.cache.offHeapMB", 1024) * 1024 * 1024;
+        if (size <= 0)
+            return null;
         try {
-            //Create HTTPS connection
-            HttpsURLConnection connection = (HttpsURLConnection) new URL(url).openConnection();
-            //Set attributes
-            connection.setConnectTimeout(TIMEOUT);
-            connection.setReadTimeout(TIMEOUT);
-            connection.setRequestMethod("HEAD");
-            //Check response code
-            int responseCode = connection.getResponseCode();
-            return (200 <= responseCode && responseCode <= 399);
-        } catch (IOException exception) {
-            return false;
+            String path = System.getProperty("proxy.cache.file");
+            File file;
+            if (path != null) {
+                file = new File(path);
+            } else {
+                file = File.createTempFile("proxy-cache", ".dat");
+                file.deleteOnExit();
+            }
+            return OffHeapStore.map(file, size);
+        } catch (IOException e) {
+            System.out.println("Off heap cache not available: " + e.getMessage());
+            return null;
         }
     }
 
     /**
-     * Rnu method called when new thread started.
+     * Keep the cache in the snapshot file set with -Dproxy.cache.snapshot (default none),
+     * written every -Dproxy.cache.snapshotInterval seconds (default 300, 0 for only on exit).
+     */
+    static void persistCache() {
+        String path = System.getProperty("proxy.cache.snapshot");
+        if (path != null && !path.isEmpty())
+            cache.persist(new File(path), Long.getLong("proxy.cache.snapshotInterval", 300));
+    }
+
+    /**
+     * Run method called when the request is picked up.
+     * Requests on a kept alive connection are answered in turn, pipelined ones included.
      */
     @Override
     public void run() {
+        boolean handedBack = false;
         try {
-            //Set up input and output streams.
-            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            //Get the URL from the client header
-            String urlToCall = getURL(in);
+            //Set up input and output streams, the head and body of a response go out together
+            InputStream in = socket.getInputStream();
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            //An idle kept alive connection is closed once the wait for its next request times out
+            socket.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+            //Read the client header, unless an event loop has already read it
+            RequestParser request = this.request;
+            if (request == null)
+                request = getRequest(in);
+            while (answerLogged(request, new ClientOutput(out, request))) {
+                //Keep any pipelined bytes read after the header
+                request.reset();
+                if (loop != null) {
+                    //Wait for the next request on the event loop rather than on this thread
+                    loop.resume(socket.getChannel(), request);
+                    handedBack = true;
+                    return;
+                }
+                if (!request.read(in))
+                    return;
+            }
+        } catch (IOException | RuntimeException ignored) {
+        } finally {
+            //Close client socket
+            if (!handedBack) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+                admission.release(socket);
+            }
+        }
+    }
+
+    /**
+     * Answer one request and add it to the access log, whether or not it succeeds.
+     *
+     * @param request the client request.
+     * @param client the response to the client.
+     * @return whether the connection can carry another request.
+     * @throws IOException if the url is bad or the target or client is broken.
+     */
+    private boolean answerLogged(RequestParser request, ClientOutput client) throws IOException {
+        long started = System.nanoTime();
+        try {
+            return answer(request, client);
+        } finally {
+            //A request that fails before it is answered has no result
+            accessLog.log(socket.getRemoteSocketAddress(), request.method(), request.target(), client.status(),
+                    client.bytes(), client.result() != null ? client.result() : "ERROR", System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Answer one request, from the cache when possible.
+     *
+     * @param request the client request.
+     * @param client the response to the client.
+     * @return whether the connection can carry another request.
+     * @throws IOException if the url is bad or the target or client is broken.
+     */
+    private boolean answer(RequestParser request, ClientOutput client) throws IOException {
+        //Replace http:// with https://
+        String urlToCall = request.target().replace("http://", "https://");
+        if (!request.method().equals("GET")) {
+            //Only GET responses are cached
+            metrics.otherRequests.increment();
+            client.result("PASS");
+            fetch(urlToCall, request, client, null, null);
+            return client.keepAlive();
+        }
+        String key = cacheKey(urlToCall);
+        //Look for the website in cache
+        CachedPage website = lookup(key, request);
+        //A page owned by another proxy is asked of it, which caches it for every proxy
+        if (website == null && fromPeer(key, request, client))
+            return client.keepAlive();
+        ByteRange range = range(request, website);
+        if (website != null && website.isPartial() && !(website.isFresh() && website.canAnswer(range))) {
+            //Only the parts stored of a fresh page can be used, the missing ones are fetched
             try {
-                //Replace http:// with https://
-                urlToCall = urlToCall.replace("http://", "https://");
-                //Look for either http or https version of the website in cache
-                byte[] websiteHTTPS = cache.get(urlToCall);
-                byte[] websiteHTTP = cache.get(urlToCall.replace("https://", "http://"));
-                if (websiteHTTPS == null && websiteHTTP == null) {
-                    HttpURLConnection conn;
-                    //Check server supports https
-                    if (pingURL(urlToCall)) {
-                        //Make https connection
-                        conn = createHTTPConnection(urlToCall);
-                    } else {
-                        //Otherwise make http connection
-                        urlToCall = urlToCall.replace("https://", "http://");
-                        conn = createHTTPConnection(urlToCall);
-                    }
-                    System.out.println(urlToCall);
-                    //Write the output from target to client
-                    writeData(urlToCall, conn, out);
-                } else {
-                    //If website stored in cache
-                    InputStream inputStream = null;
-                    //Get the website type
-                    if (websiteHTTPS != null)
-                        inputStream = new ByteArrayInputStream(websiteHTTPS);
-                    if (websiteHTTP != null)
-                        inputStream = new ByteArrayInputStream(websiteHTTP);
-                    //Write data from cache to client.
-                    writeData(urlToCall, inputStream, out, true);
+                if (range != null) {
+                    fetchRange(urlToCall, request, client, range, website.isFresh() ? website : null);
+                    return client.keepAlive();
+                }
+            } finally {
+                website.release();
+            }
+            website = null;
+        }
+        if (website == null && range != null) {
+            //A range is fetched on its own, so a large page never has to be downloaded whole
+            fetchRange(urlToCall, request, client, range, null);
+            return client.keepAlive();
+        }
+        CachedPage stale = null;
+        if (website != null && !website.isFresh()) {
+            //Keep a stale page to revalidate, otherwise it is fetched again
+            if (website.hasValidators())
+                stale = website;
+            else
+                website.release();
+            website = null;
+        }
+        try {
+            if (website == null) {
+                PageFill fill = cache.beginFill(key);
+                PageFill running = fill == null ? cache.joinFill(key) : null;
+                //Another request is already fetching the page, send it as it arrives
+                if (running == null || !follow(running, request, client)) {
+                    //The other fetch may have just finished
+                    if (fill == null)
+                        website = fromCache(urlToCall, request);
+                    //Fetch it ourselves if it wasn't cached, e.g. because it was too large
+                    if (website == null)
+                        fetch(urlToCall, request, client, fill, stale);
+                }
+            }
+        } finally {
+            if (stale != null)
+                stale.release();
+        }
+        if (website != null) {
+            //Write data from cache to client.
+            writeCached(website, range, request, client);
+        }
+        return client.keepAlive();
+    }
+
+    /**
+     * Ask the peer owning a page for it, sending its response to the client.
+     * The peer answers from its cache or fetches the page itself, the page isn't cached here.
+     * Requests from peers are never passed on, and a peer that can't be reached is skipped for a while.
+     * A server error from the peer isn't passed on either, the page is fetched from the target machine instead.
+     *
+     * @param key the key the page is cached under.
+     * @param request the client request.
+     * @param client the response to the client.
+     * @return whether the request was answered, otherwise the page is fetched from the target machine.
+     * @throws IOException if the url is bad.
+     */
+    private boolean fromPeer(String key, RequestParser request, ClientOutput client) throws IOException {
+        //Only the other proxies may mark a request as coming from a peer
+        boolean byPeer = request.header(Peers.HEADER) != null && peers.isMember(socket.getInetAddress());
+        int peer = byPeer ? -1 : peers.owner(key);
+        if (peer < 0)
+            return false;
+        if (!admitFetch(client, null))
+            return true;
+        try {
+            List<String> headers = forwarded(request);
+            headers.add(Peers.HEADER + ": " + peers.self());
+            URL url = new URL(request.target());
+            OriginResponse response;
+            try {
+                response = origins.send(peers.url(peer), "GET", url, headers.toArray(new String[0]), null, Peers.TIMEOUT);
+            } catch (IOException e) {
+                //Fall back to the target machine
+                peers.failed(peer);
+                metrics.peerFailures.increment();
+                return false;
+            }
+            if (response.status() >= 500) {
+                //The peer may be overloaded or failing, the target machine may still answer
+                response.discard();
+                metrics.peerFailures.increment();
+                return false;
+            }
+            metrics.peerFetches.increment();
+            client.result("PEER");
+            writeData(response.head(), response.head().contentLength(), response.body(), client, null);
+            return true;
+        } finally {
+            admission.releaseFetch();
+        }
+    }
+
+    /**
+     * Get the client's request headers that are passed on.
+     *
+     * @param request the client request.
+     * @return the header lines, without those that belong to the connection or are written by the pool.
+     */
+    private static List<String> forwarded(RequestParser request) {
+        List<String> headers = new ArrayList<>();
+        for (int i = 0; i < request.headerCount(); i++) {
+            String line = request.headerLine(i);
+            int colon = line.indexOf(':');
+            if (colon > 0 && !NOT_FORWARDED.contains(line.substring(0, colon).trim().toLowerCase(Locale.ROOT)))
+                headers.add(line);
+        }
+        return headers;
+    }
+
+    /**
+     * Get the part of a page a request asks for.
+     *
+     * @param request the client request.
+     * @param page the cached page, may be null.
+     * @return the range, or null if the whole page is sent: there is no Range header,
+     * the page isn't a 200 or the If-Range header names another version of it.
+     */
+    static ByteRange range(RequestParser request, CachedPage page) {
+        ByteRange range = ByteRange.parse(request.header("Range"));
+        if (range == null || page == null)
+            return range;
+        if (page.head() == null || page.head().status() != HttpURLConnection.HTTP_OK)
+            return null;
+        return page.matchesIfRange(request.header("If-Range")) ? range : null;
+    }
+
+    /**
+     * Fetch a page from the target machine, sending it to the client and the cache.
+     * A stale copy is revalidated, and sent again if the target machine answers 304 Not Modified.
+     * A 503 is sent instead if too many fetches are in progress.
+     *
+     * @param urlToCall the https url of the page.
+     * @param request the client request.
+     * @param client the response to the client.
+     * @param fill the fill other requests read the page from, or null if the page isn't shared.
+     * @param stale the stale copy of the page, may be null.
+     * @throws IOException if the url is bad.
+     */
+    private void fetch(String urlToCall, RequestParser request, ClientOutput client, PageFill fill, CachedPage stale) throws IOException {
+        if (!admitFetch(client, fill))
+            return;
+        try {
+            fetchAdmitted(urlToCall, request, client, fill, stale);
+        } finally {
+            admission.releaseFetch();
+        }
+    }
+
+    /**
+     * Admit a fetch, or send a 503 if too many are in progress.
+     *
+     * @param client the response to the client.
+     * @param fill the fill other requests read the page from, aborted if the fetch is turned away, may be null.
+     * @return whether the fetch was admitted, it must be released once done.
+     */
+    private static boolean admitFetch(ClientOutput client, PageFill fill) {
+        if (admission.admitFetch())
+            return true;
+        //Turned away straight away so the fetches already running keep their latency
+        if (fill != null)
+            fill.abort();
+        client.unavailable();
+        return false;
+    }
+
+    /**
+     * Fetch the part of a page a range request asks for, sending a 206 to the client.
+     * Only the chunks not already stored are asked for, the others are sent from the cache.
+     * A 503 is sent instead if too many fetches are in progress.
+     *
+     * @param urlToCall the https url of the page.
+     * @param request the client request.
+     * @param client the response to the client.
+     * @param range the part asked for.
+     * @param partial the fresh page parts of which are stored, may be null.
+     * @throws IOException if the url is bad or the target machine sends parts of another version of the page.
+     */
+    private void fetchRange(String urlToCall, RequestParser request, ClientOutput client, ByteRange range, CachedPage partial) throws IOException {
+        if (!admitFetch(client, null))
+            return;
+        try {
+            fetchRangeAdmitted(urlToCall, request, client, range, partial);
+        } finally {
+            admission.releaseFetch();
+        }
+    }
+
+    /**
+     * Fetch the part of a page once the fetch has been admitted.
+     * A target machine that sends the whole page instead is passed on, and the page cached like any other.
+     *
+     * @param urlToCall the https url of the page.
+     * @param request the client request.
+     * @param client the response to the client.
+     * @param range the part asked for.
+     * @param partial the fresh page parts of which are stored, may be null.
+     * @throws IOException if the url is bad or the target machine sends parts of another version of the page.
+     */
+    private void fetchRangeAdmitted(String urlToCall, RequestParser request, ClientOutput client, ByteRange range, CachedPage partial) throws IOException {
+        String key = cacheKey(urlToCall);
+        String[] headers;
+        if (partial != null) {
+            //Ask for the chunks missing from the range, unless the page has changed since they were stored
+            long total = partial.total();
+            long[] missing = partial.missing(range.first(total), range.last(total));
+            headers = new String[]{"Range: bytes=" + missing[0] + "-" + missing[1], "If-Range: " + partial.validator()};
+        } else {
+            String ifRange = request.header("If-Range");
+            String aligned = "Range: " + range.aligned(CachedPage.CHUNK_SIZE);
+            headers = ifRange != null ? new String[]{aligned, "If-Range: " + ifRange} : new String[]{aligned};
+        }
+        //Check server supports https, otherwise make http connection
+        if (!httpsHosts.supportsHttps(urlToCall))
+            urlToCall = urlToCall.replace("https://", "http://");
+        long started = System.nanoTime();
+        OriginResponse response;
+        try {
+            response = createHTTPConnection(urlToCall, request.method(), null, headers, null);
+        } catch (IOException e) {
+            metrics.originErrors.increment();
+            throw e;
+        }
+        metrics.originLatency.record(System.nanoTime() - started);
+        metrics.cacheMisses.increment();
+        client.result("MISS");
+        ResponseHead head = response.head();
+        long[] part = head.status() == 206 ? ByteRange.parseContentRange(head.header("Content-Range")) : null;
+        if (part == null) {
+            //The whole page, an error or a part that can't be used, passed on as it is
+            PageFill fill = head.status() == 206 ? null : cache.beginFill(key);
+            boolean complete = false;
+            try {
+                if (fill != null)
+                    fill.start(head, request::header);
+                complete = writeData(head, head.contentLength(), response.body(), client, fill);
+            } finally {
+                if (fill != null) {
+                    if (complete)
+                        fill.complete();
+                    else
+                        fill.abort();
                 }
-                //Close client socket
-                socket.close();
-            } catch (Exception e) {
-                out.writeBytes("");
             }
+            return;
+        }
+        long total = part[2];
+        if (partial != null && (total != partial.total() || !Objects.equals(partial.validator(), CachedPage.validator(head)))) {
+            //The target machine ignored the If-Range, only the part it sent can be used
+            partial = null;
+        }
+        //The client range, cut short if not all of it is in the part or the stored chunks
+        long first = range.first(total);
+        long last = range.last(total);
+        if (!range.isSatisfiable(total) || (partial == null || !partial.has(first, part[0] - 1)) && first < part[0]) {
+            response.close();
+            throw new IOException("Part sent for " + urlToCall + " doesn't cover the range asked for");
+        }
+        if (last > part[1] && (partial == null || !partial.has(part[1] + 1, last)))
+            last = part[1];
+        client.head(head.ranged(206, "bytes " + first + "-" + last + "/" + total), last - first + 1, true);
+        if (first < part[0])
+            client.write(partial.slice(first, part[0] - 1));
+        RangeFill fill = RangeFill.start(cache, key, head, part[0], total, request::header);
+        boolean complete;
+        //Try with resources, closing a body that wasn't read to the end drops the connection
+        try (InputStream body = response.body()) {
+            complete = writeRange(body, part[0], first, last, client, fill);
         } catch (IOException ignored) {
+            complete = false;
         }
+        if (complete && last > part[1])
+            client.write(partial.slice(part[1] + 1, last));
+        client.finish(complete);
+        if (complete && fill != null)
+            fill.complete();
     }
 
     /**
-     * Get the url from the header.
-     * @param in the buffered reader containing the URL.
-     * @return the url
-     * @throws IOException if in invalid.
+     * Fetch a page once the fetch has been admitted.
+     *
+     * @param urlToCall the https url of the page.
+     * @param request the client request.
+     * @param client the response to the client.
+     * @param fill the fill other requests read the page from, or null if the page isn't shared.
+     * @param stale the stale copy of the page, may be null.
+     * @throws IOException if the url is bad.
      */
-    private String getURL(BufferedReader in) throws IOException {
-        String inputLine;
-        int count = 0;
-        String urlToCall = "";
-        //Read in the header line by line
-        while ((inputLine = in.readLine()) != null) {
-            //Split each line up into tokens
+    private void fetchAdmitted(String urlToCall, RequestParser request, ClientOutput client, PageFill fill, CachedPage stale) throws IOException {
+        boolean complete = false;
+        ResponseHead head = null;
+        try {
+            //Check server supports https, otherwise make http connection
+            if (!httpsHosts.supportsHttps(urlToCall))
+                urlToCall = urlToCall.replace("https://", "http://");
+            String[] headers = null;
+            RequestBody upload = null;
+            if (!request.method().equals("GET")) {
+                //Requests that aren't cached go to the target machine with the client's headers and body
+                headers = forwarded(request).toArray(new String[0]);
+                upload = RequestBody.of(request, socket.getInputStream());
+                if (upload != null)
+                    client.proceed();
+            }
+            long started = System.nanoTime();
+            OriginResponse response;
             try {
-                //Parse the header
-                StringTokenizer tok = new StringTokenizer(inputLine);
-                tok.nextToken();
-            } catch (Exception e) {
-                break;
+                response = createHTTPConnection(urlToCall, request.method(), stale, headers, upload);
+            } catch (IOException e) {
+                metrics.originErrors.increment();
+                throw e;
+            }
+            metrics.originLatency.record(System.nanoTime() - started);
+            head = response.head();
+            InputStream body;
+            long length;
+            if (stale != null && head.status() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                //The stale copy is still good, send it with its headers brought up to date
+                metrics.revalidations.increment();
+                client.result("REVALIDATED");
+                head = stale.head().update(head);
+                byte[] bytes = stale.bytes();
+                body = new ByteArrayInputStream(bytes);
+                length = bytes.length;
+            } else {
+                body = response.body();
+                length = head.contentLength();
+                if (request.method().equals("GET")) {
+                    metrics.cacheMisses.increment();
+                    client.result("MISS");
+                }
+            }
+            if (fill != null)
+                fill.start(head, request::header);
+            //Write the output from target to client
+            complete = writeData(head, length, body, client, fill);
+        } finally {
+            //Only a whole page goes into the cache
+            if (fill != null) {
+                if (complete)
+                    fill.complete();
+                else
+                    fill.abort();
+            }
+        }
+        //The browser asks for what the page links to straight after it, so it is fetched now
+        if (complete && fill != null && prefetcher.wants(head))
+            prefetcher.offer(urlToCall, fill, request);
+    }
+
+    /**
+     * Fetch a page into the cache ahead of a request for it, unless it is cached, being fetched
+     * or owned by a peer. Only a free fetch slot is taken, so prefetches never turn clients away.
+     *
+     * @param url the url of the page.
+     * @param request looks up a header of the request the page is fetched ahead of.
+     * @param maxBytes max size of the page, larger ones aren't kept.
+     * @return the bytes fetched.
+     * @throws IOException if the url is bad or the target machine can't be reached.
+     */
+    private static long prefetch(String url, Function<String, String> request, long maxBytes) throws IOException {
+        String urlToCall = url.replace("http://", "https://");
+        String key = cacheKey(urlToCall);
+        CachedPage page = cache.acquire(key);
+        if (page != null) {
+            page.release();
+            return 0;
+        }
+        if (peers.owner(key) >= 0)
+            return 0;
+        PageFill fill = cache.beginFill(key);
+        if (fill == null)
+            return 0;
+        if (!admission.admitFetch()) {
+            fill.abort();
+            return 0;
+        }
+        boolean complete = false;
+        long bytes = 0;
+        try {
+            if (!httpsHosts.supportsHttps(urlToCall))
+                urlToCall = urlToCall.replace("https://", "http://");
+            OriginResponse response = createHTTPConnection(urlToCall, "GET", null);
+            ResponseHead head = response.head();
+            if (head.contentLength() > maxBytes) {
+                response.close();
+                return 0;
             }
-            //First line contains target url
-            if (count == 0) {
-                //Split first line by spaces and get url
-                String[] tokens = inputLine.split("\\s");
-                urlToCall = tokens[1];
+            fill.start(head, request);
+            if (response.body() != null) {
+                //Try with resources, closing a body that wasn't read to the end drops the connection
+                try (InputStream body = response.body()) {
+                    byte[] by = new byte[BUFFER_SIZE];
+                    int index;
+                    while ((index = body.read(by, 0, BUFFER_SIZE)) != -1) {
+                        bytes += index;
+                        //A page that isn't cacheable or grows too large isn't worth the rest of the download
+                        if (bytes > maxBytes || !fill.isWanted())
+                            return bytes;
+                        fill.append(by, 0, index);
+                    }
+                }
             }
-            count++;
+            complete = true;
+            return bytes;
+        } finally {
+            if (complete)
+                fill.complete();
+            else
+                fill.abort();
+            admission.releaseFetch();
         }
-        return urlToCall;
     }
 
     /**
-     * Creates the connection object to the target.
+     * Look for a page in the cache that was fetched for a request like this one, fresh or stale.
+     *
+     * @param key the key the page is cached under.
+     * @param request the client request.
+     * @return the cached page, to be released once sent, or null.
+     */
+    private static CachedPage lookup(String key, RequestParser request) {
+        CachedPage page = cache.acquire(key);
+        if (page != null && !page.matches(request::header)) {
+            page.release();
+            return null;
+        }
+        return page;
+    }
+
+    /**
+     * Send a page another request is fetching, chunk by chunk as it arrives.
+     *
+     * @param fill the fill, left once done.
+     * @param request the client request.
+     * @param client the response to the client.
+     * @return false if the response can't be shared or is for another variant of the page, and nothing was sent.
+     * @throws IOException if the client is broken or the fetch fails.
+     */
+    private boolean follow(PageFill fill, RequestParser request, ClientOutput client) throws IOException {
+        try {
+            ResponseHead head = fill.head();
+            //A page that varies on a header the request has another value of is fetched again
+            if (head == null || !fill.matches(request::header))
+                return false;
+            client.head(head, head.contentLength(), true);
+            ByteBuffer part;
+            long offset = 0;
+            while ((part = fill.read(offset)) != null && !client.isBroken()) {
+                client.write(part.array(), part.position(), part.remaining());
+                offset += part.remaining();
+            }
+            client.finish(part == null);
+            metrics.sharedFetches.increment();
+            client.result("SHARED");
+            return true;
+        } finally {
+            fill.leave();
+        }
+    }
+
+    /**
+     * Look for either the http or https version of a website in the cache.
+     *
+     * @param urlToCall the url of the website.
+     * @param request the client request.
+     * @return the cached page if it is fresh and has the part asked for, to be released once sent, or null.
+     */
+    static CachedPage fromCache(String urlToCall, RequestParser request) {
+        CachedPage page = lookup(cacheKey(urlToCall), request);
+        if (page != null && (!page.isFresh() || !page.canAnswer(range(request, page)))) {
+            page.release();
+            return null;
+        }
+        return page;
+    }
+
+    /**
+     * Key a page is cached under, the url without its scheme so one lookup finds either version.
+     *
+     * @param url the url of the page.
+     * @return the key.
+     */
+    private static String cacheKey(String url) {
+        if (url.startsWith("https://"))
+            return url.substring("https://".length());
+        if (url.startsWith("http://"))
+            return url.substring("http://".length());
+        return url;
+    }
+
+    /**
+     * Read the request header.
+     * @param in the stream containing the header.
+     * @return the request, its first line contains the target url.
+     * @throws IOException if in invalid or the header ends early.
+     */
+    private RequestParser getRequest(InputStream in) throws IOException {
+        RequestParser request = new RequestParser();
+        //Read in the whole header
+        if (!request.read(in))
+            throw new EOFException("Header ended early");
+        return request;
+    }
+
+    /**
+     * Sends the request to the target on a pooled connection, following redirects.
      * @param url the url of the target machine
-     * @return The connection to the target.
+     * @param method the request method.
+     * @param stale the stale copy of the page to revalidate, may be null.
+     * @return The response from the target.
      * @throws IOException If url bad.
      */
-    private HttpURLConnection createHTTPConnection(String url) throws IOException {
+    private static OriginResponse createHTTPConnection(String url, String method, CachedPage stale) throws IOException {
+        return createHTTPConnection(url, method, stale, null, null);
+    }
+
+    /**
+     * Sends the request to the target on a pooled connection, following redirects.
+     * A redirect after a request body is passed on to the client, as the body can't be sent again.
+     * @param url the url of the target machine
+     * @param method the request method.
+     * @param stale the stale copy of the page to revalidate, may be null.
+     * @param range extra header lines such as Range and If-Range, sent again to a redirect, may be null.
+     * @param body the client's request body, may be null.
+     * @return The response from the target.
+     * @throws IOException If url bad.
+     */
+    private static OriginResponse createHTTPConnection(String url, String method, CachedPage stale, String[] range, RequestBody body) throws IOException {
         //Create URL object
         URL urlToCall = new URL(url);
-        //Open URL connection and cast to HttpURLConnection
-        HttpURLConnection conn = (HttpURLConnection) urlToCall.openConnection();
-        //Get the response code from the connection
-        int status = conn.getResponseCode();
-        //Check if target has moved location
-        if (status == HttpURLConnection.HTTP_MOVED_TEMP || status == HttpURLConnection.HTTP_MOVED_PERM || status == HttpURLConnection.HTTP_SEE_OTHER) {
-            String redirectUrl;
-            //Check if URL is HTTPS or HTTP and update connection target URL
-            if (url.startsWith("https://"))
-                redirectUrl = conn.getHeaderField("Location").replace("http://", "https://");
-            else if (url.startsWith("https://"))
-                redirectUrl = conn.getHeaderField("Location").replace("https://", "http://");
+        //Ask for the page only if it has changed since the stale copy
+        String[] headers = null;
+        if (stale != null) {
+            String etag = stale.head().header("ETag");
+            String lastModified = stale.head().header("Last-Modified");
+            if (etag != null && lastModified != null)
+                headers = new String[]{"If-None-Match: " + etag, "If-Modified-Since: " + lastModified};
+            else if (etag != null)
+                headers = new String[]{"If-None-Match: " + etag};
             else
-                redirectUrl = conn.getHeaderField("Location");
-            urlToCall = new URL(redirectUrl);
-            conn = (HttpURLConnection) urlToCall.openConnection();
+                headers = new String[]{"If-Modified-Since: " + lastModified};
+        } else {
+            headers = range;
         }
-        //Return connection
-        return conn;
+        OriginResponse response = origins.send(method, urlToCall, headers, body, FETCH_TIMEOUT);
+        for (int redirects = 0; body == null && redirects < MAX_REDIRECTS && isRedirect(response); redirects++) {
+            String location = response.head().header("Location");
+            //The redirect body isn't needed, the connection goes back to the pool
+            response.discard();
+            //Keep a https request on https
+            if (urlToCall.getProtocol().equals("https"))
+                location = location.replace("http://", "https://");
+            urlToCall = new URL(urlToCall, location);
+            if (response.status() == HttpURLConnection.HTTP_SEE_OTHER)
+                method = "GET";
+            //The validators belong to the original url
+            response = origins.send(method, urlToCall, range, FETCH_TIMEOUT);
+        }
+        //Return response
+        return response;
+    }
+
+    /**
+     * Check if the target has moved location.
+     * @param response the response from the target.
+     * @return whether it is a redirect that can be followed.
+     */
+    private static boolean isRedirect(OriginResponse response) {
+        int status = response.status();
+        return (status == HttpURLConnection.HTTP_MOVED_TEMP || status == HttpURLConnection.HTTP_MOVED_PERM
+                || status == HttpURLConnection.HTTP_SEE_OTHER || status == 307 || status == 308)
+                && response.head().header("Location") != null;
     }
 
     /**
      * Called when site not in cache.
-     * @param urlToCall the url of target machine
-     * @param conn the connection to the target machine
-     * @param out the output stream to the client.
-     */
-    private void writeData(String urlToCall, HttpURLConnection conn, DataOutputStream out) {
-        //Try with resources
-        try (InputStream inputStream = conn.getInputStream()) {
-            writeData(urlToCall, inputStream, out, false);
-        } catch (IOException ignored) {
+     * @param head the status line and headers.
+     * @param length the size of the body, -1 if it isn't known up front.
+     * @param body the body from the target machine, null if there is none.
+     * @param client the response to the client.
+     * @param fill the fill to append the page to, may be null.
+     * @return whether the whole page was read.
+     */
+    private boolean writeData(ResponseHead head, long length, InputStream body, ClientOutput client, PageFill fill) {
+        client.head(head, length, body != null);
+        boolean complete = true;
+        if (body != null) {
+            //Try with resources, closing a body that wasn't read to the end drops the connection
+            try (InputStream inputStream = body) {
+                complete = writeData(inputStream, client, fill);
+            } catch (IOException ignored) {
+                complete = false;
+            }
         }
-
+        client.finish(complete);
+        return complete;
     }
 
     /**
-     * Write the response.
-     * @param urlToCall the url of target machine
-     * @param is Stream containing data from sire
-     * @param out the output stream to the client.
-     * @param fromCache the output stream to the client.
+     * Write a page from the cache to the client straight from its buffers.
+     * @param page the cached page, released once sent.
+     * @param range the part of the page asked for, null for the whole page.
+     * @param request the client request.
+     * @param client the response to the client, only used for its connection state and the access log.
+     * @throws IOException if the client is broken.
      */
-    private void writeData(String urlToCall, InputStream is, DataOutputStream out, boolean fromCache) {
+    private void writeCached(CachedPage page, ByteRange range, RequestParser request, ClientOutput client) throws IOException {
         try {
-            //Set up store to save web page data
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            //Create buffer
-            byte by[] = new byte[BUFFER_SIZE];
-            //Reads up to a set number of bytes from the input stream into the byte array
-            //And returns the total number of bytes read into the buffer, or -1 if there is no more data
-            int index = is.read(by, 0, BUFFER_SIZE);
-            //While loop which breaks whilst there's more data in the input stream
-            while (index != -1) {
-                //writes the contents of the byte array to client
-                out.write(by, 0, index);
-                //writes the contents of the byte array to temporary store
-                byteArrayOutputStream.write(by, 0, index);
-                //Reads next chunk of data into the buffer
-                index = is.read(by, 0, BUFFER_SIZE);
-            }
-            out.flush();
-            byteArrayOutputStream.close();
-            //Check if page being loaded from cache
-            if (!fromCache && cache.get(urlToCall) == null) {
-                //If page wasn't loaded from cache add page to cache
-                cache.put(urlToCall, byteArrayOutputStream.toByteArray());
-            } else if (fromCache) {
-                System.out.println(urlToCall + ": was loaded from cache");
+            //Compressed pages go out as they are stored to clients that take gzip, ranges are of the page as it was sent
+            boolean gzip = range == null && CachedPage.acceptsGzip(request.header("Accept-Encoding"));
+            ByteBuffer[] buffers = range != null ? page.buffers(client.keepAlive(), range) : page.buffers(client.keepAlive(), gzip);
+            for (ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining())
+                    socket.getChannel().write(buffer);
             }
-        } catch (IOException ignored) {
+            metrics.cacheHits.increment();
+            if (range != null)
+                client.sent(range.status(page.total()), range.length(page.total()));
+            else
+                client.sent(page.head().status(), page.length(gzip));
+            client.result("HIT");
+        } finally {
+            page.release();
         }
     }
 
+    /**
+     * Write the part of a range the client asked for from the part the target machine sent, keeping its chunks for the cache.
+     * @param is Stream containing the part.
+     * @param position where the part starts in the page.
+     * @param first the first byte the client asked for.
+     * @param last the last byte the client asked for.
+     * @param client the response to the client.
+     * @param fill keeps the chunks of the part, may be null.
+     * @return whether the whole part was read.
+     * @throws IOException if the target is broken.
+     */
+    private boolean writeRange(InputStream is, long position, long first, long last, ClientOutput client, RangeFill fill) throws IOException {
+        byte[] by = new byte[BUFFER_SIZE];
+        int index;
+        while ((index = is.read(by, 0, BUFFER_SIZE)) != -1) {
+            if (fill != null)
+                fill.append(by, 0, index);
+            //Only the bytes that overlap the client's range are sent
+            long from = Math.max(position, first);
+            long to = Math.min(position + index - 1, last);
+            if (from <= to)
+                client.write(by, (int) (from - position), (int) (to - from + 1));
+            position += index;
+            //The client has gone, the rest of the part is only worth reading for the cache
+            if (client.isBroken() && fill == null)
+                return false;
+        }
+        return true;
+    }
 
+    /**
+     * Write the response.
+     * @param is Stream containing data from sire
+     * @param client the response to the client.
+     * @param fill the fill to append the page to, may be null.
+     * @return whether the whole page was read.
+     * @throws IOException if the target is broken.
+     */
+    private boolean writeData(InputStream is, ClientOutput client, PageFill fill) throws IOException {
+        //Create buffer
+        byte by[] = new byte[BUFFER_SIZE];
+        //Reads up to a set number of bytes from the input stream into the byte array
+        //And returns the total number of bytes read into the buffer, or -1 if there is no more data
+        int index = is.read(by, 0, BUFFER_SIZE);
+        //While loop which breaks whilst there's more data in the input stream
+        while (index != -1) {
+            //Hand the data to the fill first so following requests aren't held up by a slow client
+            if (fill != null)
+                fill.append(by, 0, index);
+            //writes the contents of the byte array to client
+            client.write(by, 0, index);
+            //The client has gone, keep downloading only if the page is wanted
+            if (client.isBroken() && (fill == null || !fill.isWanted()))
+                return false;
+            //Reads next chunk of data into the buffer
+            index = is.read(by, 0, BUFFER_SIZE);
+        }
+        return true;
+    }
 }
@@ -0,0 +1,162 @@
+package Proxy;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * The body of a client request, framed by Content-Length or chunked encoding.
+ * It is read from the bytes read after the header and then from the client's stream.
+ * A chunked body is decoded, the pool frames it again for the target machine.
+ */
+class RequestBody extends InputStream {
+
+    /**
+     * The bytes read after the header, read before the stream.
+     */
+    private final ByteBuffer leftover;
+    /**
+     * The client's input stream.
+     */
+    private final InputStream in;
+    /**
+     * The size of the body, -1 if it is chunked.
+     */
+    private final long length;
+    /**
+     * Bytes left in the body or in the current chunk.
+     */
+    private long remaining;
+    /**
+     * Whether a chunk has been started and whether the end of the body has been reached.
+     */
+    private boolean started;
+    private boolean done;
+
+    /**
+     * Constructor.
+     *
+     * @param leftover the bytes read after the header.
+     * @param in the client's input stream.
+     * @param length the size of the body, -1 if it is chunked.
+     */
+    private RequestBody(ByteBuffer leftover, InputStream in, long length) {
+        this.leftover = leftover;
+        this.in = in;
+        this.length = length;
+        remaining = Math.max(length, 0);
+    }
+
+    /**
+     * Get the body of a request.
+     *
+     * @param request the client request.
+     * @param in the client's input stream.
+     * @return the body, or null if the request has none.
+     * @throws IOException if the framing headers are malformed.
+     */
+    static RequestBody of(RequestParser request, InputStream in) throws IOException {
+        String transferEncoding = request.header("Transfer-Encoding");
+        if (transferEncoding != null) {
+            if (!transferEncoding.toLowerCase(Locale.ROOT).endsWith("chunked"))
+                throw new IOException("Unsupported Transfer-Encoding: " + transferEncoding);
+            return new RequestBody(request.leftover(), in, -1);
+        }
+        String contentLength = request.header("Content-Length");
+        if (contentLength == null)
+            return null;
+        long length;
+        try {
+            length = Long.parseLong(contentLength);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed Content-Length: " + contentLength);
+        }
+        if (length < 0)
+            throw new IOException("Malformed Content-Length: " + contentLength);
+        return length > 0 ? new RequestBody(request.leftover(), in, length) : null;
+    }
+
+    /**
+     * @return the size of the body, -1 if it is chunked.
+     */
+    long length() {
+        return length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (done)
+            return -1;
+        if (length < 0 && remaining == 0 && !nextChunk())
+            return -1;
+        int count = (int) Math.min(len, remaining);
+        if (leftover.hasRemaining()) {
+            count = Math.min(count, leftover.remaining());
+            leftover.get(b, off, count);
+        } else {
+            count = in.read(b, off, count);
+            if (count == -1)
+                throw new EOFException("Request body ended early");
+        }
+        remaining -= count;
+        if (remaining == 0 && length >= 0)
+            done = true;
+        return count;
+    }
+
+    /**
+     * Start the next chunk of a chunked body.
+     *
+     * @return false if the body has ended.
+     * @throws IOException if the chunk size is malformed.
+     */
+    private boolean nextChunk() throws IOException {
+        //The previous chunk is followed by a line ending
+        if (started)
+            line();
+        started = true;
+        String size = line();
+        int semicolon = size.indexOf(';');
+        try {
+            remaining = Long.parseLong((semicolon < 0 ? size : size.substring(0, semicolon)).trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed chunk size: " + size);
+        }
+        if (remaining < 0)
+            throw new IOException("Malformed chunk size: " + size);
+        if (remaining > 0)
+            return true;
+        //Skip the trailers
+        while (!line().isEmpty()) ;
+        done = true;
+        return false;
+    }
+
+    /**
+     * Read one line of chunk framing.
+     *
+     * @return the line without its line ending.
+     * @throws IOException if the stream ends.
+     */
+    private String line() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = leftover.hasRemaining() ? leftover.get() & 0xff : in.read()) != '\n') {
+            if (c == -1)
+                throw new EOFException("Request body ended early");
+            if (line.length() == 1024)
+                throw new IOException("Chunk line too long");
+            if (c != '\r')
+                line.append((char) c);
+        }
+        return line.toString();
+    }
+}
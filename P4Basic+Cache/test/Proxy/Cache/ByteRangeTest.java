@@ -0,0 +1,89 @@
+package Proxy.Cache;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for parsing Range and Content-Range headers and placing a range in a page.
+ */
+class ByteRangeTest {
+
+    @Test
+    void onlySingleByteRangesAreParsed() {
+        assertNull(ByteRange.parse(null));
+        assertNull(ByteRange.parse(""));
+        assertNull(ByteRange.parse("items=0-10"));
+        assertNull(ByteRange.parse("bytes=0-10,20-30"));
+        assertNull(ByteRange.parse("bytes=10"));
+        assertNull(ByteRange.parse("bytes=-"));
+        assertNull(ByteRange.parse("bytes=a-10"));
+        assertNull(ByteRange.parse("bytes=10-5"));
+        assertNull(ByteRange.parse("bytes=1-1234567890123456789"));
+        assertNotNull(ByteRange.parse("Bytes= 10 - 20 "));
+    }
+
+    @Test
+    void aClosedRangeIsCutAtTheEndOfThePage() {
+        ByteRange range = ByteRange.parse("bytes=100-199");
+        assertEquals(100, range.first(1000));
+        assertEquals(199, range.last(1000));
+        assertEquals(100, range.length(1000));
+        assertEquals(206, range.status(1000));
+        assertEquals("bytes 100-199/1000", range.contentRange(1000));
+        assertEquals("bytes 100-149/150", range.contentRange(150));
+        assertEquals(50, range.length(150));
+    }
+
+    @Test
+    void anOpenRangeRunsToTheEnd() {
+        ByteRange range = ByteRange.parse("bytes=900-");
+        assertEquals(900, range.first(1000));
+        assertEquals(999, range.last(1000));
+        assertEquals("bytes 900-999/1000", range.contentRange(1000));
+    }
+
+    @Test
+    void aSuffixRangeIsTheLastBytes() {
+        ByteRange range = ByteRange.parse("bytes=-100");
+        assertEquals(900, range.first(1000));
+        assertEquals(999, range.last(1000));
+        assertEquals(100, range.length(1000));
+        //Longer than the page, so the whole page
+        assertEquals(0, range.first(50));
+        assertEquals(49, range.last(50));
+    }
+
+    @Test
+    void aRangeOutsideThePageIsNotSatisfiable() {
+        ByteRange past = ByteRange.parse("bytes=1000-");
+        assertFalse(past.isSatisfiable(1000));
+        assertEquals(416, past.status(1000));
+        assertEquals(0, past.length(1000));
+        assertEquals("bytes */1000", past.contentRange(1000));
+        assertFalse(ByteRange.parse("bytes=-0").isSatisfiable(1000));
+        assertFalse(ByteRange.parse("bytes=-10").isSatisfiable(0));
+        assertTrue(ByteRange.parse("bytes=999-").isSatisfiable(1000));
+    }
+
+    @Test
+    void theContentRangeOfAPartIsParsed() {
+        assertArrayEquals(new long[]{0, 99, 1000}, ByteRange.parseContentRange("bytes 0-99/1000"));
+        assertArrayEquals(new long[]{5, 5, 6}, ByteRange.parseContentRange(" Bytes 5-5/6 "));
+        assertNull(ByteRange.parseContentRange(null));
+        assertNull(ByteRange.parseContentRange("bytes 0-99/*"));
+        assertNull(ByteRange.parseContentRange("bytes */1000"));
+        assertNull(ByteRange.parseContentRange("bytes 50-10/1000"));
+        assertNull(ByteRange.parseContentRange("bytes 0-1000/1000"));
+        assertNull(ByteRange.parseContentRange("items 0-99/1000"));
+        assertNull(ByteRange.parseContentRange("bytes 0/99-1000"));
+    }
+
+    @Test
+    void aRangeIsWidenedToWholeChunks() {
+        assertEquals("bytes=1000-2999", ByteRange.parse("bytes=1500-2500").aligned(1000));
+        assertEquals("bytes=0-999", ByteRange.parse("bytes=0-999").aligned(1000));
+        assertEquals("bytes=1000-", ByteRange.parse("bytes=1500-").aligned(1000));
+        assertEquals("bytes=-200", ByteRange.parse("bytes=-200").aligned(1000));
+    }
+}
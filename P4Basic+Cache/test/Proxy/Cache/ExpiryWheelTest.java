@@ -0,0 +1,148 @@
+package Proxy.Cache;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the timing wheel the cache expires pages with, turned by hand with made up times.
+ */
+class ExpiryWheelTest {
+
+    /**
+     * Milliseconds in a tick.
+     */
+    private static final long TICK = 1000;
+
+    /**
+     * The time each page may expire, looked up by the wheel as it turns.
+     */
+    private final Map<CachedPage, Long> deadlines = new ConcurrentHashMap<>();
+    /**
+     * A wheel of 64 slots.
+     */
+    private ExpiryWheel wheel;
+    /**
+     * The start of the tick the wheel has been turned up to.
+     */
+    private long start;
+
+    @BeforeEach
+    void setUp() {
+        wheel = new ExpiryWheel(TICK, 10 * TICK);
+        //Turned to a known tick, from there on only the times given to it count
+        start = System.currentTimeMillis() / TICK * TICK;
+        assertTrue(wheel.advance(start, this::deadline).isEmpty());
+    }
+
+    /**
+     * @param page the page.
+     * @return the time it may expire.
+     */
+    private long deadline(CachedPage page) {
+        return deadlines.get(page);
+    }
+
+    /**
+     * Add a page to the wheel.
+     *
+     * @param deadline the time it may expire.
+     * @return the page.
+     */
+    private CachedPage page(long deadline) {
+        CachedPage page = new CachedPage("http://example.com/" + deadlines.size(), null, null, new byte[0][], 0, deadline);
+        deadlines.put(page, deadline);
+        wheel.schedule(page, deadline);
+        return page;
+    }
+
+    @Test
+    void aPageIsFoundOnceItsTimeHasCome() {
+        CachedPage page = page(start + 2500);
+        assertTrue(wheel.advance(start + 2999, this::deadline).isEmpty());
+        assertEquals(List.of(page), wheel.advance(start + 3000, this::deadline));
+        assertTrue(wheel.advance(start + 10 * TICK, this::deadline).isEmpty());
+    }
+
+    @Test
+    void aPageAlreadyDueIsFoundOnTheNextTick() {
+        CachedPage page = page(start - 5000);
+        assertEquals(List.of(page), wheel.advance(start + TICK, this::deadline));
+    }
+
+    @Test
+    void aPageUsedSinceItWasScheduledMovesOn() {
+        CachedPage page = page(start + TICK);
+        deadlines.put(page, start + 4 * TICK);
+        assertTrue(wheel.advance(start + TICK, this::deadline).isEmpty());
+        assertTrue(wheel.advance(start + 3 * TICK, this::deadline).isEmpty());
+        assertEquals(List.of(page), wheel.advance(start + 4 * TICK, this::deadline));
+    }
+
+    @Test
+    void aPageMoreThanOneTurnAheadWaitsForItsTurn() {
+        //64 slots, so the page's slot comes round 64 ticks before it is due
+        CachedPage page = page(start + 100 * TICK);
+        assertTrue(wheel.advance(start + 36 * TICK, this::deadline).isEmpty());
+        assertTrue(wheel.advance(start + 99 * TICK, this::deadline).isEmpty());
+        assertEquals(List.of(page), wheel.advance(start + 100 * TICK, this::deadline));
+    }
+
+    @Test
+    void aLongPauseLooksAtEverySlot() {
+        List<CachedPage> pages = new ArrayList<>();
+        for (int i = 1; i <= 200; i++)
+            pages.add(page(start + i * TICK / 2));
+        List<CachedPage> expired = wheel.advance(start + 1000 * TICK, this::deadline);
+        assertEquals(pages.size(), expired.size());
+        assertTrue(expired.containsAll(pages));
+    }
+
+    @Test
+    void pagesScheduledWhileTheWheelTurnsAreNeverATurnLate() throws InterruptedException {
+        //The last tick the wheel has been turned to, and the tick each page was found on
+        AtomicLong turned = new AtomicLong();
+        Map<CachedPage, Long> scheduledAt = new ConcurrentHashMap<>();
+        Map<CachedPage, Long> foundAt = new ConcurrentHashMap<>();
+        List<Thread> schedulers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread t = new Thread(() -> {
+                for (int j = 0; j < 50000; j++) {
+                    //Already due, so it belongs in the slot after the one last looked at
+                    CachedPage page = new CachedPage("http://example.com/", null, null, new byte[0][], 0, 0);
+                    deadlines.put(page, 0L);
+                    wheel.schedule(page, 0);
+                    //The wheel was at most a tick further on than this when the page was added
+                    scheduledAt.put(page, turned.get());
+                }
+            });
+            schedulers.add(t);
+            t.start();
+        }
+        long tick = 0;
+        while (schedulers.stream().anyMatch(Thread::isAlive)) {
+            tick++;
+            for (CachedPage page : wheel.advance(start + tick * TICK, this::deadline))
+                foundAt.put(page, tick);
+            turned.set(tick);
+        }
+        for (Thread t : schedulers)
+            t.join();
+        //Turn past anything left over
+        for (int i = 0; i < 3; i++) {
+            tick++;
+            for (CachedPage page : wheel.advance(start + tick * TICK, this::deadline))
+                foundAt.put(page, tick);
+        }
+        assertEquals(scheduledAt.size(), foundAt.size());
+        for (Map.Entry<CachedPage, Long> found : foundAt.entrySet())
+            assertTrue(found.getValue() - scheduledAt.get(found.getKey()) <= 2, "page found a turn late");
+    }
+}
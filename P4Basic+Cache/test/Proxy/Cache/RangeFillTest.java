@@ -0,0 +1,166 @@
+package Proxy.Cache;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for keeping the parts of a page from 206 responses and putting them together in the cache.
+ */
+class RangeFillTest {
+
+    private static final int CHUNK = CachedPage.CHUNK_SIZE;
+    private static final String URL = "http://example.com/video";
+    /**
+     * Three whole chunks and a short last one.
+     */
+    private static final int TOTAL = 3 * CHUNK + 1000;
+    /**
+     * A request with no headers.
+     */
+    private static final Function<String, String> NO_HEADERS = name -> null;
+
+    private final byte[] page = new byte[TOTAL];
+    private CacheManager cache;
+
+    @BeforeEach
+    void setUp() {
+        new Random(7).nextBytes(page);
+        //No expiry thread, the pages stay until the test ends
+        cache = new CacheManager(300, 0, 64L * 1024 * 1024, 4 * 1024 * 1024);
+    }
+
+    /**
+     * Make the head of a 206 response.
+     *
+     * @param first the first byte of the part.
+     * @param last the last byte of the part.
+     * @param headers extra header lines.
+     * @return the head.
+     * @throws IOException never, the head is well formed.
+     */
+    private static ResponseHead head(long first, long last, String... headers) throws IOException {
+        StringBuilder head = new StringBuilder("HTTP/1.1 206 Partial Content\r\n")
+                .append("Content-Range: bytes ").append(first).append('-').append(last).append('/').append(TOTAL).append("\r\n")
+                .append("Content-Length: ").append(last - first + 1).append("\r\n");
+        for (String header : headers)
+            head.append(header).append("\r\n");
+        return ResponseHead.read(new ByteArrayInputStream(head.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    /**
+     * Keep a part of the page, as it arrives in a 206 response.
+     *
+     * @param first the first byte of the part.
+     * @param last the last byte of the part.
+     * @param etag the ETag of the version the part is of.
+     * @throws IOException never, the head is well formed.
+     */
+    private void fill(int first, int last, String etag) throws IOException {
+        RangeFill fill = RangeFill.start(cache, URL, head(first, last, "ETag: " + etag, "Cache-Control: max-age=600"),
+                first, TOTAL, NO_HEADERS);
+        assertNotNull(fill);
+        //Sent in pieces that don't line up with the chunks
+        for (int at = first; at <= last; at += 5000)
+            fill.append(page, at, Math.min(5000, last + 1 - at));
+        fill.complete();
+    }
+
+    @Test
+    void onlyChunksThatArriveWholeAreKept() throws IOException {
+        fill(CHUNK / 2, 2 * CHUNK - 1, "\"v1\"");
+        CachedPage stored = cache.acquire(URL);
+        try {
+            assertTrue(stored.isPartial());
+            assertEquals(TOTAL, stored.total());
+            assertFalse(stored.has(0, 0));
+            assertTrue(stored.has(CHUNK, 2 * CHUNK - 1));
+            assertFalse(stored.has(CHUNK, 2 * CHUNK));
+            assertArrayEquals(new long[]{0, TOTAL - 1}, stored.missing(0, TOTAL - 1));
+            assertArrayEquals(new long[]{2 * CHUNK, TOTAL - 1}, stored.missing(CHUNK, TOTAL - 1));
+            assertNull(stored.missing(CHUNK + 10, CHUNK + 20));
+        } finally {
+            stored.release();
+        }
+    }
+
+    @Test
+    void partsOfTheSameVersionAreMerged() throws IOException {
+        fill(0, 2 * CHUNK - 1, "\"v1\"");
+        fill(2 * CHUNK, TOTAL - 1, "\"v1\"");
+        CachedPage stored = cache.acquire(URL);
+        try {
+            assertFalse(stored.isPartial());
+            assertEquals(200, stored.head().status());
+            assertNull(stored.head().header("Content-Range"));
+            assertArrayEquals(page, stored.bytes());
+        } finally {
+            stored.release();
+        }
+    }
+
+    @Test
+    void partsOfAnotherVersionReplaceThoseStored() throws IOException {
+        fill(0, CHUNK - 1, "\"v1\"");
+        fill(CHUNK, 2 * CHUNK - 1, "\"v2\"");
+        CachedPage stored = cache.acquire(URL);
+        try {
+            assertEquals("\"v2\"", stored.validator());
+            assertFalse(stored.has(0, CHUNK - 1));
+            assertTrue(stored.has(CHUNK, 2 * CHUNK - 1));
+        } finally {
+            stored.release();
+        }
+    }
+
+    @Test
+    void aWholePageIsNeverReplacedByParts() throws IOException {
+        cache.put(URL, page);
+        fill(0, CHUNK - 1, "\"v1\"");
+        assertArrayEquals(page, cache.get(URL));
+    }
+
+    @Test
+    void partsThatCantBeMatchedToAVersionArentKept() throws IOException {
+        assertNull(RangeFill.start(cache, URL, head(0, 99, "Cache-Control: max-age=600"), 0, TOTAL, NO_HEADERS));
+        assertNull(RangeFill.start(cache, URL, head(0, 99, "ETag: W/\"weak\"", "Cache-Control: max-age=600"), 0, TOTAL, NO_HEADERS));
+        assertNull(RangeFill.start(cache, URL, head(0, 99, "ETag: \"v1\"", "Cache-Control: no-store"), 0, TOTAL, NO_HEADERS));
+        assertNull(RangeFill.start(cache, URL, head(0, 99, "ETag: \"v1\"", "Content-Encoding: gzip"), 0, TOTAL, NO_HEADERS));
+        assertNotNull(RangeFill.start(cache, URL, head(0, 99, "ETag: \"v1\""), 0, TOTAL, NO_HEADERS));
+    }
+
+    @Test
+    void partsFetchedWithAuthorizationAreOnlyKeptIfShared() throws IOException {
+        Function<String, String> signedIn = Map.of("Authorization", "Basic eDp5")::get;
+        assertNull(RangeFill.start(cache, URL, head(0, 99, "ETag: \"v1\"", "Cache-Control: max-age=600"), 0, TOTAL, signedIn));
+        assertNotNull(RangeFill.start(cache, URL, head(0, 99, "ETag: \"v1\"", "Cache-Control: public, max-age=600"), 0, TOTAL, signedIn));
+        assertNotNull(RangeFill.start(cache, URL, head(0, 99, "ETag: \"v1\"", "Cache-Control: s-maxage=600"), 0, TOTAL, signedIn));
+    }
+
+    @Test
+    void aPartOfTheLastChunkIsKeptWhenItReachesTheEnd() throws IOException {
+        fill(3 * CHUNK, TOTAL - 1, "\"v1\"");
+        CachedPage stored = cache.acquire(URL);
+        try {
+            assertTrue(stored.has(3 * CHUNK, TOTAL - 1));
+            assertFalse(stored.has(0, TOTAL - 1));
+            assertEquals(1000, stored.length());
+            ByteBuffer last = stored.slice(3 * CHUNK, TOTAL - 1)[0];
+            byte[] bytes = new byte[last.remaining()];
+            last.get(bytes);
+            assertArrayEquals(Arrays.copyOfRange(page, 3 * CHUNK, TOTAL), bytes);
+        } finally {
+            stored.release();
+        }
+    }
+}
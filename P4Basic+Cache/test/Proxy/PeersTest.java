@@ -0,0 +1,120 @@
+package Proxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for sharing the pages between proxies on a consistent hash ring.
+ */
+class PeersTest {
+
+    private static final String[] THREE = {"10.0.0.1:7538", "10.0.0.2:7538", "10.0.0.3:7538"};
+    private static final String[] FOUR = {"10.0.0.1:7538", "10.0.0.2:7538", "10.0.0.3:7538", "10.0.0.4:7538"};
+
+    /**
+     * Find the proxy owning a page, as seen by one of them.
+     *
+     * @param peers the proxies, as seen by one of them.
+     * @param self the index of that one.
+     * @param key the page.
+     * @return the index of the owner.
+     */
+    private static int owner(Peers peers, int self, String key) {
+        int owner = peers.owner(key);
+        return owner < 0 ? self : owner;
+    }
+
+    @Test
+    void aSingleProxyKeepsEveryPage() {
+        Peers none = new Peers(new String[0], ":7538", 1000);
+        assertFalse(none.isEnabled());
+        assertEquals(-1, none.owner("http://example.com/"));
+        Peers alone = new Peers(new String[]{"10.0.0.1:7538"}, ":7538", 1000);
+        assertFalse(alone.isEnabled());
+        assertEquals(-1, alone.owner("http://example.com/"));
+    }
+
+    @Test
+    void thisProxyIsFoundInTheList() {
+        assertEquals("10.0.0.2:7538", new Peers(THREE, "10.0.0.2:7538", 1000).self());
+        assertEquals("10.0.0.1:7538", new Peers(THREE, ":7538", 1000).self());
+        assertThrows(IllegalArgumentException.class, () -> new Peers(THREE, ":9999", 1000));
+        assertThrows(IllegalArgumentException.class, () -> new Peers(THREE, "10.0.0.9:7538", 1000));
+    }
+
+    @Test
+    void everyProxyAgreesOnTheOwner() {
+        Peers[] views = new Peers[THREE.length];
+        for (int i = 0; i < THREE.length; i++)
+            views[i] = new Peers(THREE, THREE[i], 1000);
+        for (int k = 0; k < 1000; k++) {
+            String key = "http://example.com/page" + k;
+            int owner = owner(views[0], 0, key);
+            int keeping = 0;
+            for (int i = 0; i < views.length; i++) {
+                assertEquals(owner, owner(views[i], i, key), key);
+                //Only the owner keeps the page itself
+                if (views[i].owner(key) < 0)
+                    keeping++;
+            }
+            assertEquals(1, keeping, key);
+        }
+    }
+
+    @Test
+    void thePagesAreSharedEvenly() {
+        Peers peers = new Peers(THREE, THREE[0], 1000);
+        int[] owned = new int[THREE.length];
+        int keys = 30000;
+        for (int k = 0; k < keys; k++)
+            owned[owner(peers, 0, "http://site" + k % 97 + ".example/" + k)]++;
+        for (int count : owned)
+            assertTrue(count > keys / 3 * 0.8 && count < keys / 3 * 1.2, "uneven share " + count);
+    }
+
+    @Test
+    void addingAProxyOnlyMovesPagesToIt() {
+        Peers before = new Peers(THREE, THREE[0], 1000);
+        Peers after = new Peers(FOUR, FOUR[0], 1000);
+        int moved = 0;
+        int keys = 10000;
+        for (int k = 0; k < keys; k++) {
+            String key = "http://example.com/page" + k;
+            int was = owner(before, 0, key);
+            int is = owner(after, 0, key);
+            if (was != is) {
+                assertEquals(3, is, key);
+                moved++;
+            }
+        }
+        //About a quarter of the pages belong to the new proxy
+        assertTrue(moved > keys / 4 * 0.8 && moved < keys / 4 * 1.2, "moved " + moved);
+    }
+
+    @Test
+    void aFailedPeerIsSkippedForAWhile() throws InterruptedException {
+        Peers peers = new Peers(THREE, THREE[0], 100);
+        String key = null;
+        for (int k = 0; key == null; k++) {
+            if (peers.owner("http://example.com/page" + k) == 1)
+                key = "http://example.com/page" + k;
+        }
+        peers.failed(1);
+        assertEquals(-1, peers.owner(key));
+        Thread.sleep(200);
+        assertEquals(1, peers.owner(key));
+    }
+
+    @Test
+    void onlyTheProxiesAreMembers() throws UnknownHostException {
+        Peers peers = new Peers(THREE, THREE[0], 1000);
+        assertTrue(peers.isMember(InetAddress.getByName("10.0.0.2")));
+        assertTrue(peers.isMember(InetAddress.getByName("10.0.0.1")));
+        assertFalse(peers.isMember(InetAddress.getByName("10.0.0.9")));
+        assertFalse(peers.isMember(InetAddress.getByName("127.0.0.1")));
+    }
+}
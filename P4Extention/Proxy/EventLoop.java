@@ -0,0 +1,661 @@
+package Proxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Non-blocking alternative to ProxyThread, one selector serves many connections.
+ * Connections are kept open between re-directs until they have been idle for the keep alive timeout.
+ */
+class EventLoop extends Thread {
+
+    /**
+     * Size of the buffer used for each direction of a tunnel.
+     */
+    private static final int BUFFER_SIZE = 8192;
+    /**
+     * Milliseconds between checks for idle connections.
+     */
+    private static final long IDLE_CHECK = 1000;
+
+    /**
+     * Selector watching every connection owned by this loop.
+     */
+    private final Selector selector;
+    /**
+     * Accepted connections waiting to be registered with the selector.
+     */
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    /**
+     * Work handed back to this loop by other threads, run on the loop.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /**
+     * Loops accepted connections are handed out to, only set on the accepting loop.
+     */
+    private EventLoop[] workers;
+    /**
+     * Index of the next worker to hand a connection to.
+     */
+    private int nextWorker;
+    /**
+     * The time idle connections were last checked for.
+     */
+    private long lastIdleCheck;
+
+    /**
+     * Constructor.
+     *
+     * @param id number used to name the thread.
+     * @throws IOException if the selector can't be opened.
+     */
+    EventLoop(int id) throws IOException {
+        super("EventLoop-" + id);
+        selector = Selector.open();
+    }
+
+    /**
+     * Make this loop accept new connections and share them between the workers.
+     *
+     * @param serverChannel the bound server channel.
+     * @param workers the loops connections are handed to.
+     * @throws IOException if the channel can't be registered.
+     */
+    void accept(ServerSocketChannel serverChannel, EventLoop[] workers) throws IOException {
+        this.workers = workers;
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Hand a newly accepted connection to this loop, safe to call from any thread.
+     *
+     * @param channel the client channel.
+     */
+    private void register(SocketChannel channel) {
+        pending.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Run a task on this loop, safe to call from any thread.
+     *
+     * @param task the task.
+     */
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Run method called when new thread started.
+     */
+    @Override
+    public void run() {
+        while (selector.isOpen()) {
+            try {
+                selector.select(IDLE_CHECK);
+                //Register connections accepted by the accepting loop
+                SocketChannel channel;
+                while ((channel = pending.poll()) != null) {
+                    channel.configureBlocking(false);
+                    channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        acceptConnection((ServerSocketChannel) key.channel());
+                    } else {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            connection.handle(key);
+                        } catch (IOException | RuntimeException e) {
+                            //Same as the blocking version, drop the connection on any error
+                            connection.close();
+                        }
+                    }
+                }
+                closeIdle();
+            } catch (IOException ignored) {
+                //The connections that failed have been closed, the loop carries on with the next select
+            }
+        }
+    }
+
+    /**
+     * Close connections that have waited longer than the keep alive timeout for a request, and idle tunnels.
+     */
+    private void closeIdle() {
+        long now = System.currentTimeMillis();
+        if (now - lastIdleCheck < IDLE_CHECK)
+            return;
+        lastIdleCheck = now;
+        for (SelectionKey key : selector.keys()) {
+            //Connections being written to are left alone, tunnels get the tunnel idle timeout
+            if (key.attachment() instanceof Connection) {
+                Connection connection = (Connection) key.attachment();
+                if (connection.isIdle(now))
+                    connection.close();
+            }
+        }
+    }
+
+    /**
+     * Accept every waiting connection and share them between the workers.
+     *
+     * @param serverChannel the server channel.
+     * @throws IOException if accepting fails.
+     */
+    private void acceptConnection(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            if (!ProxyThread.admission.admit(channel.socket()))
+                continue;
+            workers[nextWorker].register(channel);
+            nextWorker = (nextWorker + 1) % workers.length;
+        }
+    }
+
+    /**
+     * State of one proxied connection.
+     */
+    private class Connection {
+
+        /**
+         * The client channel.
+         */
+        private final SocketChannel client;
+        /**
+         * Parses the request header as it arrives.
+         */
+        private final RequestParser request = new RequestParser();
+        /**
+         * Response waiting to be written.
+         */
+        private ByteBuffer response;
+        /**
+         * Whether the connection stays open after the response has been written.
+         */
+        private boolean keepAlive;
+        /**
+         * The status and result of the response being written, for the access log.
+         */
+        private int status;
+        private String result;
+        /**
+         * The time the connection last read or finished writing a response.
+         */
+        private long lastActive = System.currentTimeMillis();
+        /**
+         * Connection to the target machine, once CONNECT has been received.
+         */
+        private SocketChannel remote;
+        /**
+         * The time the connection to the target machine was started, in nanoseconds.
+         */
+        private long connectStarted;
+        /**
+         * The time the request being answered was read in nanoseconds, and its method and url for the access log.
+         */
+        private long started;
+        private String method;
+        private String target;
+        /**
+         * Version of the CONNECT request.
+         */
+        private String version;
+        /**
+         * Data going from the client to the target.
+         */
+        private Pipe upstream;
+        /**
+         * Data going from the target to the client.
+         */
+        private Pipe downstream;
+
+        /**
+         * Constructor.
+         *
+         * @param client the client channel.
+         */
+        Connection(SocketChannel client) {
+            this.client = client;
+        }
+
+        /**
+         * Deal with a ready key belonging to this connection.
+         *
+         * @param key the ready key.
+         * @throws IOException if a channel is broken.
+         */
+        void handle(SelectionKey key) throws IOException {
+            if (upstream != null) {
+                tunnel(key);
+            } else if (key.isConnectable()) {
+                connected(key);
+            } else if (response != null) {
+                if (writeResponse(key))
+                    nextRequests(key);
+            } else if (key.isReadable()) {
+                readHeader(key);
+            }
+        }
+
+        /**
+         * Read more of the request header and answer what has arrived.
+         *
+         * @param key the client key.
+         * @throws IOException if the client is broken.
+         */
+        private void readHeader(SelectionKey key) throws IOException {
+            int read = client.read(request.buffer());
+            lastActive = System.currentTimeMillis();
+            //Blocking version gives up on the request when the socket closes
+            if (!nextRequests(key) && read == -1)
+                close();
+        }
+
+        /**
+         * Answer the complete requests in the buffer in turn, while each one is finished straight away.
+         *
+         * @param key the client key.
+         * @return whether a complete request was found.
+         * @throws IOException if the client is broken or a header is malformed.
+         */
+        private boolean nextRequests(SelectionKey key) throws IOException {
+            boolean found = false;
+            while (request.parse()) {
+                found = true;
+                if (!answer(key))
+                    break;
+            }
+            return found;
+        }
+
+        /**
+         * Answer a complete request.
+         *
+         * @param key the client key.
+         * @return whether the response has been sent and the connection is waiting for the next request.
+         * @throws IOException if the client is broken.
+         */
+        private boolean answer(SelectionKey key) throws IOException {
+            started = System.nanoTime();
+            method = request.method();
+            target = request.target();
+            if (request.isHttp1() && request.targetStartsWith(ProxyThread.HTTP_WWW)) {
+                //Send a re-direct to the browser with a HTTPS URL
+                ProxyThread.metrics.redirects.increment();
+                keepAlive = request.keepAlive();
+                response = encode(ProxyThread.redirectResponse(request.target().substring(ProxyThread.HTTP_WWW.length()), keepAlive));
+                status = 302;
+                result = "REDIRECT";
+                key.interestOps(SelectionKey.OP_WRITE);
+                return writeResponse(key);
+            } else if (request.isHttp1() && request.method().equals("CONNECT")) {
+                ProxyThread.metrics.connects.increment();
+                if (!ProxyThread.admission.admitTunnel()) {
+                    //Turned away straight away so the open tunnels keep their latency
+                    keepAlive = false;
+                    response = encode(Admission.unavailable(false));
+                    status = 503;
+                    result = "REJECTED";
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return writeResponse(key);
+                }
+                version = request.version();
+                //Open up a non-blocking connection to the target machine
+                try {
+                    remote = SocketChannel.open();
+                } catch (IOException e) {
+                    ProxyThread.admission.releaseTunnel();
+                    throw e;
+                }
+                remote.configureBlocking(false);
+                key.interestOps(0);
+                connectStarted = System.nanoTime();
+                InetAddress address;
+                try {
+                    address = ProxyThread.resolver.cached(request.host());
+                } catch (UnknownHostException e) {
+                    ProxyThread.metrics.connectFailures.increment();
+                    throw e;
+                }
+                if (address != null) {
+                    connect(key, address);
+                } else {
+                    //Look the name up off the loop, the other connections carry on meanwhile
+                    ProxyThread.resolver.resolve(request.host(), (resolved, failure) -> execute(() -> resolved(key, resolved, failure)));
+                }
+            } else {
+                ProxyThread.metrics.otherRequests.increment();
+                ProxyThread.accessLog.log(client.socket().getRemoteSocketAddress(), method, target, 0, 0, "DROPPED",
+                        System.nanoTime() - started);
+                close();
+            }
+            return false;
+        }
+
+        /**
+         * Write the pending response, then wait for the next request or close the connection once it has all been sent.
+         *
+         * @param key the client key.
+         * @return whether the response has been sent and the connection is waiting for the next request.
+         * @throws IOException if the client is broken.
+         */
+        private boolean writeResponse(SelectionKey key) throws IOException {
+            client.write(response);
+            if (response.hasRemaining())
+                return false;
+            response = null;
+            ProxyThread.accessLog.log(client.socket().getRemoteSocketAddress(), method, target, status, 0, result,
+                    System.nanoTime() - started);
+            if (!keepAlive) {
+                close();
+                return false;
+            }
+            //Keep any pipelined bytes read after the header
+            request.reset();
+            key.interestOps(SelectionKey.OP_READ);
+            lastActive = System.currentTimeMillis();
+            return true;
+        }
+
+        /**
+         * Called on the loop once the target of a CONNECT that wasn't cached has been looked up.
+         *
+         * @param key the client key.
+         * @param address the address of the target, null if it didn't resolve.
+         * @param failure why the target didn't resolve.
+         */
+        private void resolved(SelectionKey key, InetAddress address, UnknownHostException failure) {
+            if (!client.isOpen())
+                return;
+            if (failure != null) {
+                ProxyThread.metrics.connectFailures.increment();
+                close();
+                return;
+            }
+            try {
+                connect(key, address);
+            } catch (IOException | RuntimeException e) {
+                close();
+            }
+        }
+
+        /**
+         * Start the non-blocking connection to the target of a CONNECT.
+         *
+         * @param key the client key.
+         * @param address the address of the target.
+         * @throws IOException if the target can't be reached.
+         */
+        private void connect(SelectionKey key, InetAddress address) throws IOException {
+            boolean connected;
+            try {
+                connected = remote.connect(new InetSocketAddress(address, request.port()));
+            } catch (IOException | RuntimeException e) {
+                ProxyThread.metrics.connectFailures.increment();
+                throw e;
+            }
+            if (connected)
+                startTunnel(key);
+            else
+                remote.register(selector, SelectionKey.OP_CONNECT, this);
+        }
+
+        /**
+         * @param now the current time.
+         * @return whether the connection has waited longer than the keep alive timeout for a request,
+         * or its tunnel has gone without traffic for longer than the tunnel idle timeout.
+         */
+        boolean isIdle(long now) {
+            if (remote == null)
+                return response == null && now - lastActive > ProxyThread.KEEP_ALIVE_TIMEOUT;
+            if (Tunnel.IDLE_TIMEOUT <= 0)
+                return false;
+            //A tunnel still connecting counts from when its CONNECT was read
+            long active = upstream != null ? Math.max(upstream.lastActive, downstream.lastActive) : lastActive;
+            return now - active > Tunnel.IDLE_TIMEOUT;
+        }
+
+        /**
+         * Called when the connection to the target machine completes.
+         *
+         * @param key the target key.
+         * @throws IOException if the target can't be reached.
+         */
+        private void connected(SelectionKey key) throws IOException {
+            boolean connected;
+            try {
+                connected = remote.finishConnect();
+            } catch (IOException e) {
+                ProxyThread.metrics.connectFailures.increment();
+                throw e;
+            }
+            if (connected)
+                startTunnel(client.keyFor(selector));
+        }
+
+        /**
+         * Send connection established to the browser and start moving data.
+         *
+         * @param clientKey the client key.
+         * @throws IOException if a channel is broken.
+         */
+        private void startTunnel(SelectionKey clientKey) throws IOException {
+            ProxyThread.metrics.connectLatency.record(System.nanoTime() - connectStarted);
+            Tunnel.noDelay(client, remote);
+            ByteBuffer established = encode(ProxyThread.connectResponse(version));
+            upstream = new Pipe(client, remote, clientKey, ProxyThread.metrics.bytesUpstream);
+            //Queue the bytes the client sent after its header for the target
+            upstream.buffer.put(request.leftover());
+            SelectionKey remoteKey = remote.keyFor(selector);
+            if (remoteKey == null)
+                remoteKey = remote.register(selector, 0, this);
+            downstream = new Pipe(remote, client, remoteKey, ProxyThread.metrics.bytesDownstream);
+            downstream.buffer.put(established);
+            updateInterest();
+        }
+
+        /**
+         * Move data in both directions of the tunnel.
+         *
+         * @param key the ready key.
+         * @throws IOException if a channel is broken.
+         */
+        private void tunnel(SelectionKey key) throws IOException {
+            Pipe reader = key.channel() == client ? upstream : downstream;
+            Pipe writer = key.channel() == client ? downstream : upstream;
+            if (key.isReadable())
+                reader.read();
+            if (key.isValid() && key.isWritable())
+                writer.write();
+            if (upstream.finished() && downstream.finished())
+                close();
+            else
+                updateInterest();
+        }
+
+        /**
+         * Work out which events each side of the tunnel is waiting for.
+         */
+        private void updateInterest() {
+            upstream.source.interestOps(interest(upstream, downstream));
+            downstream.source.interestOps(interest(downstream, upstream));
+        }
+
+        /**
+         * Work out the events a channel is waiting for.
+         *
+         * @param from the pipe the channel is read from.
+         * @param to the pipe the channel is written to.
+         * @return the interest set.
+         */
+        private int interest(Pipe from, Pipe to) {
+            int ops = 0;
+            if (from.canRead())
+                ops |= SelectionKey.OP_READ;
+            if (to.hasData())
+                ops |= SelectionKey.OP_WRITE;
+            return ops;
+        }
+
+        /**
+         * Close both sides of the connection.
+         */
+        void close() {
+            //Only counted once, whichever path closes it
+            if (client.isOpen()) {
+                ProxyThread.admission.release(client.socket());
+                //A CONNECT is logged once its tunnel closes, or once connecting to the target fails
+                if (remote != null) {
+                    ProxyThread.admission.releaseTunnel();
+                    ProxyThread.accessLog.log(client.socket().getRemoteSocketAddress(), method, target, upstream != null ? 200 : 0,
+                            downstream != null ? downstream.total : 0, "TUNNEL", System.nanoTime() - started);
+                }
+            }
+            try {
+                client.close();
+                if (remote != null)
+                    remote.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * One direction of a tunnel with a fixed size buffer.
+     */
+    private static class Pipe {
+
+        /**
+         * The channel data is read from.
+         */
+        private final SocketChannel in;
+        /**
+         * The channel data is written to.
+         */
+        private final SocketChannel out;
+        /**
+         * Key of the channel data is read from.
+         */
+        private final SelectionKey source;
+        /**
+         * Data read but not yet written.
+         */
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        /**
+         * Counter of the bytes read in this direction.
+         */
+        private final LongAdder tunnelled;
+        /**
+         * Bytes read in this direction.
+         */
+        private long total;
+        /**
+         * Whether the reading side has reached the end of its stream.
+         */
+        private boolean eof;
+        /**
+         * The time data last moved in this direction.
+         */
+        private long lastActive = System.currentTimeMillis();
+
+        /**
+         * Constructor.
+         *
+         * @param in the channel data is read from.
+         * @param out the channel data is written to.
+         * @param source key of the channel data is read from.
+         * @param tunnelled counter of the bytes read in this direction.
+         */
+        Pipe(SocketChannel in, SocketChannel out, SelectionKey source, LongAdder tunnelled) {
+            this.in = in;
+            this.out = out;
+            this.source = source;
+            this.tunnelled = tunnelled;
+        }
+
+        /**
+         * Read as much as the buffer will hold.
+         *
+         * @throws IOException if the channel is broken.
+         */
+        void read() throws IOException {
+            int read = in.read(buffer);
+            if (read != 0)
+                lastActive = System.currentTimeMillis();
+            if (read == -1) {
+                eof = true;
+                in.shutdownInput();
+            } else {
+                tunnelled.add(read);
+                total += read;
+            }
+            write();
+        }
+
+        /**
+         * Write as much of the buffer as the channel will take.
+         *
+         * @throws IOException if the channel is broken.
+         */
+        void write() throws IOException {
+            buffer.flip();
+            if (out.write(buffer) > 0)
+                lastActive = System.currentTimeMillis();
+            buffer.compact();
+            //Pass the end of stream on once everything has been written
+            if (eof && buffer.position() == 0 && !out.socket().isOutputShutdown())
+                out.shutdownOutput();
+        }
+
+        /**
+         * @return whether more data can be read.
+         */
+        boolean canRead() {
+            return !eof && buffer.hasRemaining();
+        }
+
+        /**
+         * @return whether there is data waiting to be written.
+         */
+        boolean hasData() {
+            return buffer.position() > 0;
+        }
+
+        /**
+         * @return whether this direction is done.
+         */
+        boolean finished() {
+            return eof && buffer.position() == 0;
+        }
+    }
+
+    /**
+     * Encode a response for sending.
+     *
+     * @param response the response text.
+     * @return the encoded bytes.
+     */
+    private static ByteBuffer encode(String response) {
+        return ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
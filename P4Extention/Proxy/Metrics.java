@@ -0,0 +1,264 @@
+package Proxy;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of what the proxy is doing, kept with adders so connection threads never wait on each other.
+ * They are published over JMX and as plain text on http://localhost:7539/metrics,
+ * the port is set with -Dproxy.metricsPort (0 for none).
+ */
+class Metrics implements MetricsMBean {
+
+    /**
+     * Port of the metrics endpoint, only listening on loopback.
+     */
+    private static final int PORT = Integer.getInteger("proxy.metricsPort", 7539);
+
+    /**
+     * Requests by how they were answered.
+     */
+    final LongAdder redirects = new LongAdder();
+    final LongAdder connects = new LongAdder();
+    final LongAdder otherRequests = new LongAdder();
+    /**
+     * CONNECT requests whose target couldn't be reached.
+     */
+    final LongAdder connectFailures = new LongAdder();
+    /**
+     * Time to connect to a CONNECT target.
+     */
+    final LatencyHistogram connectLatency = new LatencyHistogram();
+    /**
+     * Bytes tunnelled in each direction.
+     */
+    final LongAdder bytesUpstream = new LongAdder();
+    final LongAdder bytesDownstream = new LongAdder();
+    /**
+     * The access log, which counts the lines it drops.
+     */
+    private final AccessLog accessLog;
+    /**
+     * The limits, which count what is open and what they turned away.
+     */
+    private final Admission admission;
+    /**
+     * The resolver, which counts its lookups.
+     */
+    private final Resolver resolver;
+
+    /**
+     * Constructor.
+     *
+     * @param accessLog the access log.
+     * @param admission the limits on connections and tunnels.
+     * @param resolver the resolver of CONNECT targets.
+     */
+    Metrics(AccessLog accessLog, Admission admission, Resolver resolver) {
+        this.accessLog = accessLog;
+        this.admission = admission;
+        this.resolver = resolver;
+    }
+
+    /**
+     * Register with JMX and start the metrics endpoint.
+     * The proxy runs without them if either fails.
+     */
+    void publish() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("Proxy:type=Metrics"));
+        } catch (JMException e) {
+            System.out.println("Metrics not registered with JMX: " + e.getMessage());
+        }
+        if (PORT <= 0)
+            return;
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT), 0);
+            server.createContext("/metrics", this::handle);
+            server.start();
+        } catch (IOException e) {
+            System.out.println("Metrics endpoint not available: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Answer a request to the metrics endpoint.
+     *
+     * @param exchange the request and response.
+     * @throws IOException if the client is broken.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            byte[] body = text().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * @return every counter in the Prometheus text format.
+     */
+    String text() {
+        StringBuilder text = new StringBuilder();
+        type(text, "proxy_requests_total", "counter");
+        text.append("proxy_requests_total{type=\"redirect\"} ").append(getRedirects()).append('\n');
+        text.append("proxy_requests_total{type=\"connect\"} ").append(getConnects()).append('\n');
+        text.append("proxy_requests_total{type=\"other\"} ").append(getOtherRequests()).append('\n');
+        type(text, "proxy_connect_failures_total", "counter");
+        text.append("proxy_connect_failures_total ").append(getConnectFailures()).append('\n');
+        type(text, "proxy_connect_latency_seconds", "histogram");
+        long cumulative = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            cumulative += connectLatency.count(i);
+            double bound = LatencyHistogram.upperBound(i);
+            text.append("proxy_connect_latency_seconds_bucket{le=\"")
+                    .append(Double.isInfinite(bound) ? "+Inf" : Double.toString(bound / 1000))
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+        text.append("proxy_connect_latency_seconds_sum ").append(connectLatency.sumMillis() / 1000).append('\n');
+        text.append("proxy_connect_latency_seconds_count ").append(cumulative).append('\n');
+        type(text, "proxy_tunnel_bytes_total", "counter");
+        text.append("proxy_tunnel_bytes_total{direction=\"upstream\"} ").append(getBytesUpstream()).append('\n');
+        text.append("proxy_tunnel_bytes_total{direction=\"downstream\"} ").append(getBytesDownstream()).append('\n');
+        type(text, "proxy_active_connections", "gauge");
+        text.append("proxy_active_connections ").append(getActiveConnections()).append('\n');
+        type(text, "proxy_active_tunnels", "gauge");
+        text.append("proxy_active_tunnels ").append(getActiveTunnels()).append('\n');
+        type(text, "proxy_rejected_total", "counter");
+        text.append("proxy_rejected_total{limit=\"connections\"} ").append(getRejectedConnections()).append('\n');
+        text.append("proxy_rejected_total{limit=\"client\"} ").append(getRejectedClientConnections()).append('\n');
+        text.append("proxy_rejected_total{limit=\"tunnels\"} ").append(getRejectedTunnels()).append('\n');
+        type(text, "proxy_dns_cache_hits_total", "counter");
+        text.append("proxy_dns_cache_hits_total ").append(getDnsCacheHits()).append('\n');
+        type(text, "proxy_dns_lookups_total", "counter");
+        text.append("proxy_dns_lookups_total ").append(getDnsLookups()).append('\n');
+        type(text, "proxy_dns_failures_total", "counter");
+        text.append("proxy_dns_failures_total ").append(getDnsFailures()).append('\n');
+        type(text, "proxy_dns_prefetches_total", "counter");
+        text.append("proxy_dns_prefetches_total ").append(getDnsPrefetches()).append('\n');
+        type(text, "proxy_dns_names", "gauge");
+        text.append("proxy_dns_names ").append(getDnsNames()).append('\n');
+        type(text, "proxy_access_log_dropped_total", "counter");
+        text.append("proxy_access_log_dropped_total ").append(getAccessLogDropped()).append('\n');
+        return text.toString();
+    }
+
+    /**
+     * Write the type line of a metric.
+     *
+     * @param text the text being built.
+     * @param name the metric.
+     * @param type its type.
+     */
+    private static void type(StringBuilder text, String name, String type) {
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    @Override
+    public long getRedirects() {
+        return redirects.sum();
+    }
+
+    @Override
+    public long getConnects() {
+        return connects.sum();
+    }
+
+    @Override
+    public long getOtherRequests() {
+        return otherRequests.sum();
+    }
+
+    @Override
+    public long getConnectFailures() {
+        return connectFailures.sum();
+    }
+
+    @Override
+    public double getConnectLatencyMeanMillis() {
+        return connectLatency.mean();
+    }
+
+    @Override
+    public double getConnectLatency99thMillis() {
+        return connectLatency.valueAt(99);
+    }
+
+    @Override
+    public long getBytesUpstream() {
+        return bytesUpstream.sum();
+    }
+
+    @Override
+    public long getBytesDownstream() {
+        return bytesDownstream.sum();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return admission.connections();
+    }
+
+    @Override
+    public long getAccessLogDropped() {
+        return accessLog.dropped();
+    }
+
+    @Override
+    public int getActiveTunnels() {
+        return admission.tunnels();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return admission.rejectedConnections.sum();
+    }
+
+    @Override
+    public long getRejectedClientConnections() {
+        return admission.rejectedClientConnections.sum();
+    }
+
+    @Override
+    public long getRejectedTunnels() {
+        return admission.rejectedTunnels.sum();
+    }
+
+    @Override
+    public long getDnsCacheHits() {
+        return resolver.hits.sum();
+    }
+
+    @Override
+    public long getDnsLookups() {
+        return resolver.lookups.sum();
+    }
+
+    @Override
+    public long getDnsFailures() {
+        return resolver.failures.sum();
+    }
+
+    @Override
+    public long getDnsPrefetches() {
+        return resolver.prefetches.sum();
+    }
+
+    @Override
+    public int getDnsNames() {
+        return resolver.size();
+    }
+}
@@ -0,0 +1,102 @@
+package Proxy;
+
+/**
+ * Counters of the re-directing proxy as seen over JMX, under Proxy:type=Metrics.
+ */
+public interface MetricsMBean {
+
+    /**
+     * @return requests answered with a re-direct to https.
+     */
+    long getRedirects();
+
+    /**
+     * @return CONNECT requests.
+     */
+    long getConnects();
+
+    /**
+     * @return requests that were neither, which are dropped.
+     */
+    long getOtherRequests();
+
+    /**
+     * @return CONNECT requests whose target couldn't be reached.
+     */
+    long getConnectFailures();
+
+    /**
+     * @return mean milliseconds to connect to a CONNECT target.
+     */
+    double getConnectLatencyMeanMillis();
+
+    /**
+     * @return 99th percentile milliseconds to connect to a CONNECT target, rounded up to a power of two.
+     */
+    double getConnectLatency99thMillis();
+
+    /**
+     * @return bytes tunnelled from clients to targets.
+     */
+    long getBytesUpstream();
+
+    /**
+     * @return bytes tunnelled from targets to clients.
+     */
+    long getBytesDownstream();
+
+    /**
+     * @return open client connections, tunnels included.
+     */
+    int getActiveConnections();
+
+    /**
+     * @return access log lines dropped because the log was behind.
+     */
+    long getAccessLogDropped();
+
+    /**
+     * @return open tunnels, counting those still connecting to their target.
+     */
+    int getActiveTunnels();
+
+    /**
+     * @return connections reset because too many were open.
+     */
+    long getRejectedConnections();
+
+    /**
+     * @return connections reset because their client had too many open.
+     */
+    long getRejectedClientConnections();
+
+    /**
+     * @return CONNECT requests sent a 503 because too many tunnels were open.
+     */
+    long getRejectedTunnels();
+
+    /**
+     * @return host names answered from the resolver's cache.
+     */
+    long getDnsCacheHits();
+
+    /**
+     * @return host names looked up, in the background included.
+     */
+    long getDnsLookups();
+
+    /**
+     * @return lookups that found no address.
+     */
+    long getDnsFailures();
+
+    /**
+     * @return popular names looked up again before they ran out.
+     */
+    long getDnsPrefetches();
+
+    /**
+     * @return host names cached.
+     */
+    int getDnsNames();
+}
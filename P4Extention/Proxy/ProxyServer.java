@@ -1,37 +1,108 @@
 package Proxy;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * ProxyServer, spans off requests.
  */
 public class ProxyServer extends Thread {
 
+    /**
+     * Port the proxy listens on.
+     */
+    private static final int PORT = 7538;
+
+    /**
+     * How connections are served, "nio", "virtual" or a new thread each by default.
+     */
+    private final String mode;
+
     /**
      * Constructor.
+     *
+     * @param mode how connections are served.
      */
-    private ProxyServer() {
+    private ProxyServer(String mode) {
         super("ProxyServer Thread");
+        this.mode = mode;
     }
 
 
+    /**
+     * Start the proxy, pass "nio" to serve connections with event loops
+     * or "virtual" to run each connection and tunnel direction on a virtual thread.
+     *
+     * @param args the command line arguments.
+     */
     public static void main(String[] args) {
-        (new ProxyServer()).run();
+        (new ProxyServer(args.length > 0 ? args[0] : "")).run();
     }
 
     @Override
     public void run() {
-        //Create new socket.
-        try (ServerSocket serverSocket = new ServerSocket(7538)) {
-            Socket socket;
-            while ((socket = serverSocket.accept()) != null) {
-                //Create new threads per request.
-                (new ProxyThread(socket)).start();
+        ProxyThread.metrics.publish();
+        if (mode.equalsIgnoreCase("nio")) {
+            runEventLoops();
+            return;
+        }
+        //Create new threads per request, unless virtual threads are asked for.
+        Executor executor = mode.equalsIgnoreCase("virtual") ? virtualThreads() : task -> new Thread(task, "ProxyThread").start();
+        //Create new socket, as a channel so tunnels can use it directly.
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(PORT), Admission.ACCEPT_BACKLOG);
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                //Connections over the limits are reset before a thread is started for them
+                if (!ProxyThread.admission.admit(channel.socket()))
+                    continue;
+                //Run each request on the executor.
+                executor.execute(new ProxyThread(channel.socket(), executor));
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            System.out.println("Proxy stopped: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Create an executor starting a virtual thread per task.
+     * Falls back to a cached thread pool when the JVM has no virtual threads.
+     *
+     * @return the executor.
+     */
+    private static Executor virtualThreads() {
+        try {
+            //Looked up by name so the proxy still builds and runs on older JVMs
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads not available, using a cached thread pool");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Serve every connection from one event loop per processor.
+     */
+    private void runEventLoops() {
+        try {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(PORT), Admission.ACCEPT_BACKLOG);
+            EventLoop[] loops = new EventLoop[Runtime.getRuntime().availableProcessors()];
+            for (int i = 0; i < loops.length; i++)
+                loops[i] = new EventLoop(i);
+            //The first loop also accepts new connections
+            loops[0].accept(serverChannel, loops);
+            for (EventLoop loop : loops)
+                loop.start();
+            for (EventLoop loop : loops)
+                loop.join();
+        } catch (IOException e) {
+            System.out.println("Proxy stopped: " + e.getMessage());
+        } catch (InterruptedException ignored) {
         }
     }
 }
@@ -1,90 +1,132 @@
 package Proxy;
 
-import java.io.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
 
 
 /**
- * Class that handles individual requests.
+ * Class that handles individual requests, run on whichever thread the server picks.
  */
-class ProxyThread extends Thread {
+class ProxyThread implements Runnable {
 
     /**
-     * Max buffer size.
+     * Start of the urls re-directed to HTTPS.
      */
-    private static final int BUFFER_SIZE = 8192;
+    static final String HTTP_WWW = "http://www.";
     /**
-     * HTTPS pattern.
+     * Max milliseconds a kept alive client connection may wait for its next request,
+     * set with -Dproxy.keepAliveTimeout in seconds.
      */
-    private static final Pattern HTTPS_PATTERN = Pattern.compile("CONNECT (.+):(.+) HTTP/(1\\.[01])", Pattern.CASE_INSENSITIVE);
+    static final int KEEP_ALIVE_TIMEOUT = Integer.getInteger("proxy.keepAliveTimeout", 15) * 1000;
     /**
-     * HTTP pattern.
+     * One line per request, written by a background thread.
      */
-    private static final Pattern HTTP_WWW_PATTERN = Pattern.compile("(.+) http://www\\.(.+) HTTP/(1\\.[01])", Pattern.CASE_INSENSITIVE);
+    static final AccessLog accessLog = AccessLog.open();
+    /**
+     * Limits on connections and tunnels.
+     */
+    static final Admission admission = new Admission();
+    /**
+     * Cached lookups of the targets of CONNECT requests.
+     */
+    static final Resolver resolver = new Resolver();
+    /**
+     * Counters of requests and tunnels, published by the server.
+     */
+    static final Metrics metrics = new Metrics(accessLog, admission, resolver);
 
     /**
      * Client socket.
      */
     private Socket clientSocket;
+    /**
+     * Runs the second direction of a tunnel.
+     */
+    private final Executor executor;
 
 
     /**
      * Constructor.
      *
      * @param clientSocket client socket to proxy.
+     * @param executor runs the second direction of a tunnel.
      */
-    ProxyThread(Socket clientSocket) {
+    ProxyThread(Socket clientSocket, Executor executor) {
         this.clientSocket = clientSocket;
+        this.executor = executor;
     }
 
 
     /**
-     * Rnu method called when new thread started.
+     * Run method called when the request is picked up.
+     * Re-directs on a kept alive connection are answered in turn, pipelined ones included.
      */
     @Override
     public void run() {
         try {
+            InputStream in = clientSocket.getInputStream();
+            OutputStreamWriter outputStreamWriter = new OutputStreamWriter(clientSocket.getOutputStream(), "ISO-8859-1");
+            //An idle kept alive connection is closed once the wait for its next request times out
+            clientSocket.setSoTimeout(KEEP_ALIVE_TIMEOUT);
             //Read the input header
-            String request = readLine(clientSocket);
-            //Create matcher's
-            Matcher httpsMatcher = HTTPS_PATTERN.matcher(request);
-            Matcher httpWWWMatcher = HTTP_WWW_PATTERN.matcher(request);
-            System.out.println(request);
-            //If request HTTP
-            if (httpWWWMatcher.find()) {
-                String header;
-                //Print out the entire header
-                while (!(header = readLine(clientSocket)).equals("")) {
-                    System.out.println(header);
-                }
-                //Send a re-direct to the browser with a HTTPS URL
-                OutputStreamWriter outputStreamWriter = new OutputStreamWriter(clientSocket.getOutputStream(), "ISO-8859-1");
-                outputStreamWriter.write(" HTTP/1.1 302 Redirect\r\n");
-                outputStreamWriter.write("Location: https://www." + httpWWWMatcher.group(2) + "\n\r");
-                outputStreamWriter.write("\r\n");
-                outputStreamWriter.flush();
-                //Close the client socket
-                outputStreamWriter.close();
-            }
-            //If request HTTPS
-            if (httpsMatcher.find()) {
-                String header;
-                //Print out the entire header
-                while (!(header = readLine(clientSocket)).equals("")) {
-                    System.out.println(header);
-                }
-                OutputStreamWriter outputStreamWriter = new OutputStreamWriter(clientSocket.getOutputStream(), "ISO-8859-1");
-                //Open up socket to target machine with try with resources
-                try (Socket forwardSocket = new Socket(httpsMatcher.group(1), Integer.parseInt(httpsMatcher.group(2)))) {
-                    //Send connection established to browser
-                    outputStreamWriter.write("HTTP/" + httpsMatcher.group(3) + " 200 Connection established\r\n");
-                    outputStreamWriter.write("ProxyServer-agent: Simple/0.1\r\n");
-                    outputStreamWriter.write("\r\n");
+            RequestParser request = new RequestParser();
+            while (request.read(in)) {
+                long started = System.nanoTime();
+                //If request HTTP
+                if (request.isHttp1() && request.targetStartsWith(HTTP_WWW)) {
+                    //Send a re-direct to the browser with a HTTPS URL
+                    metrics.redirects.increment();
+                    boolean keepAlive = request.keepAlive();
+                    outputStreamWriter.write(redirectResponse(request.target().substring(HTTP_WWW.length()), keepAlive));
                     outputStreamWriter.flush();
-                    //Start data transfer
-                    forwardData(forwardSocket);
+                    accessLog.log(clientSocket.getRemoteSocketAddress(), request.method(), request.target(), 302, 0,
+                            "REDIRECT", System.nanoTime() - started);
+                    if (!keepAlive)
+                        return;
+                    //Keep any pipelined bytes read after the header
+                    request.reset();
+                }
+                //If request HTTPS
+                else if (request.isHttp1() && request.method().equals("CONNECT")) {
+                    metrics.connects.increment();
+                    if (!admission.admitTunnel()) {
+                        //Turned away straight away so the open tunnels keep their latency
+                        outputStreamWriter.write(Admission.unavailable(false));
+                        outputStreamWriter.flush();
+                        accessLog.log(clientSocket.getRemoteSocketAddress(), request.method(), request.target(), 503, 0,
+                                "REJECTED", System.nanoTime() - started);
+                        return;
+                    }
+                    //A tunnel may be quiet for as long as it likes
+                    clientSocket.setSoTimeout(0);
+                    int status = 0;
+                    long bytes = 0;
+                    //Open up channel to target machine with try with resources
+                    try (SocketChannel forwardChannel = openTarget(request.host(), request.port())) {
+                        //Send connection established to browser
+                        outputStreamWriter.write(connectResponse(request.version()));
+                        outputStreamWriter.flush();
+                        status = 200;
+                        //Start data transfer, beginning with anything sent after the header
+                        bytes = forwardData(forwardChannel, request.leftover());
+                    } finally {
+                        admission.releaseTunnel();
+                        //Logged once the tunnel closes, so the line has its length and bytes
+                        accessLog.log(clientSocket.getRemoteSocketAddress(), request.method(), request.target(), status, bytes,
+                                "TUNNEL", System.nanoTime() - started);
+                    }
+                    return;
+                } else {
+                    metrics.otherRequests.increment();
+                    accessLog.log(clientSocket.getRemoteSocketAddress(), request.method(), request.target(), 0, 0,
+                            "DROPPED", System.nanoTime() - started);
+                    return;
                 }
             }
         } catch (IOException ignored) {
@@ -93,135 +135,68 @@ class ProxyThread extends Thread {
             //Close the client socket when two way transfer complete
             try {
                 clientSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
-    /**
-     * Read each line in the header
-     * @param socket the clients socket.
-     * @return A string repressing a line of the header.
-     * @throws IOException if the socket is closed.
-     */
-    private String readLine(Socket socket) throws IOException {
-        //Store each line as bytes
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        int next;
-        //Reads up to a set number of bytes from the input stream into the byte array
-        //And returns the total number of bytes read into the buffer, or -1 if there is no more data
-        while ((next = socket.getInputStream().read()) != -1) {
-            //If a new line can break
-            if (next == '\n') {
-                break;
-            } else {
-                //Write bytes to the byteArrayOutputStream
-                byteArrayOutputStream.write(next);
+            } catch (IOException ignored) {
             }
+            admission.release(clientSocket);
         }
-        //Return the line as a string encoded in ISO-8859-1
-        return byteArrayOutputStream.toString("ISO-8859-1").replaceAll("(\\r|\\n)", "");
     }
 
     /**
-     * Tunnel data from the target socket to the client socket on one thread and
-     * simultaneously on another thread have data tunneled client socket back the target socket
-     * @param forwardSocket the target socket.
+     * Connect to the target of a CONNECT request, timing how long it takes.
+     * @param host the target host.
+     * @param port the target port.
+     * @return the connected channel.
+     * @throws IOException if the target can't be reached.
      */
-    private void forwardData(Socket forwardSocket) {
-        //Create new thread to tunnel data from the target to the client
-        Thread remoteToClient = new Thread() {
-            public void run() {
-                writeData(forwardSocket, clientSocket);
-            }
-        };
-        //Start the thread
-        remoteToClient.start();
+    private static SocketChannel openTarget(String host, int port) throws IOException {
+        long started = System.nanoTime();
         try {
-            //Tunnel data from the client to the target
-            readData(forwardSocket);
-        } catch (IOException ignored) {
-        } finally {
-            try {
-                //Wait for the remoteToClient to finish before starting a new one
-                remoteToClient.join();
-            } catch (InterruptedException ignored) {
-
-            }
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(resolver.resolve(host), port));
+            metrics.connectLatency.record(System.nanoTime() - started);
+            return channel;
+        } catch (IOException | RuntimeException e) {
+            metrics.connectFailures.increment();
+            throw e;
         }
     }
 
     /**
-     * Read the data from a socket.
-     * @param forwardSocket the target
-     * @throws IOException if a socket is broken
+     * Build the re-direct sent to the browser for a HTTP www request.
+     * @param target the part of the requested url after "http://www.".
+     * @param keepAlive whether the connection stays open for the next request.
+     * @return the response header, with an empty body.
      */
-    private void readData(Socket forwardSocket) throws IOException {
-        //Reads in the next byte from the client’s socket input stream
-        int read = clientSocket.getInputStream().read();
-        if (read != -1) {
-            //If there is more data available
-            if (read != '\n') {
-                //If the data doesnt represent a new lien
-                forwardSocket.getOutputStream().write(read);
-            }
-            //Write the data from the client to the target
-            writeData(clientSocket, forwardSocket);
-        } else {
-            //Close the sockets when the transfer is complete
-            if (!forwardSocket.isOutputShutdown())
-                forwardSocket.shutdownOutput();
-            if (!clientSocket.isInputShutdown())
-                clientSocket.shutdownInput();
-        }
+    static String redirectResponse(String target, boolean keepAlive) {
+        return "HTTP/1.1 302 Found\r\n"
+                + "Location: https://www." + target + "\r\n"
+                + "Content-Length: 0\r\n"
+                + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n"
+                + "\r\n";
     }
 
     /**
-     * Called to set up Input and Output streams with resources.
-     * @param inputSocket the socket data is being read from
-     * @param outputSocket the socket data is being output to
+     * Build the response sent to the browser once a CONNECT tunnel is open.
+     * @param version the HTTP version of the request.
+     * @return the response header.
      */
-    private void writeData(Socket inputSocket, Socket outputSocket) {
-        //Try with resources
-        try (InputStream inputStream = inputSocket.getInputStream();
-             OutputStream outputStream = outputSocket.getOutputStream()
-        ) {
-            writeData(inputStream, outputStream);
-        } catch (IOException ignored) {
-            ignored.printStackTrace();
-        }
+    static String connectResponse(String version) {
+        return "HTTP/" + version + " 200 Connection established\r\n"
+                + "ProxyServer-agent: Simple/0.1\r\n"
+                + "\r\n";
     }
 
-
     /**
-     *  Write the response.
-     * @param inputStream the socket data is being read from
-     * @param outputStream the socket data is being output to
-     * @throws IOException if a stream is broken
+     * Tunnel data from the target to the client on one thread and
+     * simultaneously on another thread from the client back to the target.
+     * @param forwardChannel the target channel.
+     * @param early bytes the client sent after its header.
+     * @return the bytes sent from the target to the client.
+     * @throws IOException if either channel is closed before the tunnel starts.
      */
-    private void writeData(InputStream inputStream, OutputStream outputStream) throws IOException {
-        try {
-            //Create buffer
-            byte by[] = new byte[BUFFER_SIZE];
-            //Reads up to a set number of bytes from the input stream into the byte array
-            //And returns the total number of bytes read into the buffer, or -1 if there is no more data
-            int index = inputStream.read(by, 0, BUFFER_SIZE);
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            //While loop which breaks whilst there's more data in the input stream
-            while (index != -1) {
-                //writes the contents of the byte array
-                outputStream.write(by, 0, index);
-                byteArrayOutputStream.write(by, 0, index);
-                //Reads next chunk of data into the buffer
-                index = inputStream.read(by, 0, BUFFER_SIZE);
-                outputStream.flush();
-            }
-        } catch (IOException ignored) {
-        }
+    private long forwardData(SocketChannel forwardChannel, ByteBuffer early) throws IOException {
+        Tunnel.noDelay(clientSocket.getChannel(), forwardChannel);
+        return new Tunnel(clientSocket.getChannel(), forwardChannel, executor).run(early);
     }
 
 
 }
-
-
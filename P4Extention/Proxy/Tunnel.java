@@ -0,0 +1,212 @@
+package Proxy;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Two way CONNECT tunnel between the client and the target.
+ * Each direction copies through one pooled direct buffer, so memory per tunnel is fixed.
+ */
+class Tunnel {
+
+    /**
+     * Size of the buffer used for each direction.
+     */
+    private static final int BUFFER_SIZE = 8192;
+    /**
+     * Max number of idle buffers kept for reuse.
+     */
+    private static final int POOL_SIZE = 1024;
+    /**
+     * Milliseconds a tunnel may go without traffic before it is closed, set with -Dproxy.tunnelIdleTimeout in seconds, 0 for never.
+     */
+    static final long IDLE_TIMEOUT = Long.getLong("proxy.tunnelIdleTimeout", 300) * 1000;
+
+    /**
+     * Direct buffers returned by finished tunnels.
+     */
+    private static final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    /**
+     * Number of buffers in the pool, kept separately as the queue size is not constant time.
+     */
+    private static final AtomicInteger pooled = new AtomicInteger();
+    /**
+     * Single daemon thread closing idle tunnels.
+     */
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread t = new Thread(task, "Tunnel watchdog");
+        //Does not prevent the JVM from exiting when the program finishes
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * The client channel.
+     */
+    private final SocketChannel client;
+    /**
+     * The target channel.
+     */
+    private final SocketChannel target;
+    /**
+     * Runs the target to client direction.
+     */
+    private final Executor executor;
+    /**
+     * Time data last moved in either direction.
+     */
+    private volatile long lastActivity = System.currentTimeMillis();
+    /**
+     * Bytes sent from the target to the client, only written by that direction.
+     */
+    private long bytesToClient;
+
+    /**
+     * Constructor.
+     *
+     * @param client the client channel.
+     * @param target the target channel.
+     * @param executor runs the target to client direction.
+     */
+    Tunnel(SocketChannel client, SocketChannel target, Executor executor) {
+        this.client = client;
+        this.target = target;
+        this.executor = executor;
+    }
+
+    /**
+     * Move data both ways until both sides have closed or the tunnel goes idle.
+     *
+     * @param early bytes the client sent after its header, written to the target first.
+     * @return the bytes sent from the target to the client.
+     */
+    long run(ByteBuffer early) {
+        ScheduledFuture<?> idleCheck = null;
+        if (IDLE_TIMEOUT > 0)
+            idleCheck = watchdog.scheduleWithFixedDelay(this::closeIfIdle, IDLE_TIMEOUT, Math.max(1, IDLE_TIMEOUT / 2), TimeUnit.MILLISECONDS);
+        //Tunnel data from the target to the client on another executor thread
+        CompletableFuture<Void> targetToClient = CompletableFuture.runAsync(() -> transfer(target, client, null), executor);
+        //Tunnel data from the client to the target on this thread
+        transfer(client, target, early);
+        //Wait for the other direction to finish
+        targetToClient.join();
+        if (idleCheck != null)
+            idleCheck.cancel(false);
+        //Safe to read once the other direction has been joined
+        return bytesToClient;
+    }
+
+    /**
+     * Copy one direction of the tunnel, passing the end of stream on as a half close.
+     *
+     * @param in the channel being read from.
+     * @param out the channel being written to.
+     * @param early bytes to write before reading, may be null.
+     */
+    private void transfer(SocketChannel in, SocketChannel out, ByteBuffer early) {
+        ByteBuffer buffer = takeBuffer();
+        LongAdder tunnelled = in == client ? ProxyThread.metrics.bytesUpstream : ProxyThread.metrics.bytesDownstream;
+        try {
+            if (early != null)
+                writeFully(early, out);
+            //Read until the other side closes its output
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                lastActivity = System.currentTimeMillis();
+                tunnelled.add(read);
+                if (out == client)
+                    bytesToClient += read;
+                buffer.flip();
+                writeFully(buffer, out);
+                buffer.clear();
+            }
+            //Tell the other side no more data is coming but keep reading its replies
+            out.shutdownOutput();
+        } catch (IOException e) {
+            //One side is broken, so neither direction can carry on
+            close();
+        } finally {
+            returnBuffer(buffer);
+        }
+    }
+
+    /**
+     * Write the whole buffer.
+     *
+     * @param buffer the data.
+     * @param out the channel being written to.
+     * @throws IOException if the channel is broken.
+     */
+    private void writeFully(ByteBuffer buffer, SocketChannel out) throws IOException {
+        while (buffer.hasRemaining())
+            out.write(buffer);
+    }
+
+    /**
+     * Close the tunnel if nothing has moved for the idle timeout.
+     */
+    private void closeIfIdle() {
+        if (System.currentTimeMillis() - lastActivity > IDLE_TIMEOUT)
+            close();
+    }
+
+    /**
+     * Close both channels, waking up any blocked reads.
+     */
+    private void close() {
+        try {
+            client.close();
+        } catch (IOException ignored) {
+        }
+        try {
+            target.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Turn off Nagle's algorithm on both sides of a tunnel, so a small write that ends a
+     * message isn't held back waiting for the ACK of the last one.
+     *
+     * @param client the client channel.
+     * @param target the target channel.
+     * @throws IOException if either channel is closed.
+     */
+    static void noDelay(SocketChannel client, SocketChannel target) throws IOException {
+        client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        target.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    }
+
+    /**
+     * Get a direct buffer from the pool, or allocate one if it is empty.
+     *
+     * @return a clear buffer.
+     */
+    private static ByteBuffer takeBuffer() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool, dropping it if the pool is full.
+     *
+     * @param buffer the buffer.
+     */
+    private static void returnBuffer(ByteBuffer buffer) {
+        if (pooled.incrementAndGet() <= POOL_SIZE) {
+            buffer.clear();
+            buffers.add(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package Proxy.Cache;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache lookups and stores, alone and with readers and a writer contending for the same cache.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheBenchmark {
+
+    /**
+     * Number of pages in the cache.
+     */
+    @Param({"10000"})
+    public int pages;
+    /**
+     * Size of each page in bytes.
+     */
+    @Param({"4096"})
+    public int pageSize;
+
+    /**
+     * The cache, one for all threads.
+     */
+    CacheManager cache;
+    /**
+     * The urls of the cached pages.
+     */
+    String[] urls;
+    /**
+     * The body stored for every page.
+     */
+    byte[] body;
+
+    /**
+     * Fill the cache, with room for every page so stores replace rather than evict.
+     */
+    @Setup
+    public void setUp() {
+        cache = new CacheManager(3600, 1, pages);
+        urls = new String[pages];
+        body = new byte[pageSize];
+        for (int i = 0; i < pages; i++) {
+            urls[i] = "www.example.com/page/" + i;
+            cache.put(urls[i], body);
+        }
+    }
+
+    /**
+     * Where each thread is in the list of urls.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        /**
+         * Index of the next url, threads start apart so they don't follow each other.
+         */
+        int next = (int) (Thread.currentThread().getId() * 7919);
+
+        /**
+         * @param urls the urls.
+         * @return the next url.
+         */
+        String next(String[] urls) {
+            next = (next + 1) % urls.length;
+            return urls[next];
+        }
+    }
+
+    /**
+     * Look up a page and copy it, as CacheManager.get does.
+     *
+     * @param cursor the thread's place in the urls.
+     * @return the page.
+     */
+    @Benchmark
+    public byte[] get(Cursor cursor) {
+        return cache.get(cursor.next(urls));
+    }
+
+    /**
+     * Look up a page to send without copying, as the proxy does.
+     *
+     * @param cursor the thread's place in the urls.
+     * @param blackhole consumes the page.
+     */
+    @Benchmark
+    public void acquire(Cursor cursor, Blackhole blackhole) {
+        CachedPage page = cache.acquire(cursor.next(urls));
+        if (page != null) {
+            blackhole.consume(page);
+            page.release();
+        }
+    }
+
+    /**
+     * Replace a page.
+     *
+     * @param cursor the thread's place in the urls.
+     */
+    @Benchmark
+    public void put(Cursor cursor) {
+        cache.put(cursor.next(urls), body);
+    }
+
+    /**
+     * Three threads looking pages up while a fourth replaces them.
+     *
+     * @param cursor the thread's place in the urls.
+     * @param blackhole consumes the page.
+     */
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public void contendedAcquire(Cursor cursor, Blackhole blackhole) {
+        acquire(cursor, blackhole);
+    }
+
+    /**
+     * The writer for the contended group.
+     *
+     * @param cursor the thread's place in the urls.
+     */
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void contendedPut(Cursor cursor) {
+        put(cursor);
+    }
+}
@@ -0,0 +1,227 @@
+package Proxy;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parsing a request header and reading the fields the proxy asks for.
+ * Each benchmark has a baseline running the code the parser replaced on the same bytes,
+ * without the printing of every header line that code also did.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParserBenchmark {
+
+    /**
+     * A request as a browser sends it to a proxy.
+     */
+    private static final byte[] BROWSER = ("GET http://www.example.com/images/logo.png?size=large HTTP/1.1\r\n"
+            + "Host: www.example.com\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:120.0) Gecko/20100101 Firefox/120.0\r\n"
+            + "Accept: image/avif,image/webp,*/*\r\n"
+            + "Accept-Language: en-GB,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Proxy-Connection: keep-alive\r\n"
+            + "Referer: http://www.example.com/\r\n"
+            + "Cookie: session=0123456789abcdef; theme=dark\r\n"
+            + "If-Modified-Since: Tue, 14 Nov 2023 08:12:31 GMT\r\n"
+            + "If-None-Match: \"5f1c-60a1b2c3d4e5f\"\r\n"
+            + "Cache-Control: max-age=0\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    /**
+     * A CONNECT request.
+     */
+    private static final byte[] CONNECT = ("CONNECT www.example.com:443 HTTP/1.1\r\n"
+            + "Host: www.example.com:443\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:120.0) Gecko/20100101 Firefox/120.0\r\n"
+            + "Proxy-Connection: keep-alive\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * The request line patterns the redirector matched each request against.
+     */
+    private static final Pattern HTTPS_PATTERN = Pattern.compile("CONNECT (.+):(.+) HTTP/(1\\.[01])", Pattern.CASE_INSENSITIVE);
+    private static final Pattern HTTP_WWW_PATTERN = Pattern.compile("(.+) http://www\\.(.+) HTTP/(1\\.[01])", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * The parser, reused between requests as on a kept alive connection.
+     */
+    private final RequestParser request = new RequestParser();
+    /**
+     * The buffer the redirector's event loop gathered a header in, reused as the parser's is.
+     */
+    private final ByteBuffer header = ByteBuffer.allocate(RequestParser.MAX_HEADER_SIZE);
+
+    /**
+     * Parse a browser request and read what the caching proxy reads.
+     *
+     * @param blackhole consumes the fields.
+     * @throws Exception never, the request is well formed.
+     */
+    @Benchmark
+    public void browserRequest(Blackhole blackhole) throws Exception {
+        request.buffer().put(BROWSER);
+        blackhole.consume(request.parse());
+        blackhole.consume(request.method());
+        blackhole.consume(request.target());
+        blackhole.consume(request.header("If-None-Match"));
+        blackhole.consume(request.keepAlive());
+        request.reset();
+    }
+
+    /**
+     * Parse a CONNECT request and read what the tunnel needs.
+     *
+     * @param blackhole consumes the fields.
+     * @throws Exception never, the request is well formed.
+     */
+    @Benchmark
+    public void connectRequest(Blackhole blackhole) throws Exception {
+        request.buffer().put(CONNECT);
+        blackhole.consume(request.parse());
+        blackhole.consume(request.method());
+        blackhole.consume(request.host());
+        blackhole.consume(request.port());
+        request.reset();
+    }
+
+    /**
+     * Parse a browser request arriving a few bytes at a time, as a slow client sends it.
+     *
+     * @param blackhole consumes the fields.
+     * @throws Exception never, the request is well formed.
+     */
+    @Benchmark
+    public void browserRequestInPieces(Blackhole blackhole) throws Exception {
+        for (int i = 0; i < BROWSER.length; i += 64) {
+            request.buffer().put(BROWSER, i, Math.min(64, BROWSER.length - i));
+            request.parse();
+        }
+        blackhole.consume(request.target());
+        request.reset();
+    }
+
+    /**
+     * Baseline for browserRequest: the caching proxy's getURL, reading lines with a BufferedReader,
+     * checking each with a StringTokenizer and splitting the request line on whitespace.
+     *
+     * @param blackhole consumes the url.
+     * @throws IOException never, the request is in memory.
+     */
+    @Benchmark
+    public void browserRequestBaseline(Blackhole blackhole) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(BROWSER)));
+        String inputLine;
+        int count = 0;
+        String urlToCall = "";
+        while ((inputLine = in.readLine()) != null) {
+            try {
+                StringTokenizer tok = new StringTokenizer(inputLine);
+                tok.nextToken();
+            } catch (Exception e) {
+                break;
+            }
+            if (count == 0) {
+                String[] tokens = inputLine.split("\\s");
+                urlToCall = tokens[1];
+            }
+            count++;
+        }
+        blackhole.consume(urlToCall);
+    }
+
+    /**
+     * Baseline for connectRequest: the redirector's thread server, reading the header a byte at a time,
+     * stripping each line with replaceAll and matching the request line against both patterns.
+     * The bytes come from memory here, where that code made a read call on the socket for each one.
+     *
+     * @param blackhole consumes the fields.
+     * @throws IOException never, the request is in memory.
+     */
+    @Benchmark
+    public void connectRequestBaseline(Blackhole blackhole) throws IOException {
+        InputStream in = new ByteArrayInputStream(CONNECT);
+        String request = readLine(in);
+        Matcher httpsMatcher = HTTPS_PATTERN.matcher(request);
+        Matcher httpWWWMatcher = HTTP_WWW_PATTERN.matcher(request);
+        blackhole.consume(httpWWWMatcher.find());
+        if (httpsMatcher.find()) {
+            String line;
+            while (!(line = readLine(in)).equals(""))
+                blackhole.consume(line);
+            blackhole.consume(httpsMatcher.group(1));
+            blackhole.consume(Integer.parseInt(httpsMatcher.group(2)));
+            blackhole.consume(httpsMatcher.group(3));
+        }
+    }
+
+    /**
+     * Baseline for browserRequestInPieces: the redirector's event loop, looking for the end of the header
+     * from the start on every read, then splitting it into lines, stripping each with replaceAll and
+     * matching the request line against both patterns.
+     *
+     * @param blackhole consumes the fields.
+     */
+    @Benchmark
+    public void browserRequestInPiecesBaseline(Blackhole blackhole) {
+        int end = -1;
+        for (int i = 0; i < BROWSER.length && end < 0; i += 64) {
+            header.put(BROWSER, i, Math.min(64, BROWSER.length - i));
+            end = headerEnd();
+        }
+        String[] lines = new String(header.array(), 0, end, StandardCharsets.ISO_8859_1).split("\n");
+        String request = lines[0].replaceAll("(\\r|\\n)", "");
+        Matcher httpsMatcher = HTTPS_PATTERN.matcher(request);
+        Matcher httpWWWMatcher = HTTP_WWW_PATTERN.matcher(request);
+        for (int i = 1; i < lines.length; i++)
+            blackhole.consume(lines[i].replaceAll("(\\r|\\n)", ""));
+        blackhole.consume(httpsMatcher.find());
+        if (httpWWWMatcher.find())
+            blackhole.consume(httpWWWMatcher.group(2));
+        header.clear();
+    }
+
+    /**
+     * Read a line a byte at a time, as the redirector did.
+     *
+     * @param in the stream.
+     * @return the line without its line ending.
+     * @throws IOException never, the stream is in memory.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int next;
+        while ((next = in.read()) != -1) {
+            if (next == '\n')
+                break;
+            line.write(next);
+        }
+        return line.toString("ISO-8859-1").replaceAll("(\\r|\\n)", "");
+    }
+
+    /**
+     * Find the end of the gathered header, as the redirector's event loop did.
+     *
+     * @return the index after the blank line, or -1 if it hasn't arrived yet.
+     */
+    private int headerEnd() {
+        byte[] data = header.array();
+        for (int i = 1; i < header.position(); i++) {
+            if (data[i] == '\n' && (data[i - 1] == '\n' || (i > 1 && data[i - 1] == '\r' && data[i - 2] == '\n')))
+                return i + 1;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,135 @@
+package Proxy;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of a CONNECT tunnel over loopback, the data the proxy's forwardData moves.
+ * A client sends blocks through the tunnel to an echo server and reads them back,
+ * so each operation is one block through each direction.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TunnelBenchmark {
+
+    /**
+     * Size of each block in bytes.
+     */
+    @Param({"1024", "65536"})
+    public int blockSize;
+
+    /**
+     * Runs the echo server, the tunnel and its second direction.
+     */
+    private ExecutorService threads;
+    /**
+     * Listening sockets of the echo server and the tunnel.
+     */
+    private ServerSocketChannel echoServer;
+    private ServerSocketChannel tunnelServer;
+    /**
+     * The client end of the tunnel.
+     */
+    private SocketChannel client;
+    /**
+     * The block sent and the buffer it is read back into.
+     */
+    private ByteBuffer block;
+    private ByteBuffer echo;
+
+    /**
+     * Start the echo server and open a tunnel to it.
+     *
+     * @throws IOException if loopback connections fail.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        threads = Executors.newCachedThreadPool(task -> {
+            Thread t = new Thread(task);
+            //Does not prevent the JVM from exiting when the benchmark finishes
+            t.setDaemon(true);
+            return t;
+        });
+        echoServer = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        tunnelServer = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        threads.execute(this::echo);
+        threads.execute(this::tunnel);
+        client = SocketChannel.open(tunnelServer.getLocalAddress());
+        client.socket().setTcpNoDelay(true);
+        block = ByteBuffer.allocateDirect(blockSize);
+        echo = ByteBuffer.allocateDirect(blockSize);
+    }
+
+    /**
+     * Accept the tunnel's connection and send back everything it sends.
+     */
+    private void echo() {
+        try (SocketChannel channel = echoServer.accept()) {
+            channel.socket().setTcpNoDelay(true);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                buffer.clear();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Accept the client's connection and tunnel it to the echo server, as ProxyThread.forwardData does.
+     */
+    private void tunnel() {
+        try (SocketChannel accepted = tunnelServer.accept();
+             SocketChannel target = SocketChannel.open(echoServer.getLocalAddress())) {
+            Tunnel.noDelay(accepted, target);
+            new Tunnel(accepted, target, threads).run(null);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Send one block through the tunnel and read it back.
+     *
+     * @return the last byte read, so the work isn't optimised away.
+     * @throws IOException if the tunnel is broken.
+     */
+    @Benchmark
+    public byte roundTrip() throws IOException {
+        block.clear();
+        while (block.hasRemaining())
+            client.write(block);
+        echo.clear();
+        while (echo.hasRemaining()) {
+            if (client.read(echo) == -1)
+                throw new IOException("Tunnel closed");
+        }
+        return echo.get(blockSize - 1);
+    }
+
+    /**
+     * Close the tunnel and the servers.
+     *
+     * @throws IOException if closing fails.
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        tunnelServer.close();
+        echoServer.close();
+        threads.shutdown();
+    }
+}
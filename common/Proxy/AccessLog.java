@@ -0,0 +1,276 @@
+package Proxy;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log with one JSON line per request, kept off the request threads.
+ * Requests claim an entry in a fixed ring without locking and fill it in, a background thread
+ * writes the entries out in batches. When the ring is full the entry is dropped and counted
+ * rather than making the request wait.
+ * The file is set with -Dproxy.accessLog (default access.log, empty for none)
+ * and the number of entries with -Dproxy.accessLogEntries (default 8192, rounded up to a power of two).
+ */
+class AccessLog {
+
+    /**
+     * Milliseconds the writer sleeps when it has caught up.
+     */
+    private static final long IDLE_WAIT = 5;
+    /**
+     * Size of the file buffer.
+     */
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * The entries, reused once written.
+     */
+    private final Entry[] ring;
+    /**
+     * Index mask of the ring, its size is a power of two.
+     */
+    private final int mask;
+    /**
+     * Sequence number of the next entry to claim.
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * Sequence number of the next entry to write, only moved by the writer.
+     */
+    private volatile long tail;
+    /**
+     * Entries dropped because the ring was full.
+     */
+    private final LongAdder dropped = new LongAdder();
+    /**
+     * Where entries are written, null if the log is off.
+     */
+    private final Writer out;
+    /**
+     * Whether the log is closing, the writer finishes what is in the ring and stops.
+     */
+    private volatile boolean closed;
+    /**
+     * The background writer.
+     */
+    private final Thread writer;
+
+    /**
+     * Constructor.
+     *
+     * @param out where entries are written, null to drop them all.
+     * @param entries number of entries in the ring.
+     */
+    AccessLog(Writer out, int entries) {
+        this.out = out;
+        int size = Integer.highestOneBit(Math.max(2, entries - 1)) << 1;
+        ring = new Entry[size];
+        mask = size - 1;
+        for (int i = 0; i < size; i++)
+            ring[i] = new Entry(i - size);
+        writer = new Thread(this::drain, "Access log");
+        //Does not prevent the JVM from exiting, what is left is written by the shutdown hook
+        writer.setDaemon(true);
+        if (out != null) {
+            writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+        }
+    }
+
+    /**
+     * Open the log set by the system properties.
+     *
+     * @return the log, which drops everything if the file can't be opened.
+     */
+    static AccessLog open() {
+        String path = System.getProperty("proxy.accessLog", "access.log");
+        int entries = Integer.getInteger("proxy.accessLogEntries", 8192);
+        Writer out = null;
+        if (!path.isEmpty()) {
+            try {
+                out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path, true), StandardCharsets.UTF_8), BUFFER_SIZE);
+            } catch (IOException e) {
+                System.out.println("Access log not available: " + e.getMessage());
+            }
+        }
+        return new AccessLog(out, entries);
+    }
+
+    /**
+     * Record a request, never waiting.
+     *
+     * @param client the client's address.
+     * @param method the request method.
+     * @param target the requested url.
+     * @param status the status sent, 0 if no response was sent.
+     * @param bytes the body bytes sent to the client.
+     * @param result how the request was answered.
+     * @param nanos how long the request took.
+     */
+    void log(SocketAddress client, String method, String target, int status, long bytes, String result, long nanos) {
+        if (out == null)
+            return;
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail >= ring.length) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+        Entry entry = ring[(int) sequence & mask];
+        entry.time = System.currentTimeMillis();
+        entry.client = client;
+        entry.method = method;
+        entry.target = target;
+        entry.status = status;
+        entry.bytes = bytes;
+        entry.result = result;
+        entry.nanos = nanos;
+        //Hands the entry to the writer
+        entry.sequence = sequence;
+    }
+
+    /**
+     * @return the number of entries dropped because the ring was full.
+     */
+    long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Write out what is in the ring and stop the writer.
+     */
+    void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * Write entries as they are filled in, flushing the file each time the writer catches up.
+     */
+    private void drain() {
+        StringBuilder line = new StringBuilder(256);
+        long next = tail;
+        boolean unflushed = false;
+        while (true) {
+            Entry entry = ring[(int) next & mask];
+            if (entry.sequence != next) {
+                //Caught up, or the entry is claimed but not filled in yet
+                try {
+                    if (unflushed)
+                        out.flush();
+                } catch (IOException ignored) {
+                }
+                unflushed = false;
+                if (closed && head.get() == next)
+                    return;
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(IDLE_WAIT));
+                continue;
+            }
+            line.setLength(0);
+            entry.format(line);
+            //Let go of the request's strings before the entry can be claimed again
+            entry.client = null;
+            entry.method = null;
+            entry.target = null;
+            tail = ++next;
+            try {
+                out.append(line);
+                unflushed = true;
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * One request in the ring.
+     */
+    private static class Entry {
+
+        /**
+         * Sequence number of the request held, the entry is free to write once it matches.
+         */
+        volatile long sequence;
+        /**
+         * The time the request finished.
+         */
+        long time;
+        /**
+         * The request.
+         */
+        SocketAddress client;
+        String method;
+        String target;
+        /**
+         * The response.
+         */
+        int status;
+        long bytes;
+        String result;
+        long nanos;
+
+        /**
+         * Constructor.
+         *
+         * @param sequence a sequence number that is never claimed, so the entry starts empty.
+         */
+        Entry(long sequence) {
+            this.sequence = sequence;
+        }
+
+        /**
+         * Format the entry as a JSON line.
+         *
+         * @param line where to put it.
+         */
+        void format(StringBuilder line) {
+            line.append("{\"time\":\"").append(Instant.ofEpochMilli(time)).append('"');
+            line.append(",\"client\":");
+            quote(line, client == null ? "" : client.toString());
+            line.append(",\"method\":");
+            quote(line, method);
+            line.append(",\"target\":");
+            quote(line, target);
+            line.append(",\"status\":").append(status);
+            line.append(",\"bytes\":").append(bytes);
+            line.append(",\"result\":");
+            quote(line, result);
+            line.append(",\"ms\":").append(nanos / 1000 / 1000.0).append("}\n");
+        }
+
+        /**
+         * Append a string as a JSON string.
+         *
+         * @param line where to put it.
+         * @param value the string, may be null.
+         */
+        private static void quote(StringBuilder line, String value) {
+            line.append('"');
+            for (int i = 0; value != null && i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\')
+                    line.append('\\').append(c);
+                else if (c < ' ')
+                    line.append(String.format("\\u%04x", (int) c));
+                else
+                    line.append(c);
+            }
+            line.append('"');
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package Proxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits on the work the proxy takes on, so a burst of traffic is turned away quickly
+ * rather than running the proxy out of threads or file descriptors.
+ * Connections over a limit are reset as soon as they are accepted, tunnels and origin fetches over a limit get a 503.
+ * The limits are set with -Dproxy.maxConnections (default 10000), -Dproxy.maxConnectionsPerClient (default 256),
+ * -Dproxy.maxTunnels (default 4096) and -Dproxy.maxFetches (default 256), 0 for no limit.
+ * Connections waiting to be accepted are queued by the system, up to -Dproxy.acceptBacklog (default 1024).
+ */
+class Admission {
+
+    /**
+     * Max connections the system queues until they are accepted.
+     */
+    static final int ACCEPT_BACKLOG = Integer.getInteger("proxy.acceptBacklog", 1024);
+
+    /**
+     * The limits, 0 for none.
+     */
+    private final int maxConnections;
+    private final int maxPerClient;
+    private final int maxTunnels;
+    private final int maxFetches;
+    /**
+     * Open client connections, open tunnels and fetches from target machines in progress.
+     */
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger tunnels = new AtomicInteger();
+    private final AtomicInteger fetches = new AtomicInteger();
+    /**
+     * Open connections by client address, only kept if there is a limit per client.
+     */
+    private final Map<InetAddress, Integer> perClient = new ConcurrentHashMap<>();
+    /**
+     * Work turned away by the limit it was over.
+     */
+    final LongAdder rejectedConnections = new LongAdder();
+    final LongAdder rejectedClientConnections = new LongAdder();
+    final LongAdder rejectedTunnels = new LongAdder();
+    final LongAdder rejectedFetches = new LongAdder();
+
+    /**
+     * Constructor for the limits set by the system properties.
+     */
+    Admission() {
+        this(Integer.getInteger("proxy.maxConnections", 10000), Integer.getInteger("proxy.maxConnectionsPerClient", 256),
+                Integer.getInteger("proxy.maxTunnels", 4096), Integer.getInteger("proxy.maxFetches", 256));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxConnections max open client connections, 0 for no limit.
+     * @param maxPerClient max open connections from one client address, 0 for no limit.
+     * @param maxTunnels max open tunnels, 0 for no limit.
+     * @param maxFetches max fetches from target machines in progress, 0 for no limit.
+     */
+    Admission(int maxConnections, int maxPerClient, int maxTunnels, int maxFetches) {
+        this.maxConnections = maxConnections;
+        this.maxPerClient = maxPerClient;
+        this.maxTunnels = maxTunnels;
+        this.maxFetches = maxFetches;
+    }
+
+    /**
+     * Admit a newly accepted connection, or reset it if it is over a limit.
+     * An admitted connection must be released once closed.
+     *
+     * @param socket the client socket.
+     * @return whether it was admitted.
+     */
+    boolean admit(Socket socket) {
+        if (!take(connections, maxConnections)) {
+            rejectedConnections.increment();
+            reset(socket);
+            return false;
+        }
+        if (maxPerClient > 0 && perClient.merge(socket.getInetAddress(), 1, Integer::sum) > maxPerClient) {
+            rejectedClientConnections.increment();
+            release(socket);
+            reset(socket);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Release an admitted connection.
+     *
+     * @param socket the client socket, which still knows its address once closed.
+     */
+    void release(Socket socket) {
+        connections.decrementAndGet();
+        if (maxPerClient > 0)
+            perClient.computeIfPresent(socket.getInetAddress(), (address, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * Admit a tunnel, which must be released once closed.
+     *
+     * @return false if there are too many open.
+     */
+    boolean admitTunnel() {
+        if (take(tunnels, maxTunnels))
+            return true;
+        rejectedTunnels.increment();
+        return false;
+    }
+
+    /**
+     * Release an admitted tunnel.
+     */
+    void releaseTunnel() {
+        tunnels.decrementAndGet();
+    }
+
+    /**
+     * Admit a fetch from a target machine, which must be released once done.
+     *
+     * @return false if there are too many in progress.
+     */
+    boolean admitFetch() {
+        if (take(fetches, maxFetches))
+            return true;
+        rejectedFetches.increment();
+        return false;
+    }
+
+    /**
+     * Release an admitted fetch.
+     */
+    void releaseFetch() {
+        fetches.decrementAndGet();
+    }
+
+    /**
+     * @return the open client connections.
+     */
+    int connections() {
+        return connections.get();
+    }
+
+    /**
+     * @return the open tunnels.
+     */
+    int tunnels() {
+        return tunnels.get();
+    }
+
+    /**
+     * @return the fetches from target machines in progress.
+     */
+    int fetches() {
+        return fetches.get();
+    }
+
+    /**
+     * Build the response sent for work turned away.
+     *
+     * @param keepAlive whether the connection stays open for the next request.
+     * @return the response header, with an empty body.
+     */
+    static String unavailable(boolean keepAlive) {
+        return "HTTP/1.1 503 Service Unavailable\r\n"
+                + "Retry-After: 1\r\n"
+                + "Content-Length: 0\r\n"
+                + "Connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n"
+                + "\r\n";
+    }
+
+    /**
+     * Count one more, unless that would go over the limit.
+     *
+     * @param count the count.
+     * @param max the limit, 0 for none.
+     * @return whether it was counted.
+     */
+    private static boolean take(AtomicInteger count, int max) {
+        if (max <= 0) {
+            count.incrementAndGet();
+            return true;
+        }
+        int n;
+        do {
+            n = count.get();
+            if (n >= max)
+                return false;
+        } while (!count.compareAndSet(n, n + 1));
+        return true;
+    }
+
+    /**
+     * Close a connection with a reset, so it costs nothing more and leaves no socket waiting to close.
+     *
+     * @param socket the socket.
+     */
+    private static void reset(Socket socket) {
+        try {
+            socket.setSoLinger(true, 0);
+        } catch (IOException ignored) {
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
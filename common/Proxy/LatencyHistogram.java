@@ -0,0 +1,99 @@
+package Proxy;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies with a bucket per power of two milliseconds, up to about half a minute.
+ * Recording is a couple of atomic adds, so it can be done by every request thread at once.
+ */
+class LatencyHistogram {
+
+    /**
+     * Number of buckets, the last one holds everything above the one before.
+     */
+    static final int BUCKETS = 17;
+
+    /**
+     * Count of values in each bucket.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    /**
+     * Sum of the values in microseconds.
+     */
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos the latency in nanoseconds.
+     */
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        //Bucket i holds values up to 2^i milliseconds
+        int bucket = 64 - Long.numberOfLeadingZeros(Math.max(0, (micros - 1) / 1000));
+        counts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        sum.add(micros);
+    }
+
+    /**
+     * @param bucket a bucket.
+     * @return the largest value counted in it in milliseconds, infinity for the last one.
+     */
+    static double upperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Double.POSITIVE_INFINITY : 1L << bucket;
+    }
+
+    /**
+     * @param bucket a bucket.
+     * @return the number of values counted in it.
+     */
+    long count(int bucket) {
+        return counts.get(bucket);
+    }
+
+    /**
+     * @return the number of values recorded.
+     */
+    long count() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += counts.get(i);
+        return total;
+    }
+
+    /**
+     * @return the sum of the values in milliseconds.
+     */
+    double sumMillis() {
+        return sum.sum() / 1000.0;
+    }
+
+    /**
+     * @return the mean value in milliseconds, 0 if nothing has been recorded.
+     */
+    double mean() {
+        long total = count();
+        return total == 0 ? 0 : sumMillis() / total;
+    }
+
+    /**
+     * Estimate the value at a percentile.
+     *
+     * @param percentile from 0 to 100.
+     * @return the top of the bucket the percentile falls in in milliseconds, 0 if nothing has been recorded.
+     */
+    double valueAt(double percentile) {
+        long total = count();
+        if (total == 0)
+            return 0;
+        long wanted = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= wanted)
+                return upperBound(i);
+        }
+        return upperBound(BUCKETS - 1);
+    }
+}
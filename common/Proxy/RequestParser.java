@@ -0,0 +1,441 @@
+package Proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental parser for a request header, works on one reused buffer.
+ * Lines are only recorded as offsets into the buffer, strings are made when a field is asked for.
+ */
+class RequestParser {
+
+    /**
+     * Max size of a request header.
+     */
+    static final int MAX_HEADER_SIZE = 8192;
+    /**
+     * Max number of header lines after the request line.
+     */
+    static final int MAX_HEADERS = 100;
+
+    /**
+     * Common methods, returned instead of making a new string.
+     */
+    private static final String[] METHODS = {"GET", "CONNECT", "HEAD", "POST", "PUT", "DELETE", "OPTIONS"};
+
+    /**
+     * Bytes read from the client.
+     */
+    private final byte[] data = new byte[MAX_HEADER_SIZE];
+    /**
+     * Buffer over the data, its position is the end of what has been read.
+     */
+    private final ByteBuffer buffer = ByteBuffer.wrap(data);
+    /**
+     * Start of each header line, its colon and its end.
+     */
+    private final int[] headerStart = new int[MAX_HEADERS];
+    private final int[] headerColon = new int[MAX_HEADERS];
+    private final int[] headerEnd = new int[MAX_HEADERS];
+    /**
+     * Number of header lines found.
+     */
+    private int headers;
+    /**
+     * Index of the next byte to scan and the start of the current line.
+     */
+    private int scanned;
+    private int lineStart;
+    /**
+     * Index after the blank line ending the header, -1 until it arrives.
+     */
+    private int end = -1;
+    /**
+     * Offsets of the parts of the request line.
+     */
+    private int requestStart = -1;
+    private int methodEnd;
+    private int targetStart;
+    private int targetEnd;
+    private int versionStart;
+    private int requestEnd;
+    /**
+     * Offsets of the host in the target and the port, -1 if the target has no host.
+     */
+    private int hostStart = -1;
+    private int hostEnd;
+    private int port;
+
+    /**
+     * @return the buffer to read more of the request into.
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Read from a blocking stream until the header is complete.
+     *
+     * @param in the client's input stream.
+     * @return true once the header is complete, false if the stream ended first.
+     * @throws IOException if the stream is broken or the header breaks the limits.
+     */
+    boolean read(InputStream in) throws IOException {
+        while (!parse()) {
+            //Reads as many bytes as are available, not one at a time
+            int read = in.read(data, buffer.position(), buffer.remaining());
+            if (read == -1)
+                return false;
+            buffer.position(buffer.position() + read);
+        }
+        return true;
+    }
+
+    /**
+     * Scan the bytes read since the last call.
+     *
+     * @return true once the header is complete.
+     * @throws IOException if the header breaks the limits or the request line is malformed.
+     */
+    boolean parse() throws IOException {
+        if (end >= 0)
+            return true;
+        int limit = buffer.position();
+        for (; scanned < limit; scanned++) {
+            if (data[scanned] != '\n')
+                continue;
+            //Line ends at the new line, without a carriage return
+            int lineEnd = scanned > lineStart && data[scanned - 1] == '\r' ? scanned - 1 : scanned;
+            if (requestStart < 0) {
+                //Blank lines before the request line are ignored
+                if (lineEnd > lineStart)
+                    requestLine(lineStart, lineEnd);
+            } else if (lineEnd == lineStart) {
+                end = scanned + 1;
+                scanned++;
+                return true;
+            } else {
+                header(lineStart, lineEnd);
+            }
+            lineStart = scanned + 1;
+        }
+        if (!buffer.hasRemaining())
+            throw new IOException("Request header larger than " + MAX_HEADER_SIZE + " bytes");
+        return false;
+    }
+
+    /**
+     * Record the parts of the request line.
+     *
+     * @param start index of the first byte.
+     * @param lineEnd index after the last byte.
+     * @throws IOException if the line is malformed.
+     */
+    private void requestLine(int start, int lineEnd) throws IOException {
+        int firstSpace = indexOf(' ', start, lineEnd);
+        int lastSpace = lastIndexOf(' ', start, lineEnd);
+        if (firstSpace <= start || lastSpace <= firstSpace + 1 || !regionMatches(lastSpace + 1, lineEnd, "HTTP/"))
+            throw new IOException("Malformed request line");
+        requestStart = start;
+        methodEnd = firstSpace;
+        targetStart = firstSpace + 1;
+        targetEnd = lastSpace;
+        versionStart = lastSpace + 1 + "HTTP/".length();
+        requestEnd = lineEnd;
+        //Authority form for CONNECT, otherwise look for an absolute url
+        int authorityStart = -1;
+        if (methodEnd - start == "CONNECT".length() && regionMatches(start, methodEnd, "CONNECT")) {
+            authorityStart = targetStart;
+            port = 443;
+        } else if (regionMatches(targetStart, targetEnd, "http://")) {
+            authorityStart = targetStart + "http://".length();
+            port = 80;
+        } else if (regionMatches(targetStart, targetEnd, "https://")) {
+            authorityStart = targetStart + "https://".length();
+            port = 443;
+        }
+        if (authorityStart >= 0)
+            authority(authorityStart, targetEnd);
+    }
+
+    /**
+     * Record the host and port from the start of a target.
+     *
+     * @param start index of the first byte of the authority.
+     * @param limit index after the target.
+     * @throws IOException if the port is not a number.
+     */
+    private void authority(int start, int limit) throws IOException {
+        int authorityEnd = indexOf('/', start, limit);
+        if (authorityEnd < 0)
+            authorityEnd = limit;
+        int colon = lastIndexOf(':', start, authorityEnd);
+        //A colon inside brackets is part of an IPv6 address
+        if (colon >= 0 && data[authorityEnd - 1] != ']') {
+            port = number(colon + 1, authorityEnd);
+            hostEnd = colon;
+        } else {
+            hostEnd = authorityEnd;
+        }
+        hostStart = start;
+        if (hostEnd - hostStart > 1 && data[hostStart] == '[' && data[hostEnd - 1] == ']') {
+            hostStart++;
+            hostEnd--;
+        }
+    }
+
+    /**
+     * Record a header line.
+     *
+     * @param start index of the first byte.
+     * @param lineEnd index after the last byte.
+     * @throws IOException if there are too many headers.
+     */
+    private void header(int start, int lineEnd) throws IOException {
+        if (headers == MAX_HEADERS)
+            throw new IOException("More than " + MAX_HEADERS + " request headers");
+        int colon = indexOf(':', start, lineEnd);
+        headerStart[headers] = start;
+        headerColon[headers] = colon < 0 ? lineEnd : colon;
+        headerEnd[headers] = lineEnd;
+        headers++;
+    }
+
+    /**
+     * @return the request method, upper case for the common ones.
+     */
+    String method() {
+        for (String method : METHODS) {
+            if (methodEnd - requestStart == method.length() && regionMatches(requestStart, methodEnd, method))
+                return method;
+        }
+        return string(requestStart, methodEnd);
+    }
+
+    /**
+     * @return the request target as sent by the client.
+     */
+    String target() {
+        return string(targetStart, targetEnd);
+    }
+
+    /**
+     * Check the start of the request target, ignoring case.
+     *
+     * @param prefix the expected start.
+     * @return whether the target starts with the prefix.
+     */
+    boolean targetStartsWith(String prefix) {
+        return regionMatches(targetStart, targetEnd, prefix);
+    }
+
+    /**
+     * @return the HTTP version without the "HTTP/" prefix.
+     */
+    String version() {
+        if (requestEnd - versionStart == 3 && data[versionStart] == '1' && data[versionStart + 1] == '.') {
+            if (data[versionStart + 2] == '1')
+                return "1.1";
+            if (data[versionStart + 2] == '0')
+                return "1.0";
+        }
+        return string(versionStart, requestEnd);
+    }
+
+    /**
+     * @return whether the request is HTTP/1.0 or HTTP/1.1.
+     */
+    boolean isHttp1() {
+        return requestEnd - versionStart == 3 && data[versionStart] == '1' && data[versionStart + 1] == '.'
+                && (data[versionStart + 2] == '0' || data[versionStart + 2] == '1');
+    }
+
+    /**
+     * Check if the connection can carry another request after this one.
+     * Requests with a body are never kept alive, so the bytes after their header are never taken for the next request.
+     *
+     * @return whether the client asked for a persistent connection.
+     */
+    boolean keepAlive() {
+        if (!isHttp1() || header("Transfer-Encoding") != null)
+            return false;
+        String length = header("Content-Length");
+        if (length != null && !length.equals("0"))
+            return false;
+        //Browsers talking to a proxy often send Proxy-Connection instead
+        String connection = header("Connection");
+        if (connection == null)
+            connection = header("Proxy-Connection");
+        if (version().equals("1.1"))
+            return connection == null || !hasToken(connection, "close");
+        return connection != null && hasToken(connection, "keep-alive");
+    }
+
+    /**
+     * Check a comma separated header value for a token, ignoring case.
+     *
+     * @param value the header value.
+     * @param token the token.
+     * @return whether the value lists the token.
+     */
+    private static boolean hasToken(String value, String token) {
+        for (String part : value.split(",")) {
+            if (part.trim().equalsIgnoreCase(token))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the host from the target or the Host header, null if there is neither.
+     */
+    String host() {
+        if (hostStart >= 0)
+            return string(hostStart, hostEnd);
+        String host = header("Host");
+        if (host == null)
+            return null;
+        int colon = host.lastIndexOf(':');
+        return colon > host.lastIndexOf(']') ? host.substring(0, colon) : host;
+    }
+
+    /**
+     * @return the port from the target, or the default for its scheme.
+     */
+    int port() {
+        return hostStart >= 0 ? port : 80;
+    }
+
+    /**
+     * @return the request line.
+     */
+    String requestLine() {
+        return string(requestStart, requestEnd);
+    }
+
+    /**
+     * @return the number of header lines after the request line.
+     */
+    int headerCount() {
+        return headers;
+    }
+
+    /**
+     * @param i index of the header.
+     * @return the whole header line.
+     */
+    String headerLine(int i) {
+        return string(headerStart[i], headerEnd[i]);
+    }
+
+    /**
+     * Find the value of a header.
+     *
+     * @param name the header name, matched ignoring case.
+     * @return the trimmed value of the first matching header, or null.
+     */
+    String header(String name) {
+        for (int i = 0; i < headers; i++) {
+            if (headerColon[i] - headerStart[i] == name.length() && regionMatches(headerStart[i], headerColon[i], name)) {
+                int start = headerColon[i] + 1;
+                int stop = headerEnd[i];
+                while (start < stop && data[start] == ' ')
+                    start++;
+                while (stop > start && data[stop - 1] == ' ')
+                    stop--;
+                return string(start, stop);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the bytes read after the end of the header.
+     */
+    ByteBuffer leftover() {
+        return ByteBuffer.wrap(data, end, buffer.position() - end);
+    }
+
+    /**
+     * Get ready for the next request, keeping any bytes read after this header.
+     */
+    void reset() {
+        int from = end < 0 ? buffer.position() : end;
+        int remaining = buffer.position() - from;
+        System.arraycopy(data, from, data, 0, remaining);
+        buffer.clear().position(remaining);
+        headers = 0;
+        scanned = 0;
+        lineStart = 0;
+        end = -1;
+        requestStart = -1;
+        hostStart = -1;
+    }
+
+    /**
+     * Compare part of the buffer with some text, ignoring case.
+     *
+     * @param start index of the first byte.
+     * @param limit index the text must end by.
+     * @param text the ASCII text.
+     * @return whether the buffer starts with the text at that index.
+     */
+    private boolean regionMatches(int start, int limit, String text) {
+        if (limit - start < text.length())
+            return false;
+        for (int i = 0; i < text.length(); i++) {
+            if (Character.toLowerCase((char) data[start + i]) != Character.toLowerCase(text.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return index of the first matching byte in the range, or -1.
+     */
+    private int indexOf(char c, int start, int limit) {
+        for (int i = start; i < limit; i++) {
+            if (data[i] == c)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return index of the last matching byte in the range, or -1.
+     */
+    private int lastIndexOf(char c, int start, int limit) {
+        for (int i = limit - 1; i >= start; i--) {
+            if (data[i] == c)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Read a port number from the buffer.
+     *
+     * @return the number.
+     * @throws IOException if the range is not a valid port.
+     */
+    private int number(int start, int limit) throws IOException {
+        int value = 0;
+        for (int i = start; i < limit; i++) {
+            if (data[i] < '0' || data[i] > '9' || value > 65535)
+                throw new IOException("Malformed port");
+            value = value * 10 + (data[i] - '0');
+        }
+        if (start == limit || value > 65535)
+            throw new IOException("Malformed port");
+        return value;
+    }
+
+    /**
+     * @return the range of the buffer as an ISO-8859-1 string.
+     */
+    private String string(int start, int limit) {
+        return new String(data, start, limit - start, StandardCharsets.ISO_8859_1);
+    }
+}
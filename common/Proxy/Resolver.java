@@ -0,0 +1,337 @@
+package Proxy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Caches host name lookups, so repeat connections to a host skip resolution.
+ * Names are kept for -Dproxy.dns.ttl seconds (default 60), names that don't resolve for -Dproxy.dns.negativeTtl (default 10),
+ * up to -Dproxy.dns.maxHosts names (default 10000). A name used often is looked up again in the background
+ * before it runs out, so it never has to wait. Names listed in the hosts file set with -Dproxy.dns.hosts
+ * are answered from it, the others by the system resolver.
+ */
+class Resolver {
+
+    /**
+     * Times a name has to be used before it is looked up again ahead of running out.
+     */
+    private static final int POPULAR = 2;
+
+    /**
+     * Answers the names that aren't cached.
+     */
+    interface Source {
+
+        /**
+         * Look up a host name.
+         *
+         * @param host the host name, or an address.
+         * @return the address.
+         * @throws UnknownHostException if the name doesn't resolve.
+         */
+        InetAddress lookup(String host) throws UnknownHostException;
+    }
+
+    /**
+     * Where names that aren't cached are looked up.
+     */
+    private final Source source;
+    /**
+     * Milliseconds names that resolved and names that didn't are kept.
+     */
+    private final long ttl;
+    private final long negativeTtl;
+    /**
+     * Max number of names kept.
+     */
+    private final int maxHosts;
+    /**
+     * The lookup results, keyed by lower case name.
+     */
+    private final Map<String, Entry> names = new ConcurrentHashMap<>();
+    /**
+     * Lookups in progress, so requests for the same name wait for one lookup.
+     */
+    private final Map<String, CompletableFuture<Entry>> lookingUp = new ConcurrentHashMap<>();
+    /**
+     * Daemon threads looking up names in the background.
+     */
+    private final ExecutorService refresher = Executors.newCachedThreadPool(task -> {
+        Thread t = new Thread(task, "DNS lookup");
+        //Does not prevent the JVM from exiting when the program finishes
+        t.setDaemon(true);
+        return t;
+    });
+    /**
+     * Names answered from the cache, names looked up, lookups that failed and lookups made ahead of time.
+     */
+    final LongAdder hits = new LongAdder();
+    final LongAdder lookups = new LongAdder();
+    final LongAdder failures = new LongAdder();
+    final LongAdder prefetches = new LongAdder();
+
+    /**
+     * Constructor for the settings given by the system properties.
+     */
+    Resolver() {
+        this(systemSource(), Long.getLong("proxy.dns.ttl", 60) * 1000, Long.getLong("proxy.dns.negativeTtl", 10) * 1000,
+                Integer.getInteger("proxy.dns.maxHosts", 10000));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param source where names that aren't cached are looked up.
+     * @param ttl milliseconds a name that resolved is kept.
+     * @param negativeTtl milliseconds a name that didn't resolve is kept.
+     * @param maxHosts max number of names kept.
+     */
+    Resolver(Source source, long ttl, long negativeTtl, int maxHosts) {
+        this.source = source;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.maxHosts = maxHosts;
+    }
+
+    /**
+     * Resolve a host name, only blocking if it isn't cached.
+     *
+     * @param host the host name, or an address.
+     * @return the address.
+     * @throws UnknownHostException if the name doesn't resolve.
+     */
+    InetAddress resolve(String host) throws UnknownHostException {
+        InetAddress address = cached(host);
+        return address != null ? address : lookup(key(host)).address(host);
+    }
+
+    /**
+     * Resolve a host name on a background thread if it isn't cached.
+     *
+     * @param host the host name, or an address.
+     * @param callback given the address, or the failure if the name doesn't resolve.
+     */
+    void resolve(String host, BiConsumer<InetAddress, UnknownHostException> callback) {
+        refresher.execute(() -> {
+            InetAddress address;
+            try {
+                address = resolve(host);
+            } catch (UnknownHostException e) {
+                callback.accept(null, e);
+                return;
+            }
+            callback.accept(address, null);
+        });
+    }
+
+    /**
+     * Answer a host name from the cache without blocking.
+     * A popular name close to running out is looked up again in the background.
+     *
+     * @param host the host name, or an address.
+     * @return the address, or null if the name isn't cached.
+     * @throws UnknownHostException if the name is known not to resolve.
+     */
+    InetAddress cached(String host) throws UnknownHostException {
+        String name = key(host);
+        Entry entry = names.get(name);
+        long now = System.currentTimeMillis();
+        if (entry == null || now > entry.expires)
+            return null;
+        hits.increment();
+        if (entry.address != null && entry.uses.incrementAndGet() >= POPULAR && now > entry.refreshAt
+                && entry.refreshing.compareAndSet(false, true)) {
+            //Answer with the cached address and look up the name for the requests after it
+            prefetches.increment();
+            refresher.execute(() -> lookup(name));
+        }
+        return entry.address(host);
+    }
+
+    /**
+     * @return the number of names cached.
+     */
+    int size() {
+        return names.size();
+    }
+
+    /**
+     * Look up a name and cache the result, or wait for the lookup already in progress.
+     *
+     * @param name the lower case name.
+     * @return the result.
+     */
+    private Entry lookup(String name) {
+        CompletableFuture<Entry> lookup = new CompletableFuture<>();
+        CompletableFuture<Entry> running = lookingUp.putIfAbsent(name, lookup);
+        if (running != null)
+            return running.join();
+        Entry entry;
+        try {
+            lookups.increment();
+            try {
+                entry = new Entry(source.lookup(name), ttl);
+            } catch (UnknownHostException e) {
+                failures.increment();
+                Entry previous = names.get(name);
+                //A background lookup that fails keeps the address until it runs out
+                entry = previous != null && previous.address != null && System.currentTimeMillis() <= previous.expires
+                        ? previous : new Entry(null, negativeTtl);
+            }
+            makeRoom();
+            names.put(name, entry);
+        } catch (RuntimeException e) {
+            lookingUp.remove(name);
+            lookup.completeExceptionally(e);
+            throw e;
+        }
+        lookingUp.remove(name);
+        lookup.complete(entry);
+        return entry;
+    }
+
+    /**
+     * Forget names that have run out, or any name if none have, to stay under the max.
+     */
+    private void makeRoom() {
+        if (names.size() < maxHosts)
+            return;
+        long now = System.currentTimeMillis();
+        names.values().removeIf(entry -> now > entry.expires);
+        Iterator<Entry> itr = names.values().iterator();
+        while (names.size() >= maxHosts && itr.hasNext()) {
+            itr.next();
+            itr.remove();
+        }
+    }
+
+    /**
+     * @param host the host name.
+     * @return the name the result is cached under, names are not case sensitive.
+     */
+    private static String key(String host) {
+        return host.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Build the source set by the system properties, the hosts file if there is one in front of the system resolver.
+     *
+     * @return the source.
+     */
+    private static Source systemSource() {
+        Source system = InetAddress::getByName;
+        String hosts = System.getProperty("proxy.dns.hosts");
+        if (hosts == null)
+            return system;
+        try {
+            return hostsFile(new File(hosts), system);
+        } catch (IOException e) {
+            System.out.println("Hosts file not read: " + e.getMessage());
+            return system;
+        }
+    }
+
+    /**
+     * Read a hosts file, in the usual format of an address followed by its names on each line and # comments.
+     *
+     * @param file the file.
+     * @param fallback answers the names the file doesn't list, may be null to have them fail.
+     * @return a source answering from the file.
+     * @throws IOException if the file can't be read or an address is malformed.
+     */
+    static Source hostsFile(File file, Source fallback) throws IOException {
+        Map<String, InetAddress> addresses = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comment = line.indexOf('#');
+                String[] fields = (comment < 0 ? line : line.substring(0, comment)).trim().split("\\s+");
+                if (fields.length < 2)
+                    continue;
+                if (!fields[0].matches("[0-9a-fA-F.:]+"))
+                    throw new IOException("Malformed address in " + file + ": " + fields[0]);
+                //Only an address, so this never goes to the network
+                byte[] address = InetAddress.getByName(fields[0]).getAddress();
+                for (int i = 1; i < fields.length; i++)
+                    addresses.putIfAbsent(key(fields[i]), InetAddress.getByAddress(fields[i], address));
+            }
+        }
+        return host -> {
+            InetAddress address = addresses.get(key(host));
+            if (address != null)
+                return address;
+            if (fallback == null)
+                throw new UnknownHostException(host);
+            return fallback.lookup(host);
+        };
+    }
+
+    /**
+     * The lookup result for one name.
+     */
+    private static class Entry {
+
+        /**
+         * The address, null if the name didn't resolve.
+         */
+        final InetAddress address;
+        /**
+         * The time the result runs out.
+         */
+        final long expires;
+        /**
+         * The time a popular name is looked up again.
+         */
+        final long refreshAt;
+        /**
+         * Times the result has been used.
+         */
+        final AtomicInteger uses = new AtomicInteger();
+        /**
+         * Whether a lookup is already refreshing the result.
+         */
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        /**
+         * Constructor.
+         *
+         * @param address the address, null if the name didn't resolve.
+         * @param ttl milliseconds the result is kept.
+         */
+        Entry(InetAddress address, long ttl) {
+            this.address = address;
+            long now = System.currentTimeMillis();
+            expires = now + ttl;
+            //Leaves a quarter of the time for the lookup
+            refreshAt = now + ttl * 3 / 4;
+        }
+
+        /**
+         * @param host the name, for the failure.
+         * @return the address.
+         * @throws UnknownHostException if the name didn't resolve.
+         */
+        InetAddress address(String host) throws UnknownHostException {
+            if (address == null)
+                throw new UnknownHostException(host);
+            return address;
+        }
+    }
+}
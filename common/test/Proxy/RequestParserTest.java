@@ -0,0 +1,178 @@
+package Proxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the request header parser: framing, the parts of the request line and pipelined requests.
+ */
+class RequestParserTest {
+
+    /**
+     * Parse one request read from a stream.
+     *
+     * @param text the bytes the client sends.
+     * @return the parser, holding a complete header.
+     * @throws IOException if the header is malformed.
+     */
+    private static RequestParser parse(String text) throws IOException {
+        RequestParser request = new RequestParser();
+        assertTrue(request.read(stream(text)));
+        return request;
+    }
+
+    /**
+     * @param text the bytes the client sends.
+     * @return a stream of the bytes.
+     */
+    private static InputStream stream(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Add bytes to what the parser has read, as an event loop does.
+     *
+     * @param request the parser.
+     * @param text the bytes.
+     */
+    private static void add(RequestParser request, String text) {
+        request.buffer().put(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * @param buffer the bytes.
+     * @return the bytes as text.
+     */
+    private static String string(ByteBuffer buffer) {
+        return StandardCharsets.ISO_8859_1.decode(buffer.duplicate()).toString();
+    }
+
+    @Test
+    void theRequestLineAndHeadersAreSplit() throws IOException {
+        RequestParser request = parse("GET http://example.com/page?q=1 HTTP/1.1\r\nHost: example.com\r\n"
+                + "Accept:   text/html  \r\nX-Empty:\r\n\r\n");
+        assertEquals("GET", request.method());
+        assertEquals("http://example.com/page?q=1", request.target());
+        assertEquals("1.1", request.version());
+        assertTrue(request.isHttp1());
+        assertEquals("GET http://example.com/page?q=1 HTTP/1.1", request.requestLine());
+        assertEquals(3, request.headerCount());
+        assertEquals("Accept:   text/html  ", request.headerLine(1));
+        assertEquals("text/html", request.header("accept"));
+        assertEquals("", request.header("X-Empty"));
+        assertNull(request.header("Cookie"));
+        assertEquals("example.com", request.host());
+        assertEquals(80, request.port());
+    }
+
+    @Test
+    void theHeaderMayArriveInPieces() throws IOException {
+        RequestParser request = new RequestParser();
+        String text = "GET / HTTP/1.1\r\nHost: example.com\r\n\r\n";
+        for (int i = 0; i < text.length() - 1; i++) {
+            add(request, text.substring(i, i + 1));
+            assertFalse(request.parse(), "complete after " + (i + 1) + " bytes");
+        }
+        add(request, text.substring(text.length() - 1));
+        assertTrue(request.parse());
+        assertEquals("example.com", request.header("Host"));
+        assertEquals(0, request.leftover().remaining());
+    }
+
+    @Test
+    void bareLineFeedsAndLeadingBlankLinesAreAccepted() throws IOException {
+        RequestParser request = parse("\r\n\nHEAD /x HTTP/1.0\nHost: example.com:8080\n\n");
+        assertEquals("HEAD", request.method());
+        assertEquals("/x", request.target());
+        assertEquals("1.0", request.version());
+        assertEquals("example.com", request.host());
+    }
+
+    @Test
+    void theHostAndPortComeFromTheTarget() throws IOException {
+        RequestParser connect = parse("CONNECT example.com:8443 HTTP/1.1\r\n\r\n");
+        assertEquals("example.com", connect.host());
+        assertEquals(8443, connect.port());
+        RequestParser https = parse("GET https://Example.com/ HTTP/1.1\r\n\r\n");
+        assertEquals("Example.com", https.host());
+        assertEquals(443, https.port());
+        RequestParser ipv6 = parse("GET http://[::1]:8080/a:b HTTP/1.1\r\n\r\n");
+        assertEquals("::1", ipv6.host());
+        assertEquals(8080, ipv6.port());
+        RequestParser bare = parse("GET http://[::1]/ HTTP/1.1\r\n\r\n");
+        assertEquals("::1", bare.host());
+        assertEquals(80, bare.port());
+    }
+
+    @Test
+    void malformedRequestsAreRejected() {
+        assertThrows(IOException.class, () -> parse("GET\r\n\r\n"));
+        assertThrows(IOException.class, () -> parse("GET / FTP/1.0\r\n\r\n"));
+        assertThrows(IOException.class, () -> parse(" / HTTP/1.1\r\n\r\n"));
+        assertThrows(IOException.class, () -> parse("GET http://example.com:port/ HTTP/1.1\r\n\r\n"));
+    }
+
+    @Test
+    void theLimitsAreEnforced() {
+        StringBuilder large = new StringBuilder("GET / HTTP/1.1\r\nX-Large: ");
+        while (large.length() < RequestParser.MAX_HEADER_SIZE)
+            large.append('a');
+        assertThrows(IOException.class, () -> parse(large + "\r\n\r\n"));
+        StringBuilder many = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i <= RequestParser.MAX_HEADERS; i++)
+            many.append("X-").append(i).append(": 1\r\n");
+        assertThrows(IOException.class, () -> parse(many + "\r\n"));
+    }
+
+    @Test
+    void aStreamThatEndsEarlyIsNotARequest() throws IOException {
+        assertFalse(new RequestParser().read(stream("GET / HTTP/1.1\r\nHost: exa")));
+        assertFalse(new RequestParser().read(stream("")));
+    }
+
+    @Test
+    void pipelinedRequestsAreParsedInTurn() throws IOException {
+        RequestParser request = parse("GET /one HTTP/1.1\r\nHost: a\r\n\r\nGET /two HTTP/1.1\r\nHost: b\r\n\r\nGET /th");
+        assertEquals("/one", request.target());
+        assertEquals("GET /two HTTP/1.1\r\nHost: b\r\n\r\nGET /th", string(request.leftover()));
+        request.reset();
+        assertTrue(request.parse());
+        assertEquals("/two", request.target());
+        assertEquals("b", request.header("Host"));
+        assertEquals(1, request.headerCount());
+        request.reset();
+        //The start of the third request is kept until the rest arrives
+        assertFalse(request.parse());
+        assertTrue(request.read(stream("ree HTTP/1.1\r\n\r\n")));
+        assertEquals("/three", request.target());
+        assertEquals(0, request.headerCount());
+        assertNull(request.header("Host"));
+    }
+
+    @Test
+    void theBodyAfterTheHeaderIsLeftOver() throws IOException {
+        RequestParser request = parse("POST /form HTTP/1.1\r\nContent-Length: 7\r\n\r\na=1&b=2");
+        assertEquals("POST", request.method());
+        assertEquals("a=1&b=2", string(request.leftover()));
+        assertFalse(request.keepAlive());
+    }
+
+    @Test
+    void keepAliveFollowsTheVersionAndConnectionHeaders() throws IOException {
+        assertTrue(parse("GET / HTTP/1.1\r\n\r\n").keepAlive());
+        assertFalse(parse("GET / HTTP/1.1\r\nConnection: close\r\n\r\n").keepAlive());
+        assertFalse(parse("GET / HTTP/1.1\r\nProxy-Connection: Close\r\n\r\n").keepAlive());
+        assertFalse(parse("GET / HTTP/1.0\r\n\r\n").keepAlive());
+        assertTrue(parse("GET / HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n").keepAlive());
+        assertTrue(parse("GET / HTTP/1.1\r\nContent-Length: 0\r\n\r\n").keepAlive());
+        assertFalse(parse("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n").keepAlive());
+        assertFalse(parse("GET / HTTP/2.0\r\n\r\n").keepAlive());
+    }
+}
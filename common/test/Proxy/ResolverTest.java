@@ -0,0 +1,167 @@
+package Proxy;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the cached host name lookups, answered by a stub source rather than the network.
+ */
+class ResolverTest {
+
+    /**
+     * Answers every name with 10.0.0.1, except names starting with "bad", and counts the lookups.
+     */
+    private static class StubSource implements Resolver.Source {
+
+        final AtomicInteger lookups = new AtomicInteger();
+
+        @Override
+        public InetAddress lookup(String host) throws UnknownHostException {
+            lookups.incrementAndGet();
+            if (host.startsWith("bad"))
+                throw new UnknownHostException(host);
+            return InetAddress.getByAddress(host, new byte[]{10, 0, 0, 1});
+        }
+    }
+
+    @Test
+    void repeatLookupsAreAnsweredFromTheCache() throws UnknownHostException {
+        StubSource source = new StubSource();
+        Resolver resolver = new Resolver(source, 60000, 10000, 100);
+        InetAddress first = resolver.resolve("example.com");
+        InetAddress second = resolver.resolve("Example.COM");
+        assertEquals(first, second);
+        assertEquals(1, source.lookups.get());
+        assertEquals(1, resolver.hits.sum());
+        assertEquals(1, resolver.size());
+    }
+
+    @Test
+    void namesThatDontResolveAreRemembered() {
+        StubSource source = new StubSource();
+        Resolver resolver = new Resolver(source, 60000, 10000, 100);
+        assertThrows(UnknownHostException.class, () -> resolver.resolve("bad.example"));
+        assertThrows(UnknownHostException.class, () -> resolver.resolve("bad.example"));
+        assertEquals(1, source.lookups.get());
+        assertEquals(1, resolver.failures.sum());
+    }
+
+    @Test
+    void namesAreLookedUpAgainOnceTheyRunOut() throws Exception {
+        StubSource source = new StubSource();
+        Resolver resolver = new Resolver(source, 1, 1, 100);
+        resolver.resolve("example.com");
+        Thread.sleep(10);
+        assertNull(resolver.cached("example.com"));
+        resolver.resolve("example.com");
+        assertEquals(2, source.lookups.get());
+    }
+
+    @Test
+    void concurrentMissesShareOneLookup() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger lookups = new AtomicInteger();
+        Resolver resolver = new Resolver(host -> {
+            lookups.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return InetAddress.getByAddress(host, new byte[]{10, 0, 0, 2});
+        }, 60000, 10000, 100);
+        List<Thread> threads = new ArrayList<>();
+        List<InetAddress> answers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    InetAddress address = resolver.resolve("shared.example");
+                    synchronized (answers) {
+                        answers.add(address);
+                    }
+                } catch (UnknownHostException ignored) {
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        //Give the other threads time to find the lookup in progress
+        Thread.sleep(100);
+        release.countDown();
+        for (Thread t : threads)
+            t.join(5000);
+        assertEquals(4, answers.size());
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    void theCacheStaysUnderTheMax() throws UnknownHostException {
+        Resolver resolver = new Resolver(new StubSource(), 60000, 10000, 3);
+        for (int i = 0; i < 10; i++)
+            resolver.resolve("host" + i + ".example");
+        assertTrue(resolver.size() <= 3);
+    }
+
+    @Test
+    void popularNamesAreLookedUpAgainAheadOfRunningOut() throws Exception {
+        StubSource source = new StubSource();
+        Resolver resolver = new Resolver(source, 1000, 1000, 100);
+        resolver.resolve("popular.example");
+        //Past three quarters of the time to live, but before it runs out
+        Thread.sleep(800);
+        assertNotNull(resolver.cached("popular.example"));
+        assertNotNull(resolver.cached("popular.example"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (source.lookups.get() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(1, resolver.prefetches.sum());
+        assertEquals(2, source.lookups.get());
+    }
+
+    @Test
+    void theHostsFileAnswersBeforeTheFallback() throws IOException {
+        File file = File.createTempFile("hosts", ".txt");
+        try {
+            Files.write(file.toPath(), ("# test hosts\n192.168.1.5 Local.Example other.example # two names\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            StubSource fallback = new StubSource();
+            Resolver.Source source = Resolver.hostsFile(file, fallback);
+            assertEquals(InetAddress.getByName("192.168.1.5"), source.lookup("local.example"));
+            assertEquals(InetAddress.getByName("192.168.1.5"), source.lookup("other.example"));
+            assertEquals(0, fallback.lookups.get());
+            assertEquals(InetAddress.getByName("10.0.0.1"), source.lookup("elsewhere.example"));
+            assertEquals(1, fallback.lookups.get());
+            Resolver.Source alone = Resolver.hostsFile(file, null);
+            assertThrows(UnknownHostException.class, () -> alone.lookup("elsewhere.example"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    void aMalformedHostsFileIsRejected() throws IOException {
+        File file = File.createTempFile("hosts", ".txt");
+        try {
+            Files.write(file.toPath(), "not-an-address name.example\n".getBytes(StandardCharsets.UTF_8));
+            assertThrows(IOException.class, () -> Resolver.hostsFile(file, null));
+        } finally {
+            file.delete();
+        }
+    }
+}
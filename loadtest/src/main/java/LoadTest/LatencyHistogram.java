@@ -0,0 +1,186 @@
+package LoadTest;
+
+import java.io.PrintStream;
+
+/**
+ * Histogram of latencies in microseconds with three significant digits, laid out like HdrHistogram:
+ * values below 2048 have a bucket each, above that every power of two is split into 1024 buckets.
+ * Not thread safe, each load thread records into its own and they are added together at the end.
+ */
+class LatencyHistogram {
+
+    /**
+     * Number of buckets given to the values below the first power of two that is split.
+     */
+    private static final int SUB_BUCKETS = 2048;
+    /**
+     * Number of buckets each later power of two is split into.
+     */
+    private static final int HALF = SUB_BUCKETS / 2;
+    /**
+     * Number of powers of two above the first, enough for latencies of over a day.
+     */
+    private static final int MAGNITUDES = 27;
+    /**
+     * Number of steps between each halving of the distance to 100% in the percentile table.
+     */
+    private static final int TICKS_PER_HALF_DISTANCE = 5;
+
+    /**
+     * Count of values in each bucket.
+     */
+    private final long[] counts = new long[SUB_BUCKETS + MAGNITUDES * HALF];
+    /**
+     * Number of values recorded.
+     */
+    private long total;
+    /**
+     * Largest and smallest value recorded.
+     */
+    private long max;
+    private long min = Long.MAX_VALUE;
+    /**
+     * Sum of the values and of their squares, for the mean and standard deviation.
+     */
+    private double sum;
+    private double sumOfSquares;
+
+    /**
+     * Record a value.
+     *
+     * @param micros the latency in microseconds.
+     */
+    void record(long micros) {
+        long value = Math.max(0, micros);
+        counts[Math.min(index(value), counts.length - 1)]++;
+        total++;
+        max = Math.max(max, value);
+        min = Math.min(min, value);
+        sum += value;
+        sumOfSquares += (double) value * value;
+    }
+
+    /**
+     * Add another histogram's values to this one.
+     *
+     * @param other the histogram.
+     */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++)
+            counts[i] += other.counts[i];
+        total += other.total;
+        max = Math.max(max, other.max);
+        min = Math.min(min, other.min);
+        sum += other.sum;
+        sumOfSquares += other.sumOfSquares;
+    }
+
+    /**
+     * @return the number of values recorded.
+     */
+    long count() {
+        return total;
+    }
+
+    /**
+     * @return the largest value recorded.
+     */
+    long max() {
+        return max;
+    }
+
+    /**
+     * Find the value at a percentile.
+     *
+     * @param percentile from 0 to 100.
+     * @return the largest value in the bucket the percentile falls in, 0 if nothing has been recorded.
+     */
+    long valueAt(double percentile) {
+        if (total == 0)
+            return 0;
+        long wanted = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= wanted)
+                return Math.min(max, highest(i));
+        }
+        return max;
+    }
+
+    /**
+     * Print the percentile distribution in the format HdrHistogram uses, values in milliseconds.
+     *
+     * @param out where to print it.
+     */
+    void printDistribution(PrintStream out) {
+        out.println("       Value     Percentile TotalCount 1/(1-Percentile)");
+        out.println();
+        if (total > 0) {
+            double percentile = 0;
+            while (percentile < 100) {
+                print(out, percentile);
+                //Steps get smaller each time the distance to 100% halves, as HdrHistogram does
+                double halfDistance = Math.pow(2, Math.floor(Math.log(100 / (100 - percentile)) / Math.log(2)) + 1);
+                percentile += 100 / (halfDistance * TICKS_PER_HALF_DISTANCE);
+                //Once a step covers less than one value the rest of the table says nothing new
+                if ((100 - percentile) / 100 * total < 1)
+                    break;
+            }
+            out.printf("%12.3f %14.12f %10d%n", max / 1000.0, 1.0, total);
+        }
+        double mean = total == 0 ? 0 : sum / total;
+        double deviation = total == 0 ? 0 : Math.sqrt(Math.max(0, sumOfSquares / total - mean * mean));
+        out.printf("#[Mean    = %12.3f, StdDeviation   = %12.3f]%n", mean / 1000, deviation / 1000);
+        out.printf("#[Max     = %12.3f, Total count    = %12d]%n", max / 1000.0, total);
+        out.printf("#[Buckets = %12d, SubBuckets     = %12d]%n", MAGNITUDES + 1, SUB_BUCKETS);
+    }
+
+    /**
+     * Print one row of the percentile table.
+     *
+     * @param out where to print it.
+     * @param percentile the percentile.
+     */
+    private void print(PrintStream out, double percentile) {
+        long value = valueAt(percentile);
+        long below = 0;
+        for (int i = 0; i < counts.length && lowest(i) <= value; i++)
+            below += counts[i];
+        out.printf("%12.3f %14.12f %10d %14.2f%n", value / 1000.0, percentile / 100, below, 1 / (1 - percentile / 100));
+    }
+
+    /**
+     * @param value a value.
+     * @return the bucket it is counted in.
+     */
+    private static int index(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        //Shift that brings the value into the upper half of the sub buckets
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 10;
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) ((value >> shift) - HALF);
+    }
+
+    /**
+     * @param index a bucket.
+     * @return the smallest value counted in it.
+     */
+    private static long lowest(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        return ((long) ((index - SUB_BUCKETS) % HALF) + HALF) << shift;
+    }
+
+    /**
+     * @param index a bucket.
+     * @return the largest value counted in it.
+     */
+    private static long highest(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        return lowest(index) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,354 @@
+package LoadTest;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One simulated client, sending requests through the proxy on a kept alive connection.
+ * With a rate each request has a planned start time and its latency is measured from then,
+ * so a stalled proxy is charged for the requests that would have been sent meanwhile.
+ */
+class LoadClient implements Runnable {
+
+    /**
+     * Max milliseconds to wait for the proxy.
+     */
+    private static final int TIMEOUT = 30000;
+    /**
+     * Counter making every miss a different url.
+     */
+    private static final AtomicLong misses = new AtomicLong();
+
+    /**
+     * The load test settings.
+     */
+    private final LoadTest settings;
+    /**
+     * Context trusting the origin stub, for requests through CONNECT tunnels.
+     */
+    private final SSLContext tls;
+    /**
+     * The time to start, the time results start being recorded and the time to stop, in nanoseconds.
+     */
+    private final long start;
+    private final long recordFrom;
+    private final long end;
+    /**
+     * Nanoseconds between requests, 0 to send each as soon as the last one is answered.
+     */
+    private final long interval;
+    /**
+     * Latencies of each scenario.
+     */
+    final LatencyHistogram[] latencies = new LatencyHistogram[LoadTest.Scenario.values().length];
+    /**
+     * Failed requests of each scenario.
+     */
+    final long[] errors = new long[LoadTest.Scenario.values().length];
+    /**
+     * Body bytes received while recording.
+     */
+    long bytes;
+    /**
+     * The kept alive connection to the proxy, null when closed.
+     */
+    private Socket socket;
+    private InputStream in;
+
+    /**
+     * Constructor.
+     *
+     * @param settings the load test settings.
+     * @param tls context trusting the origin stub.
+     * @param start the time to start in nanoseconds.
+     * @param recordFrom the time results start being recorded in nanoseconds.
+     * @param end the time to stop in nanoseconds.
+     * @param interval nanoseconds between requests, 0 for as fast as possible.
+     */
+    LoadClient(LoadTest settings, SSLContext tls, long start, long recordFrom, long end, long interval) {
+        this.settings = settings;
+        this.tls = tls;
+        this.start = start;
+        this.recordFrom = recordFrom;
+        this.end = end;
+        this.interval = interval;
+        for (int i = 0; i < latencies.length; i++)
+            latencies[i] = new LatencyHistogram();
+    }
+
+    /**
+     * Send requests until the end time.
+     */
+    @Override
+    public void run() {
+        //Spread the clients' planned times over one interval
+        long planned = start + (interval == 0 ? 0 : ThreadLocalRandom.current().nextLong(interval));
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                if (interval > 0) {
+                    //Wait for the planned time, unless behind
+                    if (planned > now) {
+                        Thread.sleep((planned - now) / 1000000, (int) ((planned - now) % 1000000));
+                        now = System.nanoTime();
+                    }
+                } else {
+                    planned = now;
+                }
+                if (now >= end)
+                    break;
+                LoadTest.Scenario scenario = settings.pick();
+                try {
+                    long received = send(scenario);
+                    if (planned >= recordFrom) {
+                        latencies[scenario.ordinal()].record((System.nanoTime() - planned) / 1000);
+                        bytes += received;
+                    }
+                } catch (IOException e) {
+                    close();
+                    if (planned >= recordFrom)
+                        errors[scenario.ordinal()]++;
+                }
+                planned += interval;
+            }
+        } catch (InterruptedException ignored) {
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Send one request of a scenario and read the answer.
+     *
+     * @param scenario the scenario.
+     * @return the size of the body received.
+     * @throws IOException if the request fails or is answered with an error.
+     */
+    private long send(LoadTest.Scenario scenario) throws IOException {
+        int object = ThreadLocalRandom.current().nextInt(settings.objects);
+        switch (scenario) {
+            case HIT:
+                return get("/object/" + object);
+            case MISS:
+                return get("/nocache/" + misses.incrementAndGet());
+            case REDIRECT:
+                return get("/redirect/" + object);
+            default:
+                return tunnel("/object/" + object);
+        }
+    }
+
+    /**
+     * Fetch a page from the origin through the proxy on the kept alive connection.
+     *
+     * @param path the path on the origin.
+     * @return the size of the body.
+     * @throws IOException if the request fails or is answered with an error.
+     */
+    private long get(String path) throws IOException {
+        if (socket == null) {
+            socket = connect();
+            in = new BufferedInputStream(socket.getInputStream());
+        }
+        String authority = "localhost:" + settings.targetPort();
+        String request = "GET " + (settings.https ? "https://" : "http://") + authority + path + " HTTP/1.1\r\n"
+                + "Host: " + authority + "\r\n"
+                + (settings.keepAlive ? "" : "Connection: close\r\n")
+                + "\r\n";
+        socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+        Response response = Response.read(in);
+        if (!response.keepAlive || !settings.keepAlive)
+            close();
+        if (response.status != 200)
+            throw new IOException("Status " + response.status);
+        return response.length;
+    }
+
+    /**
+     * Fetch a page from the https origin through a new CONNECT tunnel.
+     *
+     * @param path the path on the origin.
+     * @return the size of the body.
+     * @throws IOException if the tunnel or the request fails.
+     */
+    private long tunnel(String path) throws IOException {
+        String authority = "localhost:" + settings.httpsPort;
+        try (Socket tunnel = connect()) {
+            OutputStream out = tunnel.getOutputStream();
+            out.write(("CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            //Read the answer to CONNECT a byte at a time, the TLS handshake follows straight after it
+            Response established = Response.readHead(tunnel.getInputStream());
+            if (established.status != 200)
+                throw new IOException("CONNECT status " + established.status);
+            try (SSLSocket ssl = (SSLSocket) tls.getSocketFactory().createSocket(tunnel, "localhost", settings.httpsPort, true)) {
+                ssl.getOutputStream().write(("GET " + path + " HTTP/1.1\r\nHost: " + authority + "\r\nConnection: close\r\n\r\n")
+                        .getBytes(StandardCharsets.ISO_8859_1));
+                Response response = Response.read(new BufferedInputStream(ssl.getInputStream()));
+                if (response.status != 200)
+                    throw new IOException("Status " + response.status);
+                return response.length;
+            }
+        }
+    }
+
+    /**
+     * @return a new connection to the proxy.
+     * @throws IOException if the proxy can't be reached.
+     */
+    private Socket connect() throws IOException {
+        Socket connection = new Socket();
+        connection.connect(new InetSocketAddress(settings.proxyHost, settings.proxyPort), TIMEOUT);
+        connection.setSoTimeout(TIMEOUT);
+        connection.setTcpNoDelay(true);
+        return connection;
+    }
+
+    /**
+     * Close the kept alive connection, a new one is opened for the next request.
+     */
+    private void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            socket = null;
+            in = null;
+        }
+    }
+
+    /**
+     * The parts of a response the load test looks at.
+     */
+    private static class Response {
+
+        /**
+         * The status code.
+         */
+        int status;
+        /**
+         * The size of the body.
+         */
+        long length;
+        /**
+         * Whether the connection can carry another request.
+         */
+        boolean keepAlive;
+        /**
+         * The body's framing, -1 if it runs until the connection closes.
+         */
+        private long contentLength = -1;
+        private boolean chunked;
+
+        /**
+         * Read a response and skip over its body.
+         *
+         * @param in the stream from the proxy.
+         * @return the response.
+         * @throws IOException if the response is cut short or malformed.
+         */
+        static Response read(InputStream in) throws IOException {
+            Response response = readHead(in);
+            if (response.status == 204 || response.status == 304)
+                return response;
+            if (response.chunked) {
+                long size;
+                while ((size = Long.parseLong(line(in).split(";")[0].trim(), 16)) > 0) {
+                    response.length += skip(in, size);
+                    line(in);
+                }
+                //Skip the trailers
+                while (!line(in).isEmpty()) ;
+            } else if (response.contentLength >= 0) {
+                response.length = skip(in, response.contentLength);
+            } else {
+                response.length = skip(in, Long.MAX_VALUE);
+                response.keepAlive = false;
+            }
+            return response;
+        }
+
+        /**
+         * Read the status line and headers.
+         *
+         * @param in the stream from the proxy.
+         * @return the response, with its body unread.
+         * @throws IOException if the head is cut short or malformed.
+         */
+        static Response readHead(InputStream in) throws IOException {
+            Response response = new Response();
+            String[] statusLine = line(in).split(" ", 3);
+            if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/"))
+                throw new IOException("Malformed status line");
+            response.status = Integer.parseInt(statusLine[1]);
+            response.keepAlive = statusLine[0].equals("HTTP/1.1");
+            String header;
+            while (!(header = line(in)).isEmpty()) {
+                int colon = header.indexOf(':');
+                if (colon < 0)
+                    continue;
+                String name = header.substring(0, colon).trim();
+                String value = header.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length"))
+                    response.contentLength = Long.parseLong(value);
+                else if (name.equalsIgnoreCase("Transfer-Encoding"))
+                    response.chunked = value.toLowerCase().contains("chunked");
+                else if (name.equalsIgnoreCase("Connection"))
+                    response.keepAlive = value.equalsIgnoreCase("keep-alive");
+            }
+            return response;
+        }
+
+        /**
+         * Read one line, a byte at a time.
+         *
+         * @param in the stream.
+         * @return the line without its line ending.
+         * @throws IOException if the stream ends first.
+         */
+        private static String line(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c == -1)
+                    throw new EOFException("Response ended early");
+                if (c != '\r')
+                    line.append((char) c);
+            }
+            return line.toString();
+        }
+
+        /**
+         * Skip part of the body.
+         *
+         * @param in the stream.
+         * @param count bytes to skip, Long.MAX_VALUE for the rest of the stream.
+         * @return the bytes skipped.
+         * @throws IOException if the stream ends early.
+         */
+        private static long skip(InputStream in, long count) throws IOException {
+            byte[] buffer = new byte[16384];
+            long skipped = 0;
+            while (skipped < count) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+                if (read == -1) {
+                    if (count == Long.MAX_VALUE)
+                        break;
+                    throw new EOFException("Body ended early");
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+    }
+}
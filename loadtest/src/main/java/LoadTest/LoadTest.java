@@ -0,0 +1,313 @@
+package LoadTest;
+
+import javax.net.ssl.SSLContext;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Load test for the proxy on port 7538, with a stand-in origin on loopback so no outside network is needed.
+ * Clients send a mix of cache hits, misses, redirects and CONNECT tunnels for a set time,
+ * then throughput and the latency distribution of each scenario are printed.
+ * <p>
+ * Settings are given as --name=value, for example
+ * {@code java -jar loadtest.jar --connections=64 --duration=60 --mix=hit:80,miss:10,redirect:10}.
+ * Run with --help for the full list. The CONNECT scenario needs the tunnelling proxy,
+ * the others the caching one.
+ */
+public class LoadTest {
+
+    /**
+     * The kinds of request sent.
+     */
+    enum Scenario {
+        /**
+         * A cacheable object from a small set, answered from the cache once warm.
+         */
+        HIT,
+        /**
+         * An object the origin says not to store, always fetched.
+         */
+        MISS,
+        /**
+         * A redirect to a cacheable object, followed by the proxy.
+         */
+        REDIRECT,
+        /**
+         * A CONNECT tunnel to the https origin with a request inside it.
+         */
+        CONNECT
+    }
+
+    /**
+     * Host and port of the proxy.
+     */
+    String proxyHost = "localhost";
+    int proxyPort = 7538;
+    /**
+     * Number of clients, each with its own connection.
+     */
+    int connections = 16;
+    /**
+     * Seconds to send requests for, and seconds at the start whose results are thrown away.
+     */
+    int duration = 30;
+    int warmup = 5;
+    /**
+     * Requests per second from all clients together, 0 for each client as fast as it is answered.
+     */
+    int rate;
+    /**
+     * Weight of each scenario in the mix.
+     */
+    final int[] weights = {70, 20, 10, 0};
+    /**
+     * Number of distinct cacheable objects.
+     */
+    int objects = 100;
+    /**
+     * Settings of the origin stub: body size in bytes, milliseconds answers are held back, and seconds objects are fresh.
+     */
+    int size = 16384;
+    int latency = 20;
+    int maxAge = 300;
+    /**
+     * Ports of the origin stub, 0 for any free one.
+     */
+    int httpPort;
+    int httpsPort;
+    /**
+     * Whether hits, misses and redirects go to the https origin.
+     */
+    boolean https;
+    /**
+     * Whether clients keep their connection to the proxy open between requests.
+     */
+    boolean keepAlive = true;
+    /**
+     * Where the origin's key and the trust store for the proxy are kept.
+     */
+    File tlsDirectory = new File("loadtest-tls");
+    /**
+     * Whether to only run the origin stub, for testing by hand.
+     */
+    boolean originOnly;
+
+    /**
+     * Run the load test.
+     *
+     * @param args the settings as --name=value.
+     * @throws IOException if the origin stub can't start.
+     * @throws InterruptedException if interrupted while waiting for the clients.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        LoadTest test = new LoadTest();
+        try {
+            for (String arg : args) {
+                if (arg.equals("--help")) {
+                    usage();
+                    return;
+                }
+                test.set(arg);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+            System.exit(2);
+        }
+        test.run();
+    }
+
+    /**
+     * Print the settings.
+     */
+    private static void usage() {
+        System.err.println("Settings, as --name=value:");
+        System.err.println("  proxy=host:port     proxy to test (localhost:7538)");
+        System.err.println("  connections=n       clients, each with its own connection (16)");
+        System.err.println("  duration=s          seconds to send requests for (30)");
+        System.err.println("  warmup=s            seconds at the start not recorded (5)");
+        System.err.println("  rate=n              requests per second in all, 0 for as fast as answered (0)");
+        System.err.println("  mix=hit:w,miss:w,redirect:w,connect:w  weight of each scenario (70,20,10,0)");
+        System.err.println("  objects=n           distinct cacheable objects (100)");
+        System.err.println("  size=bytes          body size (16384)");
+        System.err.println("  latency=ms          origin delay per answer (20)");
+        System.err.println("  max-age=s           seconds objects are fresh (300)");
+        System.err.println("  http-port=n         origin http port, 0 for any (0)");
+        System.err.println("  https-port=n        origin https port, 0 for any (0)");
+        System.err.println("  https=true          send hits, misses and redirects to the https origin (false)");
+        System.err.println("  keep-alive=false    close the connection after every request (true)");
+        System.err.println("  tls-dir=path        where the origin key and proxy trust store are kept (loadtest-tls)");
+        System.err.println("  origin-only=true    only run the origin stub (false)");
+    }
+
+    /**
+     * Apply one setting.
+     *
+     * @param arg the setting as --name=value.
+     * @throws IllegalArgumentException if the setting is unknown or its value is bad.
+     */
+    private void set(String arg) {
+        int equals = arg.indexOf('=');
+        if (!arg.startsWith("--") || equals < 0)
+            throw new IllegalArgumentException("Unknown setting " + arg);
+        String name = arg.substring(2, equals);
+        String value = arg.substring(equals + 1);
+        try {
+            switch (name) {
+                case "proxy":
+                    int colon = value.lastIndexOf(':');
+                    proxyHost = value.substring(0, colon);
+                    proxyPort = Integer.parseInt(value.substring(colon + 1));
+                    break;
+                case "connections": connections = Integer.parseInt(value); break;
+                case "duration": duration = Integer.parseInt(value); break;
+                case "warmup": warmup = Integer.parseInt(value); break;
+                case "rate": rate = Integer.parseInt(value); break;
+                case "mix": mix(value); break;
+                case "objects": objects = Integer.parseInt(value); break;
+                case "size": size = Integer.parseInt(value); break;
+                case "latency": latency = Integer.parseInt(value); break;
+                case "max-age": maxAge = Integer.parseInt(value); break;
+                case "http-port": httpPort = Integer.parseInt(value); break;
+                case "https-port": httpsPort = Integer.parseInt(value); break;
+                case "https": https = Boolean.parseBoolean(value); break;
+                case "keep-alive": keepAlive = Boolean.parseBoolean(value); break;
+                case "tls-dir": tlsDirectory = new File(value); break;
+                case "origin-only": originOnly = Boolean.parseBoolean(value); break;
+                default: throw new IllegalArgumentException("Unknown setting " + arg);
+            }
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Bad value in " + arg);
+        }
+    }
+
+    /**
+     * Set the scenario weights.
+     *
+     * @param value the weights as scenario:weight pairs separated by commas.
+     */
+    private void mix(String value) {
+        java.util.Arrays.fill(weights, 0);
+        for (String part : value.split(",")) {
+            String[] pair = part.split(":");
+            if (pair.length != 2)
+                throw new IllegalArgumentException("Bad mix " + value);
+            weights[Scenario.valueOf(pair[0].trim().toUpperCase()).ordinal()] = Integer.parseInt(pair[1].trim());
+        }
+    }
+
+    /**
+     * @return a scenario chosen at random by weight.
+     */
+    Scenario pick() {
+        int total = 0;
+        for (int weight : weights)
+            total += weight;
+        int choice = ThreadLocalRandom.current().nextInt(total);
+        for (Scenario scenario : Scenario.values()) {
+            choice -= weights[scenario.ordinal()];
+            if (choice < 0)
+                return scenario;
+        }
+        return Scenario.HIT;
+    }
+
+    /**
+     * @return the origin port hits, misses and redirects are sent to.
+     */
+    int targetPort() {
+        return https ? httpsPort : httpPort;
+    }
+
+    /**
+     * Start the origin stub, drive the clients and print the results.
+     *
+     * @throws IOException if the origin stub can't start.
+     * @throws InterruptedException if interrupted while waiting for the clients.
+     */
+    private void run() throws IOException, InterruptedException {
+        int totalWeight = 0;
+        for (int weight : weights)
+            totalWeight += weight;
+        if (totalWeight <= 0)
+            throw new IllegalArgumentException("The mix has no weight");
+        OriginStub origin = new OriginStub(size, latency, maxAge);
+        OriginStub.keyStores(tlsDirectory);
+        httpPort = origin.startHttp(httpPort);
+        httpsPort = origin.startHttps(httpsPort, tlsDirectory);
+        System.out.println("Origin stub on http://localhost:" + httpPort + " and https://localhost:" + httpsPort);
+        System.out.println("For the proxy to fetch over https, start it with " + OriginStub.trustFlags(tlsDirectory));
+        if (originOnly) {
+            //Serve until killed
+            Thread.currentThread().join();
+            return;
+        }
+        SSLContext tls = OriginStub.clientContext(tlsDirectory);
+        long start = System.nanoTime();
+        long recordFrom = start + warmup * 1000000000L;
+        long end = recordFrom + duration * 1000000000L;
+        long interval = rate > 0 ? 1000000000L * connections / rate : 0;
+        System.out.printf("%d connections to %s:%d for %d s after %d s warm up, %s%n", connections, proxyHost, proxyPort,
+                duration, warmup, rate > 0 ? rate + " requests/s" : "as fast as answered");
+        LoadClient[] clients = new LoadClient[connections];
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            clients[i] = new LoadClient(this, tls, start, recordFrom, end, interval);
+            threads[i] = new Thread(clients[i], "Load client " + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        origin.stop();
+        report(clients);
+    }
+
+    /**
+     * Print throughput and the latency of each scenario, then of all requests together.
+     *
+     * @param clients the finished clients.
+     */
+    private void report(LoadClient[] clients) {
+        LatencyHistogram all = new LatencyHistogram();
+        long errors = 0;
+        long bytes = 0;
+        System.out.println();
+        System.out.printf("%-9s %10s %8s %10s %10s %10s %10s %10s%n", "scenario", "requests", "errors", "req/s",
+                "p50 ms", "p99 ms", "p999 ms", "max ms");
+        for (Scenario scenario : Scenario.values()) {
+            LatencyHistogram latencies = new LatencyHistogram();
+            long failed = 0;
+            for (LoadClient client : clients) {
+                latencies.add(client.latencies[scenario.ordinal()]);
+                failed += client.errors[scenario.ordinal()];
+            }
+            if (latencies.count() == 0 && failed == 0)
+                continue;
+            row(scenario.name().toLowerCase(), latencies, failed);
+            all.add(latencies);
+            errors += failed;
+        }
+        for (LoadClient client : clients)
+            bytes += client.bytes;
+        row("all", all, errors);
+        System.out.printf("%nThroughput %.1f requests/s, %.2f MB/s of bodies%n", all.count() / (double) duration,
+                bytes / 1e6 / duration);
+        System.out.println();
+        System.out.println("Latency of all requests in ms:");
+        all.printDistribution(System.out);
+    }
+
+    /**
+     * Print the summary of one scenario.
+     *
+     * @param name the scenario.
+     * @param latencies its latencies.
+     * @param errors its failed requests.
+     */
+    private void row(String name, LatencyHistogram latencies, long errors) {
+        System.out.printf("%-9s %10d %8d %10.1f %10.3f %10.3f %10.3f %10.3f%n", name, latencies.count(), errors,
+                latencies.count() / (double) duration, latencies.valueAt(50) / 1000.0, latencies.valueAt(99) / 1000.0,
+                latencies.valueAt(99.9) / 1000.0, latencies.max() / 1000.0);
+    }
+}
@@ -0,0 +1,310 @@
+package LoadTest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Stand-in origin for load tests, answering over http and https on loopback with the JDK's built in server.
+ * <ul>
+ * <li>/object/{id} is cacheable for max-age seconds, with an ETag answered with 304.</li>
+ * <li>/nocache/{id} is never stored.</li>
+ * <li>/redirect/{id} is a 302 to /object/{id}.</li>
+ * </ul>
+ * Any path takes ?size=bytes to override the default body size, and every answer is held back by the latency.
+ */
+class OriginStub {
+
+    /**
+     * Password of the generated key and trust stores.
+     */
+    private static final String PASSWORD = "changeit";
+
+    /**
+     * Default size of a body in bytes.
+     */
+    private final int size;
+    /**
+     * Milliseconds every answer is held back, standing in for a distant origin.
+     */
+    private final int latency;
+    /**
+     * Seconds objects are fresh for.
+     */
+    private final int maxAge;
+    /**
+     * Bodies by size, shared by every answer of that size.
+     */
+    private final Map<Integer, byte[]> bodies = new ConcurrentHashMap<>();
+    /**
+     * Threads answering requests.
+     */
+    private final ExecutorService threads = Executors.newCachedThreadPool(task -> {
+        Thread t = new Thread(task, "Origin stub");
+        //Does not prevent the JVM from exiting when the load test finishes
+        t.setDaemon(true);
+        return t;
+    });
+    /**
+     * The http and https servers, the https one is null unless started.
+     */
+    private HttpServer http;
+    private HttpsServer https;
+
+    /**
+     * Constructor.
+     *
+     * @param size default size of a body in bytes.
+     * @param latency milliseconds every answer is held back.
+     * @param maxAge seconds objects are fresh for.
+     */
+    OriginStub(int size, int latency, int maxAge) {
+        this.size = size;
+        this.latency = latency;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Start answering over http.
+     *
+     * @param port the port, 0 for any free one.
+     * @return the port listened on.
+     * @throws IOException if the port can't be bound.
+     */
+    int startHttp(int port) throws IOException {
+        http = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        http.createContext("/", this::handle);
+        http.setExecutor(threads);
+        http.start();
+        return http.getAddress().getPort();
+    }
+
+    /**
+     * Start answering over https with the key in a store made by {@link #keyStores}.
+     *
+     * @param port the port, 0 for any free one.
+     * @param directory the directory holding the stores.
+     * @return the port listened on.
+     * @throws IOException if the port can't be bound or the key can't be loaded.
+     */
+    int startHttps(int port, File directory) throws IOException {
+        try {
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(load(new File(directory, "origin.p12")), PASSWORD.toCharArray());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+            https = HttpsServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+            https.setHttpsConfigurator(new HttpsConfigurator(context));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Can't load the origin key", e);
+        }
+        https.createContext("/", this::handle);
+        https.setExecutor(threads);
+        https.start();
+        return https.getAddress().getPort();
+    }
+
+    /**
+     * Stop both servers.
+     */
+    void stop() {
+        if (http != null)
+            http.stop(0);
+        if (https != null)
+            https.stop(0);
+        threads.shutdownNow();
+    }
+
+    /**
+     * Make a self signed key for localhost and a trust store holding its certificate with the JDK's keytool,
+     * unless they already exist. The proxy is pointed at the trust store so it accepts the stub's https.
+     *
+     * @param directory the directory to keep them in.
+     * @throws IOException if keytool fails.
+     */
+    static void keyStores(File directory) throws IOException {
+        File key = new File(directory, "origin.p12");
+        File trust = new File(directory, "trust.p12");
+        if (key.exists() && trust.exists())
+            return;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Can't make " + directory);
+        File certificate = new File(directory, "origin.cer");
+        //Start again from nothing if an earlier run stopped half way
+        for (File file : new File[]{key, trust, certificate})
+            Files.deleteIfExists(file.toPath());
+        keytool("-genkeypair", "-alias", "origin", "-keyalg", "RSA", "-keysize", "2048", "-validity", "365",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                "-storetype", "PKCS12", "-keystore", key.getPath(), "-storepass", PASSWORD, "-keypass", PASSWORD);
+        keytool("-exportcert", "-alias", "origin", "-keystore", key.getPath(), "-storepass", PASSWORD,
+                "-file", certificate.getPath());
+        keytool("-importcert", "-noprompt", "-alias", "origin", "-file", certificate.getPath(),
+                "-storetype", "PKCS12", "-keystore", trust.getPath(), "-storepass", PASSWORD);
+    }
+
+    /**
+     * Make a client TLS context that trusts the stub's certificate.
+     *
+     * @param directory the directory holding the stores.
+     * @return the context.
+     * @throws IOException if the trust store can't be loaded.
+     */
+    static SSLContext clientContext(File directory) throws IOException {
+        try {
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(load(new File(directory, "trust.p12")));
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trust.getTrustManagers(), null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Can't load the trust store", e);
+        }
+    }
+
+    /**
+     * @param directory the directory holding the stores.
+     * @return the flags that make a JVM trust the stub's certificate.
+     */
+    static String trustFlags(File directory) {
+        return "-Djavax.net.ssl.trustStore=" + new File(directory, "trust.p12").getAbsolutePath()
+                + " -Djavax.net.ssl.trustStorePassword=" + PASSWORD + " -Djavax.net.ssl.trustStoreType=PKCS12";
+    }
+
+    /**
+     * Load a PKCS12 store.
+     *
+     * @param file the store.
+     * @return the store.
+     * @throws IOException if the file can't be read.
+     * @throws GeneralSecurityException if the store is broken.
+     */
+    private static KeyStore load(File file) throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(file)) {
+            store.load(in, PASSWORD.toCharArray());
+        }
+        return store;
+    }
+
+    /**
+     * Run the JDK's keytool.
+     *
+     * @param args the arguments.
+     * @throws IOException if it can't be run or fails.
+     */
+    private static void keytool(String... args) throws IOException {
+        String[] command = new String[args.length + 1];
+        command[0] = new File(System.getProperty("java.home"), "bin/keytool").getPath();
+        System.arraycopy(args, 0, command, 1, args.length);
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        byte[] output = process.getInputStream().readAllBytes();
+        try {
+            if (process.waitFor() != 0)
+                throw new IOException("keytool failed: " + new String(output));
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted running keytool");
+        }
+    }
+
+    /**
+     * Answer one request.
+     *
+     * @param exchange the request and response.
+     * @throws IOException if the client is broken.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (latency > 0)
+                Thread.sleep(latency);
+            //Drain any request body so the connection can be reused
+            exchange.getRequestBody().readAllBytes();
+            String path = exchange.getRequestURI().getPath();
+            String id = path.substring(path.lastIndexOf('/') + 1);
+            int bodySize = size(exchange.getRequestURI().getQuery());
+            if (path.startsWith("/object/")) {
+                String etag = "\"" + id + "-" + bodySize + "\"";
+                exchange.getResponseHeaders().set("Cache-Control", "max-age=" + maxAge);
+                exchange.getResponseHeaders().set("ETag", etag);
+                if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match")))
+                    exchange.sendResponseHeaders(304, -1);
+                else
+                    send(exchange, 200, bodySize);
+            } else if (path.startsWith("/nocache/")) {
+                exchange.getResponseHeaders().set("Cache-Control", "no-store");
+                send(exchange, 200, bodySize);
+            } else if (path.startsWith("/redirect/")) {
+                String query = exchange.getRequestURI().getRawQuery();
+                exchange.getResponseHeaders().set("Location", "/object/" + id + (query == null ? "" : "?" + query));
+                exchange.sendResponseHeaders(302, -1);
+            } else {
+                send(exchange, 404, 0);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Send a body of some size.
+     *
+     * @param exchange the request and response.
+     * @param status the status code.
+     * @param length the size of the body.
+     * @throws IOException if the client is broken.
+     */
+    private void send(HttpExchange exchange, int status, int length) throws IOException {
+        byte[] body = bodies.computeIfAbsent(length, n -> {
+            byte[] bytes = new byte[n];
+            Arrays.fill(bytes, (byte) 'x');
+            return bytes;
+        });
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            //Same head as a GET, without the body
+            exchange.getResponseHeaders().set("Content-Length", Integer.toString(length));
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * @param query the query of the url, may be null.
+     * @return the size asked for, or the default.
+     */
+    private int size(String query) {
+        if (query != null) {
+            for (String part : query.split("&")) {
+                if (part.startsWith("size=")) {
+                    try {
+                        return Math.max(0, Integer.parseInt(part.substring("size=".length())));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+        return size;
+    }
+}